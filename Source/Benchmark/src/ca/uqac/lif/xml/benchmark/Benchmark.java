@@ -0,0 +1,559 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ca.uqac.lif.xml.BufferPool;
+import ca.uqac.lif.xml.Predicate;
+import ca.uqac.lif.xml.Segment;
+import ca.uqac.lif.xml.TextElement;
+import ca.uqac.lif.xml.TextSegment;
+import ca.uqac.lif.xml.XPathExpression;
+import ca.uqac.lif.xml.XPathExpression.DoubleCallback;
+import ca.uqac.lif.xml.XPathPlan;
+import ca.uqac.lif.xml.XmlBufferSerializer;
+import ca.uqac.lif.xml.XmlDocumentArena;
+import ca.uqac.lif.xml.XmlElement;
+import ca.uqac.lif.xml.XmlParser;
+
+/**
+ * Measures the memory footprint of parsed documents, and the throughput
+ * of the main operations of the library on a few synthetic documents.
+ * Each scenario is first run for a while to let the JIT compiler warm up,
+ * and is then timed.
+ * <p>
+ * Compile with <tt>ant compile-benchmark</tt>, and run from the root of
+ * the project with <tt>java -cp Source/Core/bin:Source/Benchmark/bin
+ * ca.uqac.lif.xml.benchmark.Benchmark [seconds]</tt>, where
+ * <i>seconds</i> is the time spent on each scenario (default: 2).
+ */
+public class Benchmark
+{
+	/**
+	 * The time spent on each scenario, in milliseconds
+	 */
+	protected static long s_duration = 2000;
+
+	/**
+	 * A value read by every scenario, so that the JIT cannot eliminate
+	 * the work being measured
+	 */
+	protected static long s_sink = 0;
+
+	/**
+	 * The number of nodes in the document produced by
+	 * {@link #generateRecords(int)}
+	 */
+	protected static int s_numNodes = 0;
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length > 0)
+		{
+			s_duration = (long) (Double.parseDouble(args[0]) * 1000);
+		}
+		final String shallow = generateRecords(2000);
+		final String deep = generateDeep(5000);
+		final Charset utf8 = Charset.forName("UTF-8");
+		final byte[] shallow_bytes = shallow.getBytes(utf8);
+		final XmlElement shallow_doc = XmlElement.parse(shallow);
+		final XmlElement deep_doc = XmlElement.parse(deep);
+		final XmlDocumentArena shallow_arena = XmlDocumentArena.parse(shallow);
+		final XPathExpression shallow_query = XPathExpression.parse("catalog/record[id=1500]/price/text()");
+		final XPathExpression deep_query = XPathExpression.parse(deepPath(5000));
+		System.out.println("Document                                  bytes/node");
+		measure("tree, shallow", new Loader() {
+			@Override
+			public Object load() throws Exception
+			{
+				return XmlElement.parse(shallow);
+			}
+		});
+		measure("arena, shallow", new Loader() {
+			@Override
+			public Object load() throws Exception
+			{
+				return XmlDocumentArena.parse(shallow);
+			}
+		});
+		System.out.println();
+		System.out.println("Scenario                                    ops/s");
+		run("parse, shallow", new Scenario() {
+			@Override
+			public void run() throws Exception
+			{
+				s_sink += XmlElement.parse(shallow).getChildren().size();
+			}
+		});
+		run("parse, shallow, decode bytes first", new Scenario() {
+			@Override
+			public void run() throws Exception
+			{
+				s_sink += XmlElement.parse(new String(shallow_bytes, utf8)).getChildren().size();
+			}
+		});
+		run("parse, shallow, from UTF-8 bytes", new Scenario() {
+			@Override
+			public void run() throws Exception
+			{
+				s_sink += XmlElement.parse(shallow_bytes).getChildren().size();
+			}
+		});
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+		shallow_doc.writeBinary(snapshot);
+		final ByteBuffer shallow_snapshot = ByteBuffer.allocateDirect(snapshot.size());
+		shallow_snapshot.put(snapshot.toByteArray()).flip();
+		run("load, shallow, binary snapshot", new Scenario() {
+			@Override
+			public void run() throws Exception
+			{
+				s_sink += XmlElement.readBinary(shallow_snapshot).getChildren().size();
+			}
+		});
+		final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		run("parse, shallow, parallel", new Scenario() {
+			@Override
+			public void run() throws Exception
+			{
+				s_sink += new XmlParser().parseParallel(shallow, executor).getChildren().size();
+			}
+		});
+		executor.shutdown();
+		run("parse, deep", new Scenario() {
+			@Override
+			public void run() throws Exception
+			{
+				s_sink += XmlElement.parse(deep).getChildren().size();
+			}
+		});
+		run("evaluate, shallow", new Scenario() {
+			@Override
+			public void run()
+			{
+				s_sink += shallow_query.evaluate(shallow_doc).size();
+			}
+		});
+		final XPathPlan shallow_plan = shallow_query.compile();
+		run("evaluate, shallow, compiled", new Scenario() {
+			@Override
+			public void run()
+			{
+				s_sink += shallow_plan.evaluate(shallow_doc).size();
+			}
+		});
+		run("evaluate, shallow (recursive reference)", new Scenario() {
+			@Override
+			public void run()
+			{
+				s_sink += evaluateRecursive(shallow_query.getSegments(), shallow_doc).size();
+			}
+		});
+		run("evaluate, shallow, arena", new Scenario() {
+			@Override
+			public void run()
+			{
+				s_sink += shallow_query.evaluate(shallow_arena.getRoot()).size();
+			}
+		});
+		final XPathExpression first_query = XPathExpression.parse("catalog/record/price/text()");
+		run("first result, shallow (reference)", new Scenario() {
+			@Override
+			public void run()
+			{
+				s_sink += ((TextElement) first_query.evaluate(shallow_doc).iterator().next()).getText().length();
+			}
+		});
+		run("first result, shallow, lazy", new Scenario() {
+			@Override
+			public void run()
+			{
+				s_sink += first_query.evaluateAnyString(shallow_doc).length();
+			}
+		});
+		run("sum of prices, shallow, collection", new Scenario() {
+			@Override
+			public void run()
+			{
+				double sum = 0;
+				for (Number n : first_query.evaluateAsNumbers(shallow_doc))
+				{
+					sum += n.doubleValue();
+				}
+				s_sink += (long) sum;
+			}
+		});
+		run("sum of prices, shallow, array", new Scenario() {
+			@Override
+			public void run()
+			{
+				double sum = 0;
+				for (double n : first_query.evaluateAsDoubles(shallow_doc))
+				{
+					sum += n;
+				}
+				s_sink += (long) sum;
+			}
+		});
+		final double[] price_sum = new double[1];
+		final DoubleCallback price_adder = new DoubleCallback() {
+			@Override
+			public boolean accept(double n)
+			{
+				price_sum[0] += n;
+				return true;
+			}
+		};
+		run("sum of prices, shallow, callback", new Scenario() {
+			@Override
+			public void run()
+			{
+				price_sum[0] = 0;
+				first_query.evaluateAsDoubles(shallow_doc, price_adder);
+				s_sink += (long) price_sum[0];
+			}
+		});
+		run("evaluate, deep", new Scenario() {
+			@Override
+			public void run()
+			{
+				s_sink += deep_query.evaluate(deep_doc).size();
+			}
+		});
+		final XPathPlan deep_plan = deep_query.compile();
+		run("evaluate, deep, compiled", new Scenario() {
+			@Override
+			public void run()
+			{
+				s_sink += deep_plan.evaluate(deep_doc).size();
+			}
+		});
+		run("toString, shallow", new Scenario() {
+			@Override
+			public void run()
+			{
+				s_sink += shallow_doc.toString().length();
+			}
+		});
+		final XmlElement cached_doc = XmlElement.parse(shallow);
+		cached_doc.setCached(true);
+		run("toString, shallow, cached", new Scenario() {
+			@Override
+			public void run()
+			{
+				s_sink += cached_doc.toString().length();
+			}
+		});
+		run("toString, shallow (recursive reference)", new Scenario() {
+			@Override
+			public void run()
+			{
+				s_sink += toStringRecursive(shallow_doc).length();
+			}
+		});
+		final BufferPool pool = new BufferPool();
+		final XmlBufferSerializer serializer = new XmlBufferSerializer(pool);
+		final StringBuilder output = new StringBuilder();
+		run("writeTo, shallow, reused builder", new Scenario() {
+			@Override
+			public void run() throws Exception
+			{
+				output.setLength(0);
+				shallow_doc.writeTo(output);
+				s_sink += output.length();
+			}
+		});
+		final CountingStream stream = new CountingStream();
+		run("writeTo, shallow, UTF-8 stream", new Scenario() {
+			@Override
+			public void run() throws Exception
+			{
+				shallow_doc.writeTo(stream);
+				s_sink += stream.m_count;
+			}
+		});
+		run("getBytes, shallow (reference)", new Scenario() {
+			@Override
+			public void run() throws Exception
+			{
+				ByteBuffer buffer = pool.acquire();
+				byte[] bytes = shallow_doc.toString().getBytes(utf8);
+				if (bytes.length > buffer.capacity())
+				{
+					pool.release(buffer);
+					buffer = ByteBuffer.allocateDirect(bytes.length);
+				}
+				buffer.put(bytes);
+				s_sink += buffer.position();
+				pool.release(buffer);
+			}
+		});
+		run("serialize, shallow, pooled buffers", new Scenario() {
+			@Override
+			public void run() throws Exception
+			{
+				ByteBuffer[] buffers = serializer.serialize(shallow_doc);
+				s_sink += buffers.length;
+				pool.release(buffers);
+			}
+		});
+		run("toString, deep", new Scenario() {
+			@Override
+			public void run()
+			{
+				s_sink += deep_doc.toString().length();
+			}
+		});
+		System.out.println("(" + s_sink + ")");
+	}
+
+	/**
+	 * Runs a scenario and prints its throughput
+	 * @param name The name of the scenario
+	 * @param s The scenario
+	 * @throws Exception If the scenario throws an exception
+	 */
+	protected static void run(String name, Scenario s) throws Exception
+	{
+		// Warm-up
+		long end = System.currentTimeMillis() + s_duration / 2;
+		while (System.currentTimeMillis() < end)
+		{
+			s.run();
+		}
+		long ops = 0;
+		long start = System.nanoTime();
+		end = System.currentTimeMillis() + s_duration;
+		while (System.currentTimeMillis() < end)
+		{
+			s.run();
+			ops++;
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%-40s %9.1f", name, ops / seconds));
+	}
+
+	/**
+	 * Measures the heap space taken by a document, by keeping many copies
+	 * of it in memory, and prints the space per node
+	 * @param name The name of the document
+	 * @param l An object producing a copy of the document
+	 * @throws Exception If producing the document throws an exception
+	 */
+	protected static void measure(String name, Loader l) throws Exception
+	{
+		int copies = 50;
+		Object[] documents = new Object[copies];
+		long before = usedMemory();
+		for (int i = 0; i < copies; i++)
+		{
+			documents[i] = l.load();
+		}
+		long after = usedMemory();
+		s_sink += documents[copies - 1].hashCode();
+		double per_node = (after - before) / (double) copies / s_numNodes;
+		System.out.println(String.format("%-40s %9.1f", name, per_node));
+	}
+
+	/**
+	 * Gets the amount of heap space in use, after garbage collection
+	 * @return The number of bytes
+	 */
+	protected static long usedMemory()
+	{
+		Runtime rt = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++)
+		{
+			System.gc();
+			used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+		}
+		return used;
+	}
+
+	/**
+	 * Generates a wide document with a flat list of records
+	 * @param num_records The number of records
+	 * @return The document
+	 */
+	protected static String generateRecords(int num_records)
+	{
+		StringBuilder out = new StringBuilder();
+		// The root, and 7 elements and 5 text nodes per record
+		s_numNodes = 1 + num_records * 12;
+		out.append("<catalog>\n");
+		for (int i = 0; i < num_records; i++)
+		{
+			out.append("  <record><id>").append(i).append("</id><name>Item number ").append(i)
+			.append("</name><price>").append(i % 100).append(".99</price><tags><tag>a</tag><tag>b</tag></tags></record>\n");
+		}
+		out.append("</catalog>");
+		return out.toString();
+	}
+
+	/**
+	 * Generates a document made of nested elements
+	 * @param depth The nesting depth
+	 * @return The document
+	 */
+	protected static String generateDeep(int depth)
+	{
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < depth; i++)
+		{
+			out.append("<a>");
+		}
+		out.append("leaf");
+		for (int i = 0; i < depth; i++)
+		{
+			out.append("</a>");
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Generates a path leading to the text of the document produced by
+	 * {@link #generateDeep(int)}
+	 * @param depth The nesting depth
+	 * @return The path
+	 */
+	protected static String deepPath(int depth)
+	{
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < depth; i++)
+		{
+			out.append("a/");
+		}
+		out.append("text()");
+		return out.toString();
+	}
+
+	/**
+	 * Recursive evaluation of a path, as done by the original implementation
+	 * of {@link XPathExpression}. This is used as a reference point.
+	 * @param segments The segments of the path
+	 * @param root The element to evaluate the path on
+	 * @return The result
+	 */
+	protected static Collection<XmlElement> evaluateRecursive(List<Segment> segments, XmlElement root)
+	{
+		Collection<XmlElement> result = new ArrayList<XmlElement>();
+		Segment first_segment = segments.get(0);
+		if (first_segment instanceof TextSegment)
+		{
+			if (root instanceof TextElement)
+			{
+				result.add(root);
+			}
+			return result;
+		}
+		if (first_segment.getElementName().compareTo(root.getName()) != 0)
+		{
+			return result;
+		}
+		for (Predicate p : first_segment.getPredicates())
+		{
+			if (!p.evaluate(root))
+			{
+				return result;
+			}
+		}
+		if (segments.size() == 1)
+		{
+			result.add(root);
+			return result;
+		}
+		List<Segment> new_segments = new ArrayList<Segment>(segments);
+		new_segments.remove(0);
+		for (XmlElement child : root.getChildren())
+		{
+			result.addAll(evaluateRecursive(new_segments, child));
+		}
+		return result;
+	}
+
+	/**
+	 * Recursive serialization of an element, as done by the original
+	 * implementation of {@link XmlElement#toString()}. This is used as a
+	 * reference point.
+	 * @param e The element
+	 * @return The string
+	 */
+	protected static String toStringRecursive(XmlElement e)
+	{
+		if (e instanceof TextElement)
+		{
+			return e.toString();
+		}
+		StringBuilder out = new StringBuilder();
+		out.append("<").append(e.getName()).append(">");
+		for (XmlElement child : e.getChildren())
+		{
+			out.append(toStringRecursive(child));
+		}
+		out.append("</").append(e.getName()).append(">");
+		return out.toString();
+	}
+
+	/**
+	 * Output stream that only counts the bytes written to it
+	 */
+	protected static class CountingStream extends OutputStream
+	{
+		/**
+		 * The number of bytes written
+		 */
+		protected long m_count;
+
+		@Override
+		public void write(int b)
+		{
+			m_count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			m_count += len;
+		}
+	}
+
+	/**
+	 * An operation whose throughput is measured
+	 */
+	protected static interface Scenario
+	{
+		public void run() throws Exception;
+	}
+
+	/**
+	 * An object producing a document whose size is measured
+	 */
+	protected static interface Loader
+	{
+		public Object load() throws Exception;
+	}
+}
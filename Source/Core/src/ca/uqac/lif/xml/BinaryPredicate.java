@@ -17,6 +17,13 @@
  */
 package ca.uqac.lif.xml;
 
+/**
+ * Predicate comparing the text of a child element with a constant.
+ * <p>
+ * The setters can be called at any time: expressions that are being
+ * evaluated use copies of their predicates, which are refreshed on the
+ * next evaluation.
+ */
 public abstract class BinaryPredicate extends Predicate
 {
 	/**
@@ -45,7 +52,7 @@ public abstract class BinaryPredicate extends Predicate
 	public BinaryPredicate(String left, String right)
 	{
 		super();
-		m_left = left;
+		m_left = left == null ? null : NameTable.getGlobal().intern(left);
 		m_right = right;
 	}
 	
@@ -59,7 +66,8 @@ public abstract class BinaryPredicate extends Predicate
 		XmlElement good_child = null;
 		for (XmlElement child : root.getChildren())
 		{
-			if (m_left.compareTo(child.getName()) == 0)
+			String name = child.getName();
+			if (NameTable.sameName(m_left, name))
 			{
 				good_child = child;
 				break;
@@ -87,7 +95,8 @@ public abstract class BinaryPredicate extends Predicate
 	 */
 	public void setLeft(String s)
 	{
-		m_left = s;
+		m_left = s == null ? null : NameTable.getGlobal().intern(s);
+		modified();
 	}
 	
 	/**
@@ -106,5 +115,6 @@ public abstract class BinaryPredicate extends Predicate
 	public void setRight(String s)
 	{
 		m_right = s;
+		modified();
 	}
 }
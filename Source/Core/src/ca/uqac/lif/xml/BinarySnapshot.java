@@ -0,0 +1,437 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+
+/**
+ * Binary encoding of a tree of {@link XmlElement}s, which can be loaded
+ * much faster than the equivalent XML text can be parsed. A snapshot is
+ * made of:
+ * <ol>
+ * <li>The four bytes <tt>XLB1</tt></li>
+ * <li>The number of distinct element names, followed by each name</li>
+ * <li>The nodes of the tree, in document order. A text node is written
+ * as 0, followed by its text; an element is written as the index of its
+ * name plus one, followed by its number of children.</li>
+ * </ol>
+ * Numbers are written as unsigned variable-length integers, seven bits
+ * per byte, least significant group first. Strings are written as their
+ * length in bytes, followed by their UTF-8 encoding.
+ * <p>
+ * Reading a snapshot involves no tokenizing: names are read once from the
+ * dictionary, and the lists of children are created with their exact
+ * size. Snapshots can be read from a stream or from a buffer, such as a
+ * file mapped in memory.
+ */
+public class BinarySnapshot
+{
+	/**
+	 * The bytes every snapshot starts with
+	 */
+	protected static final byte[] s_magic = {'X', 'L', 'B', '1'};
+
+	/**
+	 * The size of the buffer used to read and write snapshots
+	 */
+	protected static final int s_bufferSize = 8192;
+
+	/**
+	 * The buffer holding the bytes being read
+	 */
+	protected byte[] m_buffer;
+
+	/**
+	 * The position of the next byte to read in the buffer
+	 */
+	protected int m_position;
+
+	/**
+	 * The position after the last byte available in the buffer
+	 */
+	protected int m_limit;
+
+	/**
+	 * The stream the bytes are read from, if any
+	 */
+	protected /*@Nullable*/ InputStream m_in;
+
+	/**
+	 * The buffer the bytes are copied from, if any
+	 */
+	protected /*@Nullable*/ ByteBuffer m_source;
+
+	/**
+	 * Creates a reader
+	 */
+	protected BinarySnapshot()
+	{
+		super();
+	}
+
+	/**
+	 * Writes a snapshot of a tree
+	 * @param root The root of the tree
+	 * @param os The stream to write to. The stream is flushed, but not
+	 * closed.
+	 * @throws IOException If writing to the stream failed
+	 */
+	public static void write(/*@NonNull*/ XmlElement root, /*@NonNull*/ OutputStream os) throws IOException
+	{
+		// The dictionary is written first, hence a first walk to collect it
+		Map<String,Integer> ids = new HashMap<String,Integer>();
+		List<String> names = new ArrayList<String>();
+		List<XmlElement> elements = new ArrayList<XmlElement>();
+		if (!(root instanceof TextElement))
+		{
+			elements.add(root);
+		}
+		while (!elements.isEmpty())
+		{
+			XmlElement e = elements.remove(elements.size() - 1);
+			if (!ids.containsKey(e.getName()))
+			{
+				ids.put(e.getName(), names.size());
+				names.add(e.getName());
+			}
+			for (XmlElement child : e.getChildren())
+			{
+				if (!(child instanceof TextElement))
+				{
+					elements.add(child);
+				}
+			}
+		}
+		Utf8Writer out = new Utf8Writer(os, s_bufferSize);
+		byte[] scratch = new byte[5];
+		out.writeBytes(s_magic, 0, s_magic.length);
+		writeNumber(out, scratch, names.size());
+		for (String name : names)
+		{
+			writeString(out, scratch, name);
+		}
+		// Nodes are written in document order, with an explicit stack of the
+		// children that remain to be written
+		List<List<XmlElement>> lists = new ArrayList<List<XmlElement>>();
+		List<XmlElement> top_list = new ArrayList<XmlElement>(1);
+		top_list.add(root);
+		lists.add(top_list);
+		int[] positions = new int[16];
+		positions[0] = 0;
+		while (!lists.isEmpty())
+		{
+			int top = lists.size() - 1;
+			List<XmlElement> list = lists.get(top);
+			int position = positions[top];
+			if (position == list.size())
+			{
+				lists.remove(top);
+				continue;
+			}
+			positions[top] = position + 1;
+			XmlElement e = list.get(position);
+			if (e instanceof TextElement)
+			{
+				writeNumber(out, scratch, 0);
+				writeString(out, scratch, ((TextElement) e).getText());
+				continue;
+			}
+			List<XmlElement> children = e.getChildren();
+			writeNumber(out, scratch, ids.get(e.getName()) + 1);
+			writeNumber(out, scratch, children.size());
+			if (top + 1 == positions.length)
+			{
+				int[] new_positions = new int[positions.length * 2];
+				System.arraycopy(positions, 0, new_positions, 0, positions.length);
+				positions = new_positions;
+			}
+			positions[top + 1] = 0;
+			lists.add(children);
+		}
+		out.finish();
+	}
+
+	/**
+	 * Reads a snapshot from a stream
+	 * @param is The stream to read from. The stream is not closed, and
+	 * bytes after the end of the snapshot may have been read from it.
+	 * @return The root of the tree
+	 * @throws XmlParseException If the bytes are not a valid snapshot
+	 * @throws IOException If reading from the stream failed
+	 */
+	public static /*@NonNull*/ XmlElement read(/*@NonNull*/ InputStream is) throws XmlParseException, IOException
+	{
+		BinarySnapshot reader = new BinarySnapshot();
+		reader.m_in = is;
+		reader.m_buffer = new byte[s_bufferSize];
+		return reader.readTree();
+	}
+
+	/**
+	 * Reads a snapshot from a buffer
+	 * @param buffer The buffer. The snapshot is read from the position of
+	 * the buffer, which is left unchanged.
+	 * @return The root of the tree
+	 * @throws XmlParseException If the bytes are not a valid snapshot
+	 */
+	public static /*@NonNull*/ XmlElement read(/*@NonNull*/ ByteBuffer buffer) throws XmlParseException
+	{
+		BinarySnapshot reader = new BinarySnapshot();
+		if (buffer.hasArray())
+		{
+			// Heap buffers are read in place
+			reader.m_buffer = buffer.array();
+			reader.m_position = buffer.arrayOffset() + buffer.position();
+			reader.m_limit = buffer.arrayOffset() + buffer.limit();
+		}
+		else
+		{
+			reader.m_source = buffer.duplicate();
+			reader.m_buffer = new byte[s_bufferSize];
+		}
+		try
+		{
+			return reader.readTree();
+		}
+		catch (IOException e)
+		{
+			// Cannot happen when reading from memory
+			throw new XmlParseException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads a whole snapshot
+	 * @return The root of the tree
+	 * @throws XmlParseException If the bytes are not a valid snapshot
+	 * @throws IOException If reading from the input failed
+	 */
+	protected /*@NonNull*/ XmlElement readTree() throws XmlParseException, IOException
+	{
+		require(s_magic.length);
+		for (int i = 0; i < s_magic.length; i++)
+		{
+			if (m_buffer[m_position + i] != s_magic[i])
+			{
+				throw new XmlParseException("Not a snapshot");
+			}
+		}
+		m_position += s_magic.length;
+		int num_names = readNumber();
+		List<String> name_list = new ArrayList<String>(Math.min(num_names, NameTable.s_defaultMaxSize));
+		NameTable table = NameTable.getGlobal();
+		for (int i = 0; i < num_names; i++)
+		{
+			name_list.add(table.intern(readString()));
+		}
+		String[] names = name_list.toArray(new String[num_names]);
+		XmlElement root = null;
+		XmlElement[] elements = new XmlElement[16];
+		int[] remaining = new int[16];
+		int top = -1;
+		do
+		{
+			XmlElement e;
+			int num_children = 0;
+			int id = readNumber();
+			if (id == 0)
+			{
+				e = new TextElement(readString());
+			}
+			else
+			{
+				if (id > num_names)
+				{
+					throw new XmlParseException("Invalid name in snapshot");
+				}
+				e = new XmlElement(names[id - 1]);
+				num_children = readNumber();
+				// A corrupted count must not make the reader allocate too much
+				e.reserveChildren(Math.min(num_children, 65536));
+			}
+			if (top < 0)
+			{
+				root = e;
+			}
+			else
+			{
+				elements[top].appendChild(e);
+				remaining[top]--;
+			}
+			if (num_children > 0)
+			{
+				top++;
+				if (top == elements.length)
+				{
+					XmlElement[] new_elements = new XmlElement[elements.length * 2];
+					System.arraycopy(elements, 0, new_elements, 0, elements.length);
+					elements = new_elements;
+					int[] new_remaining = new int[remaining.length * 2];
+					System.arraycopy(remaining, 0, new_remaining, 0, remaining.length);
+					remaining = new_remaining;
+				}
+				elements[top] = e;
+				remaining[top] = num_children;
+			}
+			// Leave the elements whose children have all been read
+			while (top >= 0 && remaining[top] == 0)
+			{
+				elements[top] = null;
+				top--;
+			}
+		} while (top >= 0);
+		return root;
+	}
+
+	/**
+	 * Reads a number
+	 * @return The number
+	 * @throws XmlParseException If the number is not valid
+	 * @throws IOException If reading from the input failed
+	 */
+	protected int readNumber() throws XmlParseException, IOException
+	{
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7)
+		{
+			if (m_position == m_limit)
+			{
+				require(1);
+			}
+			int b = m_buffer[m_position++];
+			if (shift == 28 && (b & 0xF8) != 0)
+			{
+				// The number does not fit in a non-negative int
+				break;
+			}
+			value |= (b & 0x7F) << shift;
+			if (b >= 0)
+			{
+				return value;
+			}
+		}
+		throw new XmlParseException("Invalid number in snapshot");
+	}
+
+	/**
+	 * Reads a string
+	 * @return The string
+	 * @throws XmlParseException If the string is not valid
+	 * @throws IOException If reading from the input failed
+	 */
+	protected /*@NonNull*/ String readString() throws XmlParseException, IOException
+	{
+		int length = readNumber();
+		require(length);
+		String s = new String(m_buffer, m_position, length, Utf8Tokenizer.s_utf8);
+		m_position += length;
+		return s;
+	}
+
+	/**
+	 * Makes sure that a number of bytes are available in the buffer,
+	 * reading more of them from the input if needed
+	 * @param length The number of bytes
+	 * @throws XmlParseException If the input ends before
+	 * @throws IOException If reading from the input failed
+	 */
+	protected void require(int length) throws XmlParseException, IOException
+	{
+		int available = m_limit - m_position;
+		if (available >= length)
+		{
+			return;
+		}
+		if (m_in == null && m_source == null)
+		{
+			throw new XmlParseException("Unexpected end of snapshot");
+		}
+		byte[] buffer = m_buffer;
+		if (length > buffer.length)
+		{
+			buffer = new byte[Math.max(length, 2 * buffer.length)];
+		}
+		System.arraycopy(m_buffer, m_position, buffer, 0, available);
+		m_buffer = buffer;
+		m_position = 0;
+		m_limit = available;
+		while (m_limit < length)
+		{
+			int n;
+			if (m_in != null)
+			{
+				n = m_in.read(buffer, m_limit, buffer.length - m_limit);
+			}
+			else
+			{
+				n = Math.min(m_source.remaining(), buffer.length - m_limit);
+				m_source.get(buffer, m_limit, n);
+				if (n == 0)
+				{
+					n = -1;
+				}
+			}
+			if (n < 0)
+			{
+				throw new XmlParseException("Unexpected end of snapshot");
+			}
+			m_limit += n;
+		}
+	}
+
+	/**
+	 * Writes a number
+	 * @param out The writer to write to
+	 * @param scratch An array of at least five bytes
+	 * @param value The number, which must not be negative
+	 * @throws IOException If writing failed
+	 */
+	protected static void writeNumber(/*@NonNull*/ Utf8Writer out, /*@NonNull*/ byte[] scratch, int value) throws IOException
+	{
+		int length = 0;
+		while (value >= 0x80)
+		{
+			scratch[length++] = (byte) (value | 0x80);
+			value >>>= 7;
+		}
+		scratch[length++] = (byte) value;
+		out.writeBytes(scratch, 0, length);
+	}
+
+	/**
+	 * Writes a string
+	 * @param out The writer to write to
+	 * @param scratch An array of at least five bytes
+	 * @param s The string
+	 * @throws IOException If writing failed
+	 */
+	protected static void writeString(/*@NonNull*/ Utf8Writer out, /*@NonNull*/ byte[] scratch, /*@NonNull*/ String s) throws IOException
+	{
+		writeNumber(out, scratch, Utf8Writer.encodedLength(s));
+		out.append(s);
+	}
+}
@@ -0,0 +1,163 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pool of byte buffers of a fixed size. Allocating a direct buffer is
+ * much more costly than allocating an array, and its memory is only
+ * reclaimed late by the garbage collector; buffers that are used to
+ * write to a channel are hence better reused. The pool keeps at most a
+ * fixed number of free buffers, so that a burst of large documents does
+ * not hold on to memory forever.
+ * <p>
+ * A pool can be shared by any number of threads.
+ */
+public class BufferPool
+{
+	/**
+	 * The default size of the buffers
+	 */
+	public static final int s_defaultBufferSize = 16384;
+
+	/**
+	 * The default maximum number of free buffers kept in a pool
+	 */
+	public static final int s_defaultMaxFree = 64;
+
+	/**
+	 * The free buffers
+	 */
+	private final Deque<ByteBuffer> m_free;
+
+	/**
+	 * The size of the buffers
+	 */
+	private final int m_bufferSize;
+
+	/**
+	 * The maximum number of free buffers kept
+	 */
+	private final int m_maxFree;
+
+	/**
+	 * Whether the buffers are direct
+	 */
+	private final boolean m_direct;
+
+	/**
+	 * Creates a pool of direct buffers with the default size
+	 */
+	public BufferPool()
+	{
+		this(s_defaultBufferSize, s_defaultMaxFree, true);
+	}
+
+	/**
+	 * Creates a pool
+	 * @param buffer_size The size of the buffers, in bytes
+	 * @param max_free The maximum number of free buffers kept
+	 * @param direct Whether to allocate direct buffers
+	 */
+	public BufferPool(int buffer_size, int max_free, boolean direct)
+	{
+		super();
+		m_free = new ArrayDeque<ByteBuffer>();
+		m_bufferSize = buffer_size;
+		m_maxFree = max_free;
+		m_direct = direct;
+	}
+
+	/**
+	 * Gets a buffer from the pool, or allocates a new one if the pool is
+	 * empty
+	 * @return The buffer, cleared
+	 */
+	public /*@NonNull*/ ByteBuffer acquire()
+	{
+		ByteBuffer buffer;
+		synchronized (m_free)
+		{
+			buffer = m_free.pollFirst();
+		}
+		if (buffer != null)
+		{
+			return buffer;
+		}
+		return m_direct ? ByteBuffer.allocateDirect(m_bufferSize) : ByteBuffer.allocate(m_bufferSize);
+	}
+
+	/**
+	 * Gives a buffer back to the pool. The buffer must not be used any more
+	 * by the caller.
+	 * @param buffer The buffer. Buffers that do not come from this pool are
+	 * ignored.
+	 */
+	public void release(/*@NonNull*/ ByteBuffer buffer)
+	{
+		if (buffer.capacity() != m_bufferSize || buffer.isDirect() != m_direct)
+		{
+			return;
+		}
+		buffer.clear();
+		synchronized (m_free)
+		{
+			if (m_free.size() < m_maxFree)
+			{
+				m_free.addFirst(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Gives buffers back to the pool
+	 * @param buffers The buffers
+	 * @see #release(ByteBuffer)
+	 */
+	public void release(/*@NonNull*/ ByteBuffer[] buffers)
+	{
+		for (ByteBuffer buffer : buffers)
+		{
+			release(buffer);
+		}
+	}
+
+	/**
+	 * Gets the size of the buffers of this pool
+	 * @return The size, in bytes
+	 */
+	public int getBufferSize()
+	{
+		return m_bufferSize;
+	}
+
+	/**
+	 * Gets the number of free buffers in the pool
+	 * @return The number of buffers
+	 */
+	public int getFreeCount()
+	{
+		synchronized (m_free)
+		{
+			return m_free.size();
+		}
+	}
+}
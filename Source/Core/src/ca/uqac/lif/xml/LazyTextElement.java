@@ -0,0 +1,132 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Text element whose contents are a region of the document it was parsed
+ * from. The text is only copied into a string the first time
+ * {@link #getText()} is called, or when the element is explicitly
+ * {@link #detach() detached} from the document.
+ * <p>
+ * As long as it is not detached, the element keeps a reference to the
+ * whole source document, which cannot be reclaimed by the garbage
+ * collector. Elements that are meant to outlive the document should
+ * hence be detached.
+ */
+public class LazyTextElement extends TextElement
+{
+	/**
+	 * The document the text comes from, or null once the element has been
+	 * detached
+	 */
+	private /*@Nullable*/ CharSequence m_source;
+
+	/**
+	 * The position of the text in the source
+	 */
+	private final int m_start;
+
+	/**
+	 * The length of the text
+	 */
+	private final int m_length;
+
+	/**
+	 * The text, once it has been copied from the source
+	 */
+	private /*@Nullable*/ String m_copy;
+
+	/**
+	 * Creates a new text element
+	 * @param source The document the text comes from
+	 * @param start The position of the text in the source
+	 * @param length The length of the text
+	 */
+	public LazyTextElement(/*@NonNull*/ CharSequence source, int start, int length)
+	{
+		super(null);
+		m_source = source;
+		m_start = start;
+		m_length = length;
+	}
+
+	@Override
+	public /*@NonNull*/ String getText()
+	{
+		String copy = m_copy;
+		if (copy == null)
+		{
+			// Concurrent calls may both make the copy, but see the same text
+			copy = m_source.subSequence(m_start, m_start + m_length).toString();
+			m_copy = copy;
+		}
+		return copy;
+	}
+
+	@Override
+	public void writeTo(/*@NonNull*/ Appendable out) throws IOException
+	{
+		CharSequence source = m_source;
+		if (m_copy != null || source == null)
+		{
+			out.append(getText());
+		}
+		else if (out instanceof Writer && source instanceof String)
+		{
+			// Writers copy the region of a sequence into a new string
+			((Writer) out).write((String) source, m_start, m_length);
+		}
+		else
+		{
+			out.append(source, m_start, m_start + m_length);
+		}
+	}
+
+	/**
+	 * Gets the length of the text, without copying it
+	 * @return The length
+	 */
+	public int length()
+	{
+		return m_length;
+	}
+
+	/**
+	 * Copies the text out of the source document, and releases the
+	 * reference to that document
+	 * @return This element
+	 */
+	public LazyTextElement detach()
+	{
+		getText();
+		m_source = null;
+		return this;
+	}
+
+	/**
+	 * Checks whether the element still refers to the source document
+	 * @return true if the element has not been detached, false otherwise
+	 */
+	public boolean isAttached()
+	{
+		return m_source != null;
+	}
+}
@@ -0,0 +1,226 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.io.IOException;
+import java.util.List;
+
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+import ca.uqac.lif.xml.XmlTokenizer.Token;
+
+/**
+ * XML element whose children are only parsed when they are first
+ * needed. The element only records where its contents start and end in
+ * the source document; the first call to {@link #getChildren()} (or to
+ * any method that depends on it) parses these contents into children,
+ * which are themselves lazy elements. Parts of a document that are never
+ * visited are therefore never built.
+ * <p>
+ * Such elements are produced by an {@link XmlParser} whose
+ * {@link XmlParser#setLazyElements(boolean) lazy mode} is enabled. Since
+ * the parser checks the whole document when it is first read, parsing
+ * the contents of an element later on cannot fail. Apart from the time
+ * at which its children are created, a lazy element behaves exactly like
+ * one produced by the normal parser.
+ */
+public class LazyXmlElement extends XmlElement
+{
+	/**
+	 * The tokenizer of each thread, reused to parse the contents of every
+	 * lazy element. Parsing the contents of an element never parses those
+	 * of another one, so a single tokenizer per thread is enough.
+	 */
+	private static final ThreadLocal<XmlTokenizer> s_tokenizers = new ThreadLocal<XmlTokenizer>() {
+		@Override
+		protected XmlTokenizer initialValue()
+		{
+			return new XmlTokenizer("");
+		}
+	};
+
+	/**
+	 * The document the element comes from, or null once the children
+	 * have been parsed
+	 */
+	private /*@Nullable*/ CharSequence m_source;
+
+	/**
+	 * The position in the source where the contents of the element start
+	 */
+	private final int m_start;
+
+	/**
+	 * The position in the source where the contents of the element end
+	 */
+	private final int m_end;
+
+	/**
+	 * Whether text nodes are created as {@link LazyTextElement}s
+	 */
+	private final boolean m_lazyText;
+
+	/**
+	 * The table in which the names of the children are looked up, if any
+	 */
+	private final /*@Nullable*/ NameTable m_names;
+
+	/**
+	 * Whether the children of the element have been parsed
+	 */
+	private volatile boolean m_parsed;
+
+	/**
+	 * Creates a new lazy element
+	 * @param name The name of the element
+	 * @param source The document the element comes from
+	 * @param start The position in the source where the contents of the
+	 * element start
+	 * @param end The position in the source where the contents of the
+	 * element end
+	 * @param lazy_text Whether text nodes are created as
+	 * {@link LazyTextElement}s
+	 */
+	public LazyXmlElement(/*@NonNull*/ String name, /*@NonNull*/ CharSequence source, int start, int end, boolean lazy_text)
+	{
+		this(name, source, start, end, lazy_text, null);
+	}
+
+	/**
+	 * Creates a new lazy element
+	 * @param name The name of the element
+	 * @param source The document the element comes from
+	 * @param start The position in the source where the contents of the
+	 * element start
+	 * @param end The position in the source where the contents of the
+	 * element end
+	 * @param lazy_text Whether text nodes are created as
+	 * {@link LazyTextElement}s
+	 * @param names The table in which the names of the children are looked
+	 * up, or null to give each child its own copy of its name
+	 */
+	public LazyXmlElement(/*@NonNull*/ String name, /*@NonNull*/ CharSequence source, int start, int end, boolean lazy_text, /*@Nullable*/ NameTable names)
+	{
+		super(name);
+		m_source = source;
+		m_start = start;
+		m_end = end;
+		m_lazyText = lazy_text;
+		m_names = names;
+		m_parsed = false;
+	}
+
+	@Override
+	public /*@NonNull*/ List<XmlElement> getChildren()
+	{
+		if (!m_parsed)
+		{
+			parseChildren();
+		}
+		return super.getChildren();
+	}
+
+	@Override
+	public XmlElement addChild(XmlElement e)
+	{
+		if (!m_parsed)
+		{
+			parseChildren();
+		}
+		return super.addChild(e);
+	}
+
+	/**
+	 * Checks whether the children of the element have been parsed
+	 * @return true if they have been parsed, false otherwise
+	 */
+	public boolean isParsed()
+	{
+		return m_parsed;
+	}
+
+	/**
+	 * Gets the tokenizer used by the current thread to parse the contents
+	 * of lazy elements
+	 * @return The tokenizer
+	 */
+	protected static /*@NonNull*/ XmlTokenizer getTokenizer()
+	{
+		return s_tokenizers.get();
+	}
+
+	/**
+	 * Parses the contents of the element into children
+	 */
+	protected synchronized void parseChildren()
+	{
+		if (m_parsed)
+		{
+			return;
+		}
+		CharSequence source = m_source;
+		XmlTokenizer tokenizer = getTokenizer().reset(source, m_start, m_end);
+		try
+		{
+			Token t;
+			while ((t = tokenizer.next()) != Token.EOF)
+			{
+				if (t == Token.TEXT)
+				{
+					if (m_lazyText)
+					{
+						appendChild(new LazyTextElement(source, (int) tokenizer.getTokenOffset(), tokenizer.getTokenLength()));
+					}
+					else
+					{
+						appendChild(new TextElement(tokenizer.getText()));
+					}
+				}
+				else
+				{
+					String name = XmlParser.getName(tokenizer, m_names);
+					int start = (int) tokenizer.getPosition();
+					while (tokenizer.next() != Token.END || tokenizer.getDepth() > 0)
+					{
+						// Skip the contents of the child
+					}
+					// The token is the name in the closing tag, after "</"
+					int end = (int) tokenizer.getTokenOffset() - 2;
+					appendChild(new LazyXmlElement(name, source, start, end, m_lazyText, m_names));
+				}
+			}
+		}
+		catch (XmlParseException e)
+		{
+			// Cannot happen, as the document has been checked beforehand
+			throw new IllegalStateException(e.getMessage());
+		}
+		catch (IOException e)
+		{
+			// Cannot happen when reading from memory
+			throw new IllegalStateException(e.getMessage());
+		}
+		finally
+		{
+			// Do not keep the document alive through the tokenizer
+			tokenizer.reset();
+		}
+		trimChildren();
+		m_source = null;
+		m_parsed = true;
+	}
+}
@@ -0,0 +1,200 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Tokenizer reading from a file mapped in memory. The file is mapped
+ * in windows of {@link #s_defaultWindowSize} bytes or less, which are
+ * decoded directly into the tokenizer's character buffer; the contents
+ * of the file are therefore never copied into the Java heap as a whole.
+ * Files larger than what a single {@link java.nio.MappedByteBuffer} can
+ * hold are supported.
+ * <p>
+ * Giving the tokenizer characters, through
+ * {@link #reset(CharSequence, int, int)} or {@link #reset(Reader)},
+ * makes it behave like an {@link XmlTokenizer}; the file is then no
+ * longer read.
+ */
+public class MappedTokenizer extends XmlTokenizer
+{
+	/**
+	 * The default maximum number of bytes mapped at the same time
+	 */
+	public static final long s_defaultWindowSize = 1L << 28;
+
+	/**
+	 * The maximum number of bytes mapped at the same time
+	 */
+	protected final long m_windowSize;
+
+	/**
+	 * The channel to read from
+	 */
+	protected final FileChannel m_channel;
+
+	/**
+	 * The size of the file
+	 */
+	protected final long m_size;
+
+	/**
+	 * The decoder used to convert bytes into characters
+	 */
+	protected final CharsetDecoder m_decoder;
+
+	/**
+	 * The window of the file currently mapped, or null if the tokenizer
+	 * reads characters instead of the file
+	 */
+	protected ByteBuffer m_bytes;
+
+	/**
+	 * The position in the file of the first byte of the window
+	 */
+	protected long m_windowStart;
+
+	/**
+	 * Whether the decoder has been flushed at the end of the file
+	 */
+	protected boolean m_flushed;
+
+	/**
+	 * Creates a tokenizer reading a file in UTF-8
+	 * @param channel The channel to read from. The file is read from its
+	 * start, regardless of the current position of the channel.
+	 * @throws IOException If mapping the file failed
+	 */
+	public MappedTokenizer(/*@NonNull*/ FileChannel channel) throws IOException
+	{
+		this(channel, Charset.forName("UTF-8"));
+	}
+
+	/**
+	 * Creates a tokenizer reading a file
+	 * @param channel The channel to read from. The file is read from its
+	 * start, regardless of the current position of the channel.
+	 * @param charset The character set used to decode the file
+	 * @throws IOException If mapping the file failed
+	 */
+	public MappedTokenizer(/*@NonNull*/ FileChannel channel, /*@NonNull*/ Charset charset) throws IOException
+	{
+		this(channel, charset, s_defaultWindowSize);
+	}
+
+	/**
+	 * Creates a tokenizer reading a file
+	 * @param channel The channel to read from. The file is read from its
+	 * start, regardless of the current position of the channel.
+	 * @param charset The character set used to decode the file
+	 * @param window_size The maximum number of bytes mapped at the same time
+	 * @throws IOException If mapping the file failed
+	 */
+	public MappedTokenizer(/*@NonNull*/ FileChannel channel, /*@NonNull*/ Charset charset, long window_size) throws IOException
+	{
+		super(s_defaultBufferSize);
+		m_windowSize = Math.max(window_size, 16);
+		m_channel = channel;
+		m_size = channel.size();
+		m_decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		map(0);
+	}
+
+	@Override
+	public XmlTokenizer reset(/*@NonNull*/ CharSequence s, int start, int end)
+	{
+		m_bytes = null;
+		return super.reset(s, start, end);
+	}
+
+	@Override
+	public XmlTokenizer reset(/*@NonNull*/ Reader r)
+	{
+		m_bytes = null;
+		return super.reset(r);
+	}
+
+	/**
+	 * Maps a new window of the file
+	 * @param start The position in the file where the window starts
+	 * @throws IOException If mapping the file failed
+	 */
+	protected void map(long start) throws IOException
+	{
+		m_windowStart = start;
+		m_bytes = m_channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(m_windowSize, m_size - start));
+	}
+
+	@Override
+	protected int fill(/*@NonNull*/ char[] buffer, int offset, int length) throws IOException
+	{
+		if (m_bytes == null)
+		{
+			return super.fill(buffer, offset, length);
+		}
+		if (m_flushed)
+		{
+			return -1;
+		}
+		CharBuffer out = CharBuffer.wrap(buffer, offset, length);
+		while (out.position() == offset)
+		{
+			boolean last = m_windowStart + m_bytes.limit() >= m_size;
+			CoderResult result = m_decoder.decode(m_bytes, out, last);
+			if (result.isError())
+			{
+				result.throwException();
+			}
+			if (out.position() > offset)
+			{
+				break;
+			}
+			if (result.isOverflow())
+			{
+				// No room for the next character, such as a surrogate pair
+				// when a single slot is left
+				return 0;
+			}
+			if (last)
+			{
+				m_decoder.flush(out);
+				m_flushed = true;
+				if (out.position() == offset)
+				{
+					return -1;
+				}
+				break;
+			}
+			// Start the next window at the first byte not yet decoded, which
+			// may be part of a character split across two windows
+			map(m_windowStart + m_bytes.position());
+		}
+		return out.position() - offset;
+	}
+}
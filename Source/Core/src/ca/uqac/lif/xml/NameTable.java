@@ -0,0 +1,299 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Symbol table of element names. The parser looks up each name it reads
+ * in such a table, directly from its character buffer; all the elements
+ * with the same name then share a single string, instead of each holding
+ * a copy of its own. Since the names in {@link XPathExpression}s are also
+ * taken from the {@link #getGlobal() global table}, comparing names most
+ * often amounts to comparing references.
+ * <p>
+ * A table holds at most a fixed number of names, so that documents with
+ * an unbounded variety of names cannot make it grow indefinitely. Once
+ * the table is full, names that are not already in it are returned as
+ * new strings. Callers must therefore never rely on two equal names
+ * being the same object: identity is only a fast path, followed by a
+ * comparison of the hash codes that strings keep once computed (see
+ * {@link #sameName(String, String)}).
+ * <p>
+ * A table can be shared by any number of threads without locking. Each
+ * name is added with an atomic operation, so that two threads adding the
+ * same name at the same time end up with the same string.
+ */
+public class NameTable
+{
+	/**
+	 * The default maximum number of names in a table
+	 */
+	public static final int s_defaultMaxSize = 4096;
+
+	/**
+	 * The table shared by default by all parsers and expressions
+	 */
+	private static final NameTable s_global = new NameTable();
+
+	/**
+	 * The names, stored by open addressing. The array is always at least
+	 * twice as large as the maximum number of names, so that a search
+	 * always ends on an empty slot.
+	 */
+	private final AtomicReferenceArray<String> m_names;
+
+	/**
+	 * The maximum number of names in the table
+	 */
+	private final int m_maxSize;
+
+	/**
+	 * The number of names in the table, including those about to be added
+	 */
+	private final AtomicInteger m_size;
+
+	/**
+	 * Creates a table with the default maximum size
+	 */
+	public NameTable()
+	{
+		this(s_defaultMaxSize);
+	}
+
+	/**
+	 * Creates a table
+	 * @param max_size The maximum number of names in the table
+	 */
+	public NameTable(int max_size)
+	{
+		super();
+		int capacity = 16;
+		while (capacity < 2 * max_size)
+		{
+			capacity *= 2;
+		}
+		m_names = new AtomicReferenceArray<String>(capacity);
+		m_maxSize = max_size;
+		m_size = new AtomicInteger(0);
+	}
+
+	/**
+	 * Gets the table shared by default by all parsers and expressions
+	 * @return The table
+	 */
+	public static /*@NonNull*/ NameTable getGlobal()
+	{
+		return s_global;
+	}
+
+	/**
+	 * Gets the string for a name held in a character array
+	 * @param buffer The array
+	 * @param start The position of the name in the array
+	 * @param length The length of the name
+	 * @return The string from the table if the name is in it, a new string
+	 * otherwise
+	 */
+	public /*@NonNull*/ String intern(/*@NonNull*/ char[] buffer, int start, int length)
+	{
+		int hash = 0;
+		for (int i = 0; i < length; i++)
+		{
+			hash = 31 * hash + buffer[start + i];
+		}
+		AtomicReferenceArray<String> names = m_names;
+		int mask = names.length() - 1;
+		int index = mix(hash) & mask;
+		while (true)
+		{
+			String s = names.get(index);
+			if (s == null)
+			{
+				String name = new String(buffer, start, length);
+				if (!reserve())
+				{
+					return name;
+				}
+				if ((s = add(index, name)) == name)
+				{
+					return name;
+				}
+			}
+			if (s.length() == length && s.hashCode() == hash && sameChars(s, buffer, start))
+			{
+				return s;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	/**
+	 * Gets the string for a name
+	 * @param name The name
+	 * @return The string from the table if the name is in it, a new string
+	 * (or <tt>name</tt> itself if it is a string) otherwise
+	 */
+	public /*@NonNull*/ String intern(/*@NonNull*/ CharSequence name)
+	{
+		int length = name.length();
+		int hash = 0;
+		for (int i = 0; i < length; i++)
+		{
+			hash = 31 * hash + name.charAt(i);
+		}
+		AtomicReferenceArray<String> names = m_names;
+		int mask = names.length() - 1;
+		int index = mix(hash) & mask;
+		while (true)
+		{
+			String s = names.get(index);
+			if (s == null)
+			{
+				String new_name = name.toString();
+				if (!reserve())
+				{
+					return new_name;
+				}
+				if ((s = add(index, new_name)) == new_name)
+				{
+					return new_name;
+				}
+			}
+			if (s.length() == length && s.hashCode() == hash && s.contentEquals(name))
+			{
+				return s;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	/**
+	 * Checks whether two names are equal. Names taken from the same table
+	 * are equal only if they are the same string, and strings keep their
+	 * hash code once it has been computed: two different names are
+	 * therefore most often told apart without comparing their characters.
+	 * @param name The first name
+	 * @param other The second name
+	 * @return true if the names are equal, false otherwise
+	 */
+	static boolean sameName(/*@NonNull*/ String name, /*@Nullable*/ String other)
+	{
+		return name == other || (other != null && name.hashCode() == other.hashCode() && name.equals(other));
+	}
+
+	/**
+	 * Gets the number of names in the table
+	 * @return The number of names
+	 */
+	public int size()
+	{
+		return m_size.get();
+	}
+
+	/**
+	 * Gets the maximum number of names in the table
+	 * @return The maximum number of names
+	 */
+	public int getMaxSize()
+	{
+		return m_maxSize;
+	}
+
+	/**
+	 * Removes all the names from the table. Elements and expressions that
+	 * use the strings of the table are not affected. This method should not
+	 * be called while other threads are using the table.
+	 */
+	public void clear()
+	{
+		for (int i = 0; i < m_names.length(); i++)
+		{
+			m_names.set(i, null);
+		}
+		m_size.set(0);
+	}
+
+	/**
+	 * Reserves room for a new name, if the table is not full
+	 * @return true if room was reserved, false if the table is full
+	 */
+	private boolean reserve()
+	{
+		int size;
+		do
+		{
+			size = m_size.get();
+			if (size >= m_maxSize)
+			{
+				return false;
+			}
+		} while (!m_size.compareAndSet(size, size + 1));
+		return true;
+	}
+
+	/**
+	 * Puts a name in an empty slot, for which room has been reserved
+	 * @param index The slot
+	 * @param name The name
+	 * @return The name, or the one another thread put in the slot first,
+	 * in which case the room reserved is given back
+	 */
+	private /*@NonNull*/ String add(int index, /*@NonNull*/ String name)
+	{
+		if (m_names.compareAndSet(index, null, name))
+		{
+			return name;
+		}
+		m_size.decrementAndGet();
+		return m_names.get(index);
+	}
+
+	/**
+	 * Checks whether a string has the same characters as a region of an
+	 * array of the same length
+	 * @param s The string
+	 * @param buffer The array
+	 * @param start The position of the region in the array
+	 * @return true if the characters are the same, false otherwise
+	 */
+	private static boolean sameChars(/*@NonNull*/ String s, /*@NonNull*/ char[] buffer, int start)
+	{
+		for (int i = 0; i < s.length(); i++)
+		{
+			if (s.charAt(i) != buffer[start + i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Spreads the bits of a hash code, so that names that differ only by
+	 * their last characters do not end up in neighbouring slots
+	 * @param hash The hash code
+	 * @return The new hash code
+	 */
+	private static int mix(int hash)
+	{
+		hash ^= (hash >>> 20) ^ (hash >>> 12);
+		return hash ^ (hash >>> 7) ^ (hash >>> 4);
+	}
+}
@@ -0,0 +1,485 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+/**
+ * Parses numbers from text without allocating any object. The parser
+ * reads the longest prefix of a string that forms a number, in the
+ * format read by {@link java.text.NumberFormat} for English: an optional
+ * minus sign, digits possibly separated by commas, an optional decimal
+ * point followed by digits, and an optional exponent. Any text after the
+ * number is ignored, so that <tt>12 kg</tt> reads as 12. The string
+ * <tt>NaN</tt> is also accepted.
+ * <p>
+ * Unlike a number format, the parser does not depend on the default
+ * locale, and can be used by any number of threads at the same time.
+ * Typical values are converted directly into a <code>long</code> or a
+ * correctly rounded <code>double</code>; only numbers with more than 18
+ * significant digits or a large exponent go through
+ * {@link Double#parseDouble(String)}.
+ */
+public class NumberParser
+{
+	/**
+	 * Value returned by {@link #negatedMagnitude(CharSequence, int)} when
+	 * a number is not an integer that fits in a <code>long</code>. Negated
+	 * magnitudes are never positive, so it cannot be mistaken for a
+	 * value.
+	 */
+	private static final long s_inexact = 1;
+
+	/**
+	 * The largest mantissa that is exactly represented by a
+	 * <code>double</code>
+	 */
+	private static final long s_maxExactMantissa = 1L << 53;
+
+	/**
+	 * The powers of ten that are exactly represented by a
+	 * <code>double</code>
+	 */
+	private static final double[] s_powersOfTen = {1e0, 1e1, 1e2, 1e3, 1e4,
+		1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+		1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+	/**
+	 * The largest magnitude of an exponent that is read. Beyond it, every
+	 * number is either zero or infinite.
+	 */
+	private static final int s_maxExponent = 100000;
+
+	/**
+	 * This class only has static methods
+	 */
+	private NumberParser()
+	{
+		super();
+	}
+
+	/**
+	 * Parses a string as a number
+	 * @param s The string
+	 * @return The number, or null if the string does not start with a
+	 * number. The number is a {@link Long} if its value is an integer that
+	 * fits in a <code>long</code>, and a {@link Double} otherwise.
+	 */
+	public static /*@Nullable*/ Number parse(/*@NonNull*/ CharSequence s)
+	{
+		int length = scan(s);
+		if (length == 0)
+		{
+			return null;
+		}
+		long magnitude = negatedMagnitude(s, length);
+		boolean negative = s.charAt(0) == '-';
+		// Negative zero is only represented by a double
+		if (fits(magnitude, negative) && (magnitude != 0 || !negative))
+		{
+			return Long.valueOf(negative ? magnitude : -magnitude);
+		}
+		return Double.valueOf(toDouble(s, length));
+	}
+
+	/**
+	 * Parses a string as a <code>double</code>
+	 * @param s The string
+	 * @param default_value The value to return if the string does not
+	 * start with a number
+	 * @return The number
+	 */
+	public static double parseDouble(/*@NonNull*/ CharSequence s, double default_value)
+	{
+		int length = scan(s);
+		return length == 0 ? default_value : toDouble(s, length);
+	}
+
+	/**
+	 * Parses a string as a <code>long</code>
+	 * @param s The string
+	 * @param default_value The value to return if the string does not
+	 * start with a number
+	 * @return The number. Digits after the decimal point are dropped.
+	 */
+	public static long parseLong(/*@NonNull*/ CharSequence s, long default_value)
+	{
+		int length = scan(s);
+		return length == 0 ? default_value : toLong(s, length);
+	}
+
+	/**
+	 * Gets the length of the number at the start of a string
+	 * @param s The string
+	 * @return The number of characters forming the number, or 0 if the
+	 * string does not start with a number
+	 */
+	public static int scan(/*@NonNull*/ CharSequence s)
+	{
+		int n = s.length();
+		int i = 0;
+		if (i < n && s.charAt(i) == '-')
+		{
+			i++;
+		}
+		if (i + 3 <= n && s.charAt(i) == 'N' && s.charAt(i + 1) == 'a' && s.charAt(i + 2) == 'N')
+		{
+			return i + 3;
+		}
+		boolean digits = false;
+		while (i < n)
+		{
+			char c = s.charAt(i);
+			if (isDigit(c))
+			{
+				digits = true;
+				i++;
+			}
+			else if (c == ',' && digits && i + 1 < n && isDigit(s.charAt(i + 1)))
+			{
+				// Grouping separator
+				i++;
+			}
+			else
+			{
+				break;
+			}
+		}
+		if (i < n && s.charAt(i) == '.')
+		{
+			int j = i + 1;
+			while (j < n && isDigit(s.charAt(j)))
+			{
+				j++;
+			}
+			if (digits || j > i + 1)
+			{
+				digits = true;
+				i = j;
+			}
+		}
+		if (!digits)
+		{
+			return 0;
+		}
+		if (i < n && (s.charAt(i) == 'E' || s.charAt(i) == 'e'))
+		{
+			int j = i + 1;
+			if (j < n && (s.charAt(j) == '-' || s.charAt(j) == '+'))
+			{
+				j++;
+			}
+			int k = j;
+			while (k < n && isDigit(s.charAt(k)))
+			{
+				k++;
+			}
+			if (k > j)
+			{
+				i = k;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Converts the number at the start of a string into a
+	 * <code>double</code>
+	 * @param s The string
+	 * @param length The length of the number, as returned by
+	 * {@link #scan(CharSequence)}
+	 * @return The value of the number, correctly rounded
+	 */
+	public static double toDouble(/*@NonNull*/ CharSequence s, int length)
+	{
+		int i = 0;
+		boolean negative = s.charAt(0) == '-';
+		if (negative)
+		{
+			i++;
+		}
+		if (s.charAt(i) == 'N')
+		{
+			return Double.NaN;
+		}
+		long mantissa = 0;
+		int scale = 0;
+		boolean exact = true;
+		boolean fraction = false;
+		for (; i < length; i++)
+		{
+			char c = s.charAt(i);
+			if (c == ',')
+			{
+				continue;
+			}
+			if (c == '.')
+			{
+				fraction = true;
+				continue;
+			}
+			if (!isDigit(c))
+			{
+				break;
+			}
+			int digit = c - '0';
+			if (mantissa < Long.MAX_VALUE / 10 - 1)
+			{
+				mantissa = mantissa * 10 + digit;
+				if (fraction)
+				{
+					scale--;
+				}
+			}
+			else
+			{
+				// The digit is dropped from the mantissa
+				if (!fraction)
+				{
+					scale++;
+				}
+				if (digit != 0)
+				{
+					exact = false;
+				}
+			}
+		}
+		if (i < length)
+		{
+			scale += readExponent(s, i + 1, length);
+		}
+		double value;
+		if (mantissa == 0)
+		{
+			value = 0;
+		}
+		else if (exact && mantissa <= s_maxExactMantissa && scale >= -22 && scale <= 22)
+		{
+			// Both operands are exact: the result is correctly rounded
+			value = scale >= 0 ? mantissa * s_powersOfTen[scale] : mantissa / s_powersOfTen[-scale];
+		}
+		else
+		{
+			return Double.parseDouble(withoutSeparators(s, length));
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Converts the number at the start of a string into a
+	 * <code>long</code>, in the same way as {@link Number#longValue()} on
+	 * the result of {@link #parse(CharSequence)}
+	 * @param s The string
+	 * @param length The length of the number, as returned by
+	 * {@link #scan(CharSequence)}
+	 * @return The value of the number
+	 */
+	public static long toLong(/*@NonNull*/ CharSequence s, int length)
+	{
+		long magnitude = negatedMagnitude(s, length);
+		boolean negative = s.charAt(0) == '-';
+		if (fits(magnitude, negative))
+		{
+			return negative ? magnitude : -magnitude;
+		}
+		return (long) toDouble(s, length);
+	}
+
+	/**
+	 * Converts the number at the start of a string into an
+	 * <code>int</code>, in the same way as {@link Number#intValue()} on
+	 * the result of {@link #parse(CharSequence)}
+	 * @param s The string
+	 * @param length The length of the number, as returned by
+	 * {@link #scan(CharSequence)}
+	 * @return The value of the number
+	 */
+	public static int toInt(/*@NonNull*/ CharSequence s, int length)
+	{
+		long magnitude = negatedMagnitude(s, length);
+		boolean negative = s.charAt(0) == '-';
+		if (fits(magnitude, negative))
+		{
+			return (int) (negative ? magnitude : -magnitude);
+		}
+		return (int) toDouble(s, length);
+	}
+
+	/**
+	 * Checks whether a number is an integer that fits in a
+	 * <code>long</code>
+	 * @param magnitude The negated magnitude of the number, as returned by
+	 * {@link #negatedMagnitude(CharSequence, int)}
+	 * @param negative Whether the number is negative
+	 * @return true if the number fits, false otherwise
+	 */
+	private static boolean fits(long magnitude, boolean negative)
+	{
+		// The magnitude of Long.MIN_VALUE has no positive counterpart
+		return magnitude != s_inexact && (negative || magnitude != Long.MIN_VALUE);
+	}
+
+	/**
+	 * Computes the magnitude of a number that is an integer. The magnitude
+	 * is returned negated, as the range of the negative numbers includes
+	 * that of the positive numbers.
+	 * @param s The string
+	 * @param length The length of the number
+	 * @return The opposite of the absolute value of the number, or
+	 * {@link #s_inexact} if the number is not an integer or its magnitude
+	 * exceeds that of {@link Long#MIN_VALUE}
+	 */
+	private static long negatedMagnitude(/*@NonNull*/ CharSequence s, int length)
+	{
+		int i = 0;
+		if (s.charAt(0) == '-')
+		{
+			i++;
+		}
+		if (s.charAt(i) == 'N')
+		{
+			return s_inexact;
+		}
+		long value = 0;
+		int scale = 0;
+		boolean fraction = false;
+		// Zeros after the decimal point only count if a digit follows them
+		int zeros = 0;
+		for (; i < length; i++)
+		{
+			char c = s.charAt(i);
+			if (c == ',')
+			{
+				continue;
+			}
+			if (c == '.')
+			{
+				fraction = true;
+				continue;
+			}
+			if (!isDigit(c))
+			{
+				break;
+			}
+			int digit = c - '0';
+			if (fraction)
+			{
+				if (digit == 0)
+				{
+					zeros++;
+					continue;
+				}
+				for (; zeros > 0; zeros--)
+				{
+					if (value < Long.MIN_VALUE / 10)
+					{
+						return s_inexact;
+					}
+					value *= 10;
+					scale--;
+				}
+				scale--;
+			}
+			if (value < (Long.MIN_VALUE + digit) / 10)
+			{
+				return s_inexact;
+			}
+			value = value * 10 - digit;
+		}
+		if (i < length)
+		{
+			scale += readExponent(s, i + 1, length);
+		}
+		if (value == 0)
+		{
+			return 0;
+		}
+		for (; scale > 0; scale--)
+		{
+			if (value < Long.MIN_VALUE / 10)
+			{
+				return s_inexact;
+			}
+			value *= 10;
+		}
+		for (; scale < 0; scale++)
+		{
+			if (value % 10 != 0)
+			{
+				return s_inexact;
+			}
+			value /= 10;
+		}
+		return value;
+	}
+
+	/**
+	 * Reads the exponent of a number
+	 * @param s The string
+	 * @param start The position after the exponent marker
+	 * @param end The end of the number
+	 * @return The exponent, bounded by {@link #s_maxExponent}
+	 */
+	private static int readExponent(/*@NonNull*/ CharSequence s, int start, int end)
+	{
+		boolean negative = false;
+		char c = s.charAt(start);
+		if (c == '-' || c == '+')
+		{
+			negative = c == '-';
+			start++;
+		}
+		int exponent = 0;
+		for (int i = start; i < end; i++)
+		{
+			if (exponent < s_maxExponent)
+			{
+				exponent = exponent * 10 + s.charAt(i) - '0';
+			}
+		}
+		return negative ? -exponent : exponent;
+	}
+
+	/**
+	 * Copies a number without its grouping separators
+	 * @param s The string
+	 * @param length The length of the number
+	 * @return The number
+	 */
+	private static /*@NonNull*/ String withoutSeparators(/*@NonNull*/ CharSequence s, int length)
+	{
+		StringBuilder out = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+		{
+			char c = s.charAt(i);
+			if (c != ',')
+			{
+				out.append(c);
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Checks whether a character is an ASCII digit
+	 * @param c The character
+	 * @return true if the character is a digit, false otherwise
+	 */
+	private static boolean isDigit(char c)
+	{
+		return c >= '0' && c <= '9';
+	}
+}
@@ -19,8 +19,23 @@ package ca.uqac.lif.xml;
 
 import ca.uqac.lif.xml.XPathExpression.XPathParseException;
 
+/**
+ * Condition on an element, written between brackets in a segment of an
+ * XPath expression.
+ * <p>
+ * Expressions evaluate their own copies of their predicates, so that a
+ * predicate being modified does not disturb the threads that are
+ * evaluating it. Subclasses whose state can change must call
+ * {@link #modified()} after each change, so that the expressions using
+ * the predicate make these copies anew.
+ */
 public abstract class Predicate
 {
+	/**
+	 * A number that changes every time the predicate is modified
+	 */
+	private volatile int m_version;
+
 	/**
 	 * The symbol indicating the start of a predicate
 	 */
@@ -47,4 +62,22 @@ public abstract class Predicate
 	 * @return A copy of the predicate
 	 */
 	public abstract Predicate duplicate();
+
+	/**
+	 * Signals that the state of the predicate has changed
+	 */
+	protected void modified()
+	{
+		// Concurrent changes may be counted once, but still change the value
+		m_version++;
+	}
+
+	/**
+	 * Gets a number that changes every time the predicate is modified
+	 * @return The number
+	 */
+	int getVersion()
+	{
+		return m_version;
+	}
 }
@@ -43,7 +43,7 @@ public class Segment
 	public Segment(/*@NonNull*/ String element_name, /*@NonNull*/ Collection<Predicate> predicates)
 	{
 		super();
-		m_elementName = element_name;
+		m_elementName = element_name == null ? null : NameTable.getGlobal().intern(element_name);
 		m_predicates = predicates;
 	}
 
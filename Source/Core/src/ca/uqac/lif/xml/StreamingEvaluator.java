@@ -0,0 +1,599 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import ca.uqac.lif.xml.XPathExpression.ElementCallback;
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+import ca.uqac.lif.xml.XmlTokenizer.Token;
+
+/**
+ * Evaluates an XPath expression on a stream of parsing events, without
+ * building the tree of the whole document. Since the expression only
+ * uses the child axis, an element at depth <i>d</i> can only match the
+ * <i>d</i>-th segment of the expression; the evaluator hence keeps one
+ * {@link Frame} per segment, for the elements of the current path that
+ * match the expression so far.
+ * <p>
+ * An element matching the last segment is built as a tree, and handed
+ * to the callback when it closes. However, the predicates of an ancestor
+ * may depend on children that come <em>after</em> that element; in such
+ * a case, the result is kept in the frame of the ancestor until its
+ * predicates can be decided, and is then either passed up or discarded.
+ * For a {@link BinaryPredicate}, only the first text of the first child
+ * it refers to is kept; other kinds of predicates are evaluated on a full
+ * copy of the element. Memory is therefore bounded by the depth of the
+ * document and the size of the matching fragments.
+ */
+class StreamingEvaluator
+{
+	/**
+	 * The segments of the expression
+	 */
+	protected final Segment[] m_segments;
+
+	/**
+	 * The frames of the elements of the current path that match the
+	 * expression. Index <i>d</i> is for the element at depth <i>d</i>.
+	 */
+	protected final Frame[] m_frames;
+
+	/**
+	 * The number of elements of the current path that match the expression
+	 */
+	protected int m_aliveDepth;
+
+	/**
+	 * The callback receiving the results
+	 */
+	protected ElementCallback m_callback;
+
+	/**
+	 * Whether the callback asked for the evaluation to stop
+	 */
+	protected boolean m_stop;
+
+	/**
+	 * Creates a new evaluator
+	 * @param segments The segments of the expression
+	 */
+	public StreamingEvaluator(/*@NonNull*/ List<Segment> segments)
+	{
+		super();
+		m_segments = segments.toArray(new Segment[segments.size()]);
+		m_frames = new Frame[m_segments.length + 1];
+		for (int i = 1; i < m_frames.length; i++)
+		{
+			m_frames[i] = new Frame(m_segments[i - 1]);
+		}
+	}
+
+	/**
+	 * Evaluates the expression on a stream of events
+	 * @param reader The reader producing the events
+	 * @param callback The callback receiving the results, in document order
+	 * @throws XmlParseException If the input is not well-formed
+	 * @throws IOException If reading from the input failed
+	 */
+	public void evaluate(/*@NonNull*/ XmlEventReader reader, /*@NonNull*/ ElementCallback callback) throws XmlParseException, IOException
+	{
+		m_callback = callback;
+		m_stop = false;
+		m_aliveDepth = 0;
+		boolean root_closed = false;
+		Token t;
+		while (!m_stop && (t = reader.next()) != Token.EOF)
+		{
+			int depth = reader.getDepth();
+			if (root_closed)
+			{
+				throw new XmlParseException("Unexpected content after closing element");
+			}
+			if (depth == 0 && t == Token.TEXT)
+			{
+				// A document that does not start with a tag is plain text
+				String text = reader.m_tokenizer.readToEnd();
+				if (m_segments.length > 0 && m_segments[0] instanceof TextSegment)
+				{
+					m_callback.accept(new TextElement(text));
+				}
+				return;
+			}
+			if (t == Token.START)
+			{
+				start(reader, depth);
+			}
+			else if (t == Token.TEXT)
+			{
+				text(reader, depth);
+			}
+			else
+			{
+				end(reader, depth + 1);
+				root_closed = depth == 0;
+			}
+		}
+	}
+
+	/**
+	 * Processes the opening of an element
+	 * @param reader The reader
+	 * @param depth The depth of the element
+	 */
+	protected void start(XmlEventReader reader, int depth)
+	{
+		String name = null;
+		for (int i = 1; i <= m_aliveDepth; i++)
+		{
+			Frame f = m_frames[i];
+			if (f.m_builder != null)
+			{
+				if (name == null)
+				{
+					name = NameTable.getGlobal().intern(reader.getName());
+				}
+				f.m_builder.start(name);
+			}
+		}
+		if (depth - 1 != m_aliveDepth)
+		{
+			// The parent does not match the expression
+			return;
+		}
+		if (depth > 1)
+		{
+			m_frames[depth - 1].startChild(reader);
+		}
+		if (depth > m_segments.length)
+		{
+			return;
+		}
+		Segment seg = m_segments[depth - 1];
+		if (seg instanceof TextSegment || !reader.nameEquals(seg.getElementName()))
+		{
+			return;
+		}
+		if (name == null)
+		{
+			// The name is the one in the segment
+			name = seg.getElementName();
+		}
+		m_frames[depth].open(name, depth == m_segments.length);
+		m_aliveDepth = depth;
+	}
+
+	/**
+	 * Processes a text node
+	 * @param reader The reader
+	 * @param depth The depth of the element containing the text
+	 */
+	protected void text(XmlEventReader reader, int depth)
+	{
+		String text = null;
+		for (int i = 1; i <= m_aliveDepth; i++)
+		{
+			Frame f = m_frames[i];
+			if (f.m_builder != null)
+			{
+				if (text == null)
+				{
+					text = reader.getText().toString();
+				}
+				f.m_builder.text(text);
+			}
+		}
+		if (depth > 1 && depth - 1 <= m_aliveDepth)
+		{
+			if (text == null)
+			{
+				text = reader.getText().toString();
+			}
+			m_frames[depth - 1].childText(text);
+		}
+		if (depth == m_aliveDepth && depth < m_segments.length && m_segments[depth] instanceof TextSegment)
+		{
+			if (text == null)
+			{
+				text = reader.getText().toString();
+			}
+			deliver(new TextElement(text), depth);
+		}
+	}
+
+	/**
+	 * Processes the closing of an element
+	 * @param reader The reader
+	 * @param depth The depth of the element being closed
+	 */
+	protected void end(XmlEventReader reader, int depth)
+	{
+		for (int i = 1; i <= m_aliveDepth; i++)
+		{
+			Frame f = m_frames[i];
+			if (f.m_builder != null)
+			{
+				f.m_builder.end();
+			}
+		}
+		if (depth == m_aliveDepth)
+		{
+			Frame f = m_frames[depth];
+			boolean result = f.decide();
+			if (result && depth == m_segments.length)
+			{
+				deliver(f.m_builder.m_root, depth - 1);
+			}
+			else if (result)
+			{
+				f.m_state = Frame.TRUE;
+				forward(f, depth - 1);
+			}
+			f.close();
+			m_aliveDepth = depth - 1;
+		}
+		if (depth == m_aliveDepth + 1 && depth > 1)
+		{
+			Frame parent = m_frames[depth - 1];
+			if (parent.endChild(reader))
+			{
+				if (parent.m_state == Frame.TRUE)
+				{
+					forward(parent, depth - 2);
+				}
+				else
+				{
+					kill(depth - 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hands a result to the callback, or keeps it in the deepest frame whose
+	 * predicates are not yet decided
+	 * @param e The result
+	 * @param depth The depth of the deepest ancestor of the result
+	 */
+	protected void deliver(XmlElement e, int depth)
+	{
+		for (int i = depth; i >= 1; i--)
+		{
+			Frame f = m_frames[i];
+			if (f.m_state == Frame.PENDING)
+			{
+				f.m_results.add(e);
+				return;
+			}
+		}
+		if (!m_stop && !m_callback.accept(e))
+		{
+			m_stop = true;
+		}
+	}
+
+	/**
+	 * Passes the results kept in a frame whose predicates are true to its
+	 * ancestors
+	 * @param f The frame
+	 * @param depth The depth of the parent of the frame
+	 */
+	protected void forward(Frame f, int depth)
+	{
+		for (XmlElement e : f.m_results)
+		{
+			deliver(e, depth);
+		}
+		f.m_results.clear();
+	}
+
+	/**
+	 * Discards a frame whose predicates are false, along with all the frames
+	 * below it
+	 * @param depth The depth of the frame
+	 */
+	protected void kill(int depth)
+	{
+		for (int i = depth; i <= m_aliveDepth; i++)
+		{
+			m_frames[i].close();
+		}
+		m_aliveDepth = depth - 1;
+	}
+
+	/**
+	 * The state of an element of the current path that matches a segment
+	 * of the expression
+	 */
+	protected static class Frame
+	{
+		/**
+		 * State of a frame whose predicates are not yet decided
+		 */
+		protected static final int PENDING = 0;
+
+		/**
+		 * State of a frame whose predicates are true
+		 */
+		protected static final int TRUE = 1;
+
+		/**
+		 * The segment matched by the element
+		 */
+		protected final Segment m_segment;
+
+		/**
+		 * The predicates of the segment
+		 */
+		protected final Predicate[] m_predicates;
+
+		/**
+		 * Whether the predicates can be decided from the first text of a
+		 * child
+		 */
+		protected final boolean m_shallow;
+
+		/**
+		 * The state of the frame
+		 */
+		protected int m_state;
+
+		/**
+		 * The results waiting for the predicates of this frame to be decided
+		 */
+		protected final List<XmlElement> m_results;
+
+		/**
+		 * For each predicate, whether the child it refers to has been seen
+		 */
+		protected final boolean[] m_seen;
+
+		/**
+		 * A copy of the element, containing the children the predicates need
+		 */
+		protected XmlElement m_copy;
+
+		/**
+		 * Whether the child currently open is referred to by a predicate
+		 */
+		protected boolean m_inChild;
+
+		/**
+		 * The first text of the child currently open
+		 */
+		protected String m_childText;
+
+		/**
+		 * The builder for the full copy of the element, if one is needed
+		 */
+		protected TreeBuilder m_builder;
+
+		/**
+		 * Creates a new frame
+		 * @param seg The segment matched by the element
+		 */
+		public Frame(/*@NonNull*/ Segment seg)
+		{
+			super();
+			m_segment = seg;
+			Collection<Predicate> preds = seg.getPredicates();
+			if (preds == null)
+			{
+				m_predicates = new Predicate[0];
+			}
+			else
+			{
+				m_predicates = preds.toArray(new Predicate[preds.size()]);
+			}
+			boolean shallow = true;
+			for (Predicate p : m_predicates)
+			{
+				shallow &= p instanceof BinaryPredicate;
+			}
+			m_shallow = shallow;
+			m_seen = new boolean[m_predicates.length];
+			m_results = new ArrayList<XmlElement>();
+		}
+
+		/**
+		 * Sets up the frame for a newly opened element
+		 * @param name The name of the element
+		 * @param last Whether the element matches the last segment
+		 */
+		public void open(/*@NonNull*/ String name, boolean last)
+		{
+			m_state = m_predicates.length == 0 ? TRUE : PENDING;
+			m_inChild = false;
+			m_childText = null;
+			m_copy = null;
+			if (last || !m_shallow)
+			{
+				m_builder = new TreeBuilder();
+				m_builder.start(name);
+			}
+			else if (m_state == PENDING)
+			{
+				m_copy = new XmlElement(name);
+				for (int i = 0; i < m_seen.length; i++)
+				{
+					m_seen[i] = false;
+				}
+			}
+		}
+
+		/**
+		 * Releases the contents of the frame when its element is closed
+		 */
+		public void close()
+		{
+			m_builder = null;
+			m_copy = null;
+			m_results.clear();
+		}
+
+		/**
+		 * Processes the opening of a child of the element
+		 * @param reader The reader
+		 */
+		public void startChild(XmlEventReader reader)
+		{
+			m_inChild = false;
+			if (m_copy == null || m_state != PENDING)
+			{
+				return;
+			}
+			for (int i = 0; i < m_predicates.length; i++)
+			{
+				if (!m_seen[i] && reader.nameEquals(((BinaryPredicate) m_predicates[i]).getLeft()))
+				{
+					m_inChild = true;
+					m_childText = null;
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Processes a text node directly inside a child of the element
+		 * @param text The text
+		 */
+		public void childText(String text)
+		{
+			if (m_inChild && m_childText == null)
+			{
+				m_childText = text;
+			}
+		}
+
+		/**
+		 * Processes the closing of a child of the element
+		 * @param reader The reader
+		 * @return true if the predicates of the frame have been decided
+		 * as a result, false otherwise
+		 */
+		public boolean endChild(XmlEventReader reader)
+		{
+			if (!m_inChild)
+			{
+				return false;
+			}
+			m_inChild = false;
+			boolean all_seen = true;
+			XmlElement child = null;
+			for (int i = 0; i < m_predicates.length; i++)
+			{
+				if (!m_seen[i] && reader.nameEquals(((BinaryPredicate) m_predicates[i]).getLeft()))
+				{
+					m_seen[i] = true;
+					if (child == null)
+					{
+						child = new XmlElement(((BinaryPredicate) m_predicates[i]).getLeft());
+						if (m_childText != null)
+						{
+							child.appendChild(new TextElement(m_childText));
+						}
+						m_copy.appendChild(child);
+					}
+				}
+				all_seen &= m_seen[i];
+			}
+			m_childText = null;
+			if (!all_seen)
+			{
+				return false;
+			}
+			m_state = decide() ? TRUE : PENDING;
+			return true;
+		}
+
+		/**
+		 * Evaluates the predicates of the frame
+		 * @return true if all the predicates are true, false otherwise
+		 */
+		public boolean decide()
+		{
+			if (m_state == TRUE && m_builder == null)
+			{
+				return true;
+			}
+			XmlElement e = m_builder != null ? m_builder.m_root : m_copy;
+			for (Predicate p : m_predicates)
+			{
+				if (!p.evaluate(e))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Builds a tree of elements from parsing events
+	 */
+	protected static class TreeBuilder
+	{
+		/**
+		 * The root of the tree
+		 */
+		protected XmlElement m_root;
+
+		/**
+		 * The elements currently open
+		 */
+		protected final List<XmlElement> m_stack = new ArrayList<XmlElement>();
+
+		/**
+		 * Opens an element
+		 * @param name The name of the element
+		 */
+		public void start(String name)
+		{
+			XmlElement e = new XmlElement(name);
+			if (m_stack.isEmpty())
+			{
+				m_root = e;
+			}
+			else
+			{
+				m_stack.get(m_stack.size() - 1).appendChild(e);
+			}
+			m_stack.add(e);
+		}
+
+		/**
+		 * Adds text to the element currently open
+		 * @param text The text
+		 */
+		public void text(String text)
+		{
+			m_stack.get(m_stack.size() - 1).appendChild(new TextElement(text));
+		}
+
+		/**
+		 * Closes the element currently open
+		 */
+		public void end()
+		{
+			m_stack.remove(m_stack.size() - 1);
+		}
+	}
+}
@@ -17,6 +17,8 @@
  */
 package ca.uqac.lif.xml;
 
+import java.io.IOException;
+
 public class TextElement extends XmlElement
 {
 	/**
@@ -38,7 +40,13 @@ public class TextElement extends XmlElement
 	@Override
 	public String toString()
 	{
-		return m_text;
+		return getText();
+	}
+
+	@Override
+	public void writeTo(Appendable out) throws IOException
+	{
+		out.append(getText());
 	}
 	
 	/**
@@ -53,7 +61,7 @@ public class TextElement extends XmlElement
 	@Override
 	public int hashCode()
 	{
-		return m_text.hashCode();
+		return getText().hashCode();
 	}
 	
 	@Override
@@ -63,7 +71,7 @@ public class TextElement extends XmlElement
 		{
 			return false;
 		}
-		return m_text.compareTo(((TextElement) o).m_text) == 0;
+		return getText().compareTo(((TextElement) o).getText()) == 0;
 	}
 	
 	@Override
@@ -0,0 +1,719 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+
+/**
+ * Tokenizer reading a document encoded in UTF-8 directly from its bytes.
+ * In UTF-8, the characters that delimit tags (<tt>&lt;</tt>,
+ * <tt>&gt;</tt> and <tt>/</tt>) and whitespace are single bytes that
+ * never occur inside the encoding of another character; the tokenizer
+ * can therefore find the tokens of the document without decoding it.
+ * Closing tags are also checked against the opening tags by comparing
+ * their bytes. Only the tokens whose contents are actually requested
+ * (through {@link #getName()}, {@link #getText()}, {@link #getBuffer()},
+ * etc.) are decoded, with a fast path for ASCII.
+ * <p>
+ * The whole document must be available in memory, as a byte array or a
+ * {@link ByteBuffer}. Positions returned by {@link #getTokenOffset()}
+ * and {@link #getPosition()} are expressed in bytes.
+ * <p>
+ * The tokenizer can also be given characters, through
+ * {@link #reset(CharSequence, int, int)} or {@link #reset(Reader)}, and
+ * then behaves exactly like an {@link XmlTokenizer}.
+ */
+public class Utf8Tokenizer extends XmlTokenizer
+{
+	/**
+	 * The UTF-8 character set
+	 */
+	protected static final Charset s_utf8 = Charset.forName("UTF-8");
+
+	/**
+	 * The bytes to read from, if they are in an array
+	 */
+	protected byte[] m_array;
+
+	/**
+	 * The bytes to read from, if they are not in an array
+	 */
+	protected ByteBuffer m_bytes;
+
+	/**
+	 * The position of the next byte to read
+	 */
+	protected int m_bytePosition;
+
+	/**
+	 * The position where the input ends
+	 */
+	protected int m_byteEnd;
+
+	/**
+	 * The position where the input starts
+	 */
+	protected int m_byteStart;
+
+	/**
+	 * The position of the current token
+	 */
+	protected int m_tokenByteStart;
+
+	/**
+	 * The length of the current token, in bytes
+	 */
+	protected int m_tokenByteLength;
+
+	/**
+	 * Whether the current token has been decoded into the character buffer
+	 */
+	protected boolean m_decoded;
+
+	/**
+	 * The names of the open elements, one after the other
+	 */
+	protected byte[] m_byteNames;
+
+	/**
+	 * Whether the tokenizer reads characters instead of bytes
+	 */
+	protected boolean m_chars;
+
+	/**
+	 * Creates a tokenizer reading from a byte array
+	 * @param bytes The array
+	 */
+	public Utf8Tokenizer(/*@NonNull*/ byte[] bytes)
+	{
+		this(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Creates a tokenizer reading from a region of a byte array
+	 * @param bytes The array
+	 * @param offset The position where the region starts
+	 * @param length The length of the region
+	 */
+	public Utf8Tokenizer(/*@NonNull*/ byte[] bytes, int offset, int length)
+	{
+		super(256);
+		m_byteNames = new byte[256];
+		reset(bytes, offset, length);
+	}
+
+	/**
+	 * Creates a tokenizer reading the remaining bytes of a buffer. The
+	 * position of the buffer is not modified.
+	 * @param bytes The buffer
+	 */
+	public Utf8Tokenizer(/*@NonNull*/ ByteBuffer bytes)
+	{
+		super(256);
+		m_byteNames = new byte[256];
+		reset(bytes);
+	}
+
+	/**
+	 * Makes the tokenizer read from a byte array. The buffers of the
+	 * tokenizer are kept.
+	 * @param bytes The array
+	 * @return This tokenizer
+	 */
+	public Utf8Tokenizer reset(/*@NonNull*/ byte[] bytes)
+	{
+		return reset(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Makes the tokenizer read from a region of a byte array
+	 * @param bytes The array
+	 * @param offset The position where the region starts
+	 * @param length The length of the region
+	 * @return This tokenizer
+	 */
+	public Utf8Tokenizer reset(/*@NonNull*/ byte[] bytes, int offset, int length)
+	{
+		reset();
+		m_array = bytes;
+		m_byteStart = offset;
+		m_bytePosition = offset;
+		m_byteEnd = offset + length;
+		return this;
+	}
+
+	/**
+	 * Makes the tokenizer read the remaining bytes of a buffer
+	 * @param bytes The buffer
+	 * @return This tokenizer
+	 */
+	public Utf8Tokenizer reset(/*@NonNull*/ ByteBuffer bytes)
+	{
+		reset();
+		if (bytes.hasArray())
+		{
+			m_array = bytes.array();
+			m_byteStart = bytes.arrayOffset() + bytes.position();
+			m_byteEnd = bytes.arrayOffset() + bytes.limit();
+		}
+		else
+		{
+			m_bytes = bytes;
+			m_byteStart = bytes.position();
+			m_byteEnd = bytes.limit();
+		}
+		m_bytePosition = m_byteStart;
+		return this;
+	}
+
+	@Override
+	public void reset()
+	{
+		super.reset();
+		m_array = null;
+		m_bytes = null;
+		m_byteStart = 0;
+		m_byteEnd = 0;
+		m_bytePosition = 0;
+		m_tokenByteStart = 0;
+		m_tokenByteLength = 0;
+		m_decoded = false;
+		m_chars = false;
+		if (m_byteNames.length > s_maxRetainedBufferSize)
+		{
+			m_byteNames = new byte[256];
+		}
+	}
+
+	@Override
+	public XmlTokenizer reset(/*@NonNull*/ CharSequence s, int start, int end)
+	{
+		super.reset(s, start, end);
+		m_chars = true;
+		return this;
+	}
+
+	@Override
+	public XmlTokenizer reset(/*@NonNull*/ Reader r)
+	{
+		super.reset(r);
+		m_chars = true;
+		return this;
+	}
+
+	/**
+	 * Gets the byte at some position
+	 * @param i The position
+	 * @return The byte
+	 */
+	protected final byte byteAt(int i)
+	{
+		return m_array != null ? m_array[i] : m_bytes.get(i);
+	}
+
+	@Override
+	public /*@NonNull*/ Token next() throws XmlParseException, IOException
+	{
+		if (m_chars)
+		{
+			return super.next();
+		}
+		int pos = m_bytePosition;
+		int end = m_byteEnd;
+		m_decoded = false;
+		pos = skipWhitespace(pos, end);
+		if (pos >= end)
+		{
+			m_bytePosition = pos;
+			if (m_depth > 0)
+			{
+				throw new XmlParseException("Closing element " + topName() + " not found");
+			}
+			setToken(pos, 0);
+			m_token = Token.EOF;
+			return m_token;
+		}
+		if (byteAt(pos) != '<')
+		{
+			int start = pos;
+			pos = indexOf('<', pos, end);
+			m_bytePosition = pos;
+			int text_end = pos;
+			if (pos >= end || pos + 1 >= end || byteAt(pos + 1) == '/')
+			{
+				// Trailing whitespace is only kept if the text is followed
+				// by an opening tag
+				byte b;
+				while (text_end > start && (b = byteAt(text_end - 1)) >= 0 && b <= ' ')
+				{
+					text_end--;
+				}
+			}
+			setToken(start, text_end - start);
+			m_token = Token.TEXT;
+			return m_token;
+		}
+		if (pos + 1 >= end)
+		{
+			throw new XmlParseException("Closing bracket not found");
+		}
+		boolean closing = byteAt(pos + 1) == '/';
+		int start = closing ? pos + 2 : pos + 1;
+		pos = indexOf('>', start, end);
+		if (pos >= end)
+		{
+			throw new XmlParseException("Closing bracket not found");
+		}
+		setToken(start, pos - start);
+		m_bytePosition = pos + 1;
+		if (closing)
+		{
+			popName();
+			m_token = Token.END;
+		}
+		else
+		{
+			pushName();
+			m_token = Token.START;
+		}
+		return m_token;
+	}
+
+	/**
+	 * Finds the first byte that is not whitespace. Bytes that are part of
+	 * a multi-byte character are negative, and are never whitespace.
+	 * @param from The position to start from
+	 * @param end The position where the input ends
+	 * @return The position of the byte, or <tt>end</tt> if there is none
+	 */
+	protected final int skipWhitespace(int from, int end)
+	{
+		int pos = from;
+		byte b;
+		if (m_array != null)
+		{
+			byte[] array = m_array;
+			while (pos < end && (b = array[pos]) >= 0 && b <= ' ')
+			{
+				pos++;
+			}
+		}
+		else
+		{
+			while (pos < end && (b = m_bytes.get(pos)) >= 0 && b <= ' ')
+			{
+				pos++;
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Finds the first occurrence of an ASCII character
+	 * @param c The character
+	 * @param from The position to start from
+	 * @param end The position where the input ends
+	 * @return The position of the character, or <tt>end</tt> if it does
+	 * not occur
+	 */
+	protected final int indexOf(char c, int from, int end)
+	{
+		int pos = from;
+		if (m_array != null)
+		{
+			byte[] array = m_array;
+			while (pos < end && array[pos] != c)
+			{
+				pos++;
+			}
+		}
+		else
+		{
+			while (pos < end && m_bytes.get(pos) != c)
+			{
+				pos++;
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Sets the position of the current token
+	 * @param start The position of the token
+	 * @param length The length of the token, in bytes
+	 */
+	protected void setToken(int start, int length)
+	{
+		m_tokenByteStart = start;
+		m_tokenByteLength = length;
+	}
+
+	@Override
+	public /*@NonNull*/ char[] getBuffer()
+	{
+		if (m_chars)
+		{
+			return super.getBuffer();
+		}
+		decodeToken();
+		return m_buffer;
+	}
+
+	@Override
+	public int getTokenStart()
+	{
+		if (m_chars)
+		{
+			return super.getTokenStart();
+		}
+		decodeToken();
+		return 0;
+	}
+
+	@Override
+	public int getTokenLength()
+	{
+		if (m_chars)
+		{
+			return super.getTokenLength();
+		}
+		decodeToken();
+		return m_tokenLength;
+	}
+
+	@Override
+	public long getTokenOffset()
+	{
+		if (m_chars)
+		{
+			return super.getTokenOffset();
+		}
+		return m_tokenByteStart - m_byteStart;
+	}
+
+	@Override
+	public long getPosition()
+	{
+		if (m_chars)
+		{
+			return super.getPosition();
+		}
+		return m_bytePosition - m_byteStart;
+	}
+
+	@Override
+	public /*@Nullable*/ CharSequence getSource()
+	{
+		if (m_chars)
+		{
+			return super.getSource();
+		}
+		// The document is not available as characters
+		return null;
+	}
+
+	@Override
+	public /*@NonNull*/ String getName()
+	{
+		if (m_chars)
+		{
+			return super.getName();
+		}
+		decodeToken();
+		return new String(m_buffer, 0, m_tokenLength);
+	}
+
+	@Override
+	public /*@NonNull*/ String getText()
+	{
+		if (m_chars)
+		{
+			return super.getText();
+		}
+		decodeToken();
+		return new String(m_buffer, 0, m_tokenLength);
+	}
+
+	@Override
+	public boolean tokenEquals(/*@NonNull*/ CharSequence s)
+	{
+		if (m_chars)
+		{
+			return super.tokenEquals(s);
+		}
+		if (!m_decoded)
+		{
+			// Compare ASCII bytes directly; anything else is decoded
+			int length = m_tokenByteLength;
+			if (s.length() > length)
+			{
+				return false;
+			}
+			int i = 0;
+			for (; i < length; i++)
+			{
+				byte b = byteAt(m_tokenByteStart + i);
+				if (b < 0)
+				{
+					break;
+				}
+				if (i >= s.length() || s.charAt(i) != b)
+				{
+					return false;
+				}
+			}
+			if (i == length)
+			{
+				return s.length() == length;
+			}
+		}
+		decodeToken();
+		if (s.length() != m_tokenLength)
+		{
+			return false;
+		}
+		for (int i = 0; i < m_tokenLength; i++)
+		{
+			if (m_buffer[i] != s.charAt(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public /*@NonNull*/ String readToEnd() throws IOException
+	{
+		if (m_chars)
+		{
+			return super.readToEnd();
+		}
+		int end = m_byteEnd;
+		byte b;
+		while (end > m_tokenByteStart && (b = byteAt(end - 1)) >= 0 && b <= ' ')
+		{
+			end--;
+		}
+		m_bytePosition = m_byteEnd;
+		setToken(m_tokenByteStart, end - m_tokenByteStart);
+		String s = getText();
+		setToken(m_byteEnd, 0);
+		m_decoded = false;
+		m_token = Token.EOF;
+		return s;
+	}
+
+	@Override
+	protected int fill(/*@NonNull*/ char[] buffer, int offset, int length) throws IOException
+	{
+		if (m_chars)
+		{
+			return super.fill(buffer, offset, length);
+		}
+		// Not used: the input is read directly from the bytes
+		return -1;
+	}
+
+	/**
+	 * Decodes the current token into the character buffer, if this has not
+	 * been done already
+	 */
+	protected void decodeToken()
+	{
+		if (!m_decoded)
+		{
+			m_tokenLength = decode(m_tokenByteStart, m_tokenByteLength);
+			m_tokenStart = 0;
+			m_decoded = true;
+		}
+	}
+
+	/**
+	 * Decodes a sequence of bytes into the character buffer. Malformed
+	 * sequences are replaced by the character U+FFFD.
+	 * @param start The position of the first byte
+	 * @param length The number of bytes
+	 * @return The number of characters written to the buffer
+	 */
+	protected int decode(int start, int length)
+	{
+		if (m_buffer.length < length)
+		{
+			// UTF-8 never produces more characters than bytes
+			m_buffer = new char[Math.max(length, m_buffer.length * 2)];
+		}
+		char[] out = m_buffer;
+		int n = 0;
+		int i = start;
+		int end = start + length;
+		if (m_array != null)
+		{
+			// Copy the ASCII prefix, which is usually the whole token
+			byte[] array = m_array;
+			byte b;
+			while (i < end && (b = array[i]) >= 0)
+			{
+				out[n++] = (char) b;
+				i++;
+			}
+		}
+		while (i < end)
+		{
+			int b = byteAt(i++);
+			if (b >= 0)
+			{
+				out[n++] = (char) b;
+				continue;
+			}
+			b &= 0xFF;
+			int to_read;
+			int cp;
+			int min;
+			if (b >= 0xC2 && b < 0xE0)
+			{
+				to_read = 1;
+				cp = b & 0x1F;
+				min = 0x80;
+			}
+			else if (b >= 0xE0 && b < 0xF0)
+			{
+				to_read = 2;
+				cp = b & 0x0F;
+				min = 0x800;
+			}
+			else if (b >= 0xF0 && b < 0xF5)
+			{
+				to_read = 3;
+				cp = b & 0x07;
+				min = 0x10000;
+			}
+			else
+			{
+				out[n++] = '\uFFFD';
+				continue;
+			}
+			int j = 0;
+			while (j < to_read && i < end)
+			{
+				int c = byteAt(i) & 0xFF;
+				if ((c & 0xC0) != 0x80)
+				{
+					break;
+				}
+				cp = (cp << 6) | (c & 0x3F);
+				i++;
+				j++;
+			}
+			if (j < to_read || cp < min || cp > 0x10FFFF || (cp >= 0xD800 && cp <= 0xDFFF))
+			{
+				out[n++] = '\uFFFD';
+			}
+			else if (cp >= 0x10000)
+			{
+				cp -= 0x10000;
+				out[n++] = (char) (0xD800 | (cp >> 10));
+				out[n++] = (char) (0xDC00 | (cp & 0x3FF));
+			}
+			else
+			{
+				out[n++] = (char) cp;
+			}
+		}
+		return n;
+	}
+
+	@Override
+	protected void pushName()
+	{
+		if (m_chars)
+		{
+			super.pushName();
+			return;
+		}
+		int start = m_depth == 0 ? 0 : m_nameEnds[m_depth - 1];
+		int end = start + m_tokenByteLength;
+		if (end > m_byteNames.length)
+		{
+			byte[] names = new byte[Math.max(end, m_byteNames.length * 2)];
+			System.arraycopy(m_byteNames, 0, names, 0, start);
+			m_byteNames = names;
+		}
+		if (m_array != null)
+		{
+			System.arraycopy(m_array, m_tokenByteStart, m_byteNames, start, m_tokenByteLength);
+		}
+		else
+		{
+			for (int i = 0; i < m_tokenByteLength; i++)
+			{
+				m_byteNames[start + i] = m_bytes.get(m_tokenByteStart + i);
+			}
+		}
+		if (m_depth == m_nameEnds.length)
+		{
+			int[] ends = new int[m_nameEnds.length * 2];
+			System.arraycopy(m_nameEnds, 0, ends, 0, m_depth);
+			m_nameEnds = ends;
+		}
+		m_nameEnds[m_depth++] = end;
+	}
+
+	@Override
+	protected void popName() throws XmlParseException
+	{
+		if (m_chars)
+		{
+			super.popName();
+			return;
+		}
+		if (m_depth == 0)
+		{
+			throw new XmlParseException("Unexpected closing element " + getName());
+		}
+		int start = m_depth == 1 ? 0 : m_nameEnds[m_depth - 2];
+		int end = m_nameEnds[m_depth - 1];
+		boolean match = end - start == m_tokenByteLength;
+		for (int i = 0; match && i < m_tokenByteLength; i++)
+		{
+			match = m_byteNames[start + i] == byteAt(m_tokenByteStart + i);
+		}
+		if (!match)
+		{
+			throw new XmlParseException("Closing element " + topName() + " not found");
+		}
+		m_depth--;
+	}
+
+	@Override
+	protected /*@NonNull*/ String topName()
+	{
+		if (m_chars)
+		{
+			return super.topName();
+		}
+		int start = m_depth == 1 ? 0 : m_nameEnds[m_depth - 2];
+		int length = m_nameEnds[m_depth - 1] - start;
+		return new String(m_byteNames, start, length, s_utf8);
+	}
+}
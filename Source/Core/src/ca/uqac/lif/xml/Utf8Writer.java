@@ -0,0 +1,345 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Writer encoding characters in UTF-8 directly into a byte buffer, which
+ * is written to a stream when it is full. Unlike an
+ * {@link java.io.OutputStreamWriter}, it encodes strings and other
+ * character sequences without first copying them into an array, and
+ * does not synchronize. A character that is not part of a valid
+ * surrogate pair is written as <tt>?</tt>, as done by
+ * {@link String#getBytes(java.nio.charset.Charset)}.
+ * <p>
+ * The writer is not thread-safe.
+ */
+public class Utf8Writer extends Writer
+{
+	/**
+	 * The stream to write to
+	 */
+	protected final OutputStream m_out;
+
+	/**
+	 * The bytes that have not been written to the stream yet
+	 */
+	protected final byte[] m_buffer;
+
+	/**
+	 * The number of bytes in the buffer
+	 */
+	protected int m_position;
+
+	/**
+	 * The first half of a surrogate pair whose second half has not been
+	 * written yet, or 0
+	 */
+	protected char m_highSurrogate;
+
+	/**
+	 * Creates a writer with a buffer of 8 kB
+	 * @param out The stream to write to
+	 */
+	public Utf8Writer(/*@NonNull*/ OutputStream out)
+	{
+		this(out, 8192);
+	}
+
+	/**
+	 * Creates a writer
+	 * @param out The stream to write to
+	 * @param buffer_size The size of the buffer, in bytes
+	 */
+	public Utf8Writer(/*@NonNull*/ OutputStream out, int buffer_size)
+	{
+		super();
+		m_out = out;
+		m_buffer = new byte[Math.max(buffer_size, 16)];
+		m_position = 0;
+	}
+
+	@Override
+	public void write(int c) throws IOException
+	{
+		if (m_position + 4 > m_buffer.length)
+		{
+			flushBuffer();
+		}
+		encode((char) c);
+	}
+
+	@Override
+	public void write(/*@NonNull*/ char[] cbuf, int off, int len) throws IOException
+	{
+		byte[] buffer = m_buffer;
+		int end = off + len;
+		for (int i = off; i < end; i++)
+		{
+			if (m_position + 4 > buffer.length)
+			{
+				flushBuffer();
+			}
+			char c = cbuf[i];
+			if (c < 0x80 && m_highSurrogate == 0)
+			{
+				buffer[m_position++] = (byte) c;
+			}
+			else
+			{
+				encode(c);
+			}
+		}
+	}
+
+	@Override
+	public void write(/*@NonNull*/ String s, int off, int len) throws IOException
+	{
+		append(s, off, off + len);
+	}
+
+	@Override
+	public Utf8Writer append(/*@Nullable*/ CharSequence csq) throws IOException
+	{
+		if (csq == null)
+		{
+			return append("null");
+		}
+		return append(csq, 0, csq.length());
+	}
+
+	@Override
+	public Utf8Writer append(/*@Nullable*/ CharSequence csq, int start, int end) throws IOException
+	{
+		if (csq == null)
+		{
+			return append("null", start, end);
+		}
+		byte[] buffer = m_buffer;
+		for (int i = start; i < end; i++)
+		{
+			if (m_position + 4 > buffer.length)
+			{
+				flushBuffer();
+			}
+			char c = csq.charAt(i);
+			if (c < 0x80 && m_highSurrogate == 0)
+			{
+				buffer[m_position++] = (byte) c;
+			}
+			else
+			{
+				encode(c);
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public Utf8Writer append(char c) throws IOException
+	{
+		write(c);
+		return this;
+	}
+
+	/**
+	 * Writes bytes that are already encoded in UTF-8
+	 * @param bytes The array containing the bytes
+	 * @param off The position of the bytes in the array
+	 * @param len The number of bytes
+	 * @throws IOException If writing to the stream failed
+	 */
+	public void writeBytes(/*@NonNull*/ byte[] bytes, int off, int len) throws IOException
+	{
+		dropSurrogate();
+		if (m_position + len > m_buffer.length)
+		{
+			flushBuffer();
+			if (len > m_buffer.length)
+			{
+				m_out.write(bytes, off, len);
+				return;
+			}
+		}
+		System.arraycopy(bytes, off, m_buffer, m_position, len);
+		m_position += len;
+	}
+
+	/**
+	 * Writes the bytes in the buffer to the stream, and flushes the stream.
+	 * The first half of a surrogate pair is kept until its second half is
+	 * written.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		flushBuffer();
+		m_out.flush();
+	}
+
+	/**
+	 * Signals that no more characters will be written, and flushes the
+	 * writer. The stream is not closed.
+	 * @throws IOException If writing to the stream failed
+	 */
+	public void finish() throws IOException
+	{
+		dropSurrogate();
+		flush();
+	}
+
+	/**
+	 * Finishes writing and closes the stream
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		finish();
+		m_out.close();
+	}
+
+	/**
+	 * Computes the number of bytes a writer produces for a sequence of
+	 * characters written on its own
+	 * @param csq The characters
+	 * @return The number of bytes
+	 */
+	public static int encodedLength(/*@NonNull*/ CharSequence csq)
+	{
+		int length = csq.length();
+		int bytes = length;
+		for (int i = 0; i < length; i++)
+		{
+			char c = csq.charAt(i);
+			if (c < 0x80)
+			{
+				continue;
+			}
+			if (c < 0x800)
+			{
+				bytes++;
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(csq.charAt(i + 1)))
+			{
+				// Two characters, four bytes
+				bytes += 2;
+				i++;
+			}
+			else if (!Character.isHighSurrogate(c) && !Character.isLowSurrogate(c))
+			{
+				bytes += 2;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Discards the characters that have not been written to the stream yet
+	 */
+	public void discard()
+	{
+		m_position = 0;
+		m_highSurrogate = 0;
+	}
+
+	/**
+	 * Writes the bytes in the buffer to the stream
+	 * @throws IOException If writing to the stream failed
+	 */
+	protected void flushBuffer() throws IOException
+	{
+		if (m_position > 0)
+		{
+			m_out.write(m_buffer, 0, m_position);
+			m_position = 0;
+		}
+	}
+
+	/**
+	 * Writes the first half of a surrogate pair that will never be
+	 * completed, if any, as <tt>?</tt>
+	 * @throws IOException If writing to the stream failed
+	 */
+	protected void dropSurrogate() throws IOException
+	{
+		if (m_highSurrogate != 0)
+		{
+			m_highSurrogate = 0;
+			if (m_position == m_buffer.length)
+			{
+				flushBuffer();
+			}
+			m_buffer[m_position++] = '?';
+		}
+	}
+
+	/**
+	 * Encodes a character into the buffer, which must have room for at
+	 * least four bytes
+	 * @param c The character
+	 */
+	protected void encode(char c)
+	{
+		byte[] buffer = m_buffer;
+		int position = m_position;
+		if (m_highSurrogate != 0)
+		{
+			char high = m_highSurrogate;
+			m_highSurrogate = 0;
+			if (Character.isLowSurrogate(c))
+			{
+				int code_point = Character.toCodePoint(high, c);
+				buffer[position++] = (byte) (0xF0 | (code_point >> 18));
+				buffer[position++] = (byte) (0x80 | ((code_point >> 12) & 0x3F));
+				buffer[position++] = (byte) (0x80 | ((code_point >> 6) & 0x3F));
+				buffer[position++] = (byte) (0x80 | (code_point & 0x3F));
+				m_position = position;
+				return;
+			}
+			// The pair is incomplete
+			buffer[position++] = '?';
+		}
+		if (c < 0x80)
+		{
+			buffer[position++] = (byte) c;
+		}
+		else if (c < 0x800)
+		{
+			buffer[position++] = (byte) (0xC0 | (c >> 6));
+			buffer[position++] = (byte) (0x80 | (c & 0x3F));
+		}
+		else if (Character.isHighSurrogate(c))
+		{
+			m_highSurrogate = c;
+		}
+		else if (Character.isLowSurrogate(c))
+		{
+			buffer[position++] = '?';
+		}
+		else
+		{
+			buffer[position++] = (byte) (0xE0 | (c >> 12));
+			buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buffer[position++] = (byte) (0x80 | (c & 0x3F));
+		}
+		m_position = position;
+	}
+}
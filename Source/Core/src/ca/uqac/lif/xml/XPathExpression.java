@@ -17,12 +17,15 @@
  */
 package ca.uqac.lif.xml;
 
-import java.text.NumberFormat;
-import java.text.ParseException;
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+
 /**
  * Performs queries on XML documents. The queries are written using the XPath
  * syntax, with the following restrictions:
@@ -43,6 +46,12 @@ import java.util.List;
  * <li><tt>abc[ghi=3]/def/text()</tt></li>
  * <li><tt>abc[ghi=3][q=0]/def[xyz='hello']</tt></li>
  * </ol>
+ * An expression can be evaluated by any number of threads at the same
+ * time, without locking: all the evaluation state is local to each call.
+ * The expression must however not be modified while it is being
+ * evaluated, and the documents it is evaluated on must not be modified
+ * either. Lazy documents, whose elements are built when they are first
+ * visited, should only be read by one thread at a time.
  */ 
 public class XPathExpression
 {
@@ -52,18 +61,23 @@ public class XPathExpression
 	public static transient final String s_pathSeparator = "/";
 
 	/**
-	 * The number formatter used to parse strings into numbers
+	 * The segments of the path expression
 	 */
-	private static transient final NumberFormat s_numberFormat = NumberFormat.getInstance();
+	/*@NonNull*/ List<Segment> m_segments;
 
 	/**
-	 * The segments of the path expression
+	 * The plan evaluating the expression, built on first use and shared by
+	 * all the threads that evaluate the expression. Like the plans returned
+	 * by {@link #compile()}, it works on copies of the predicates; it is
+	 * built anew when the segments or their predicates have been modified
+	 * since.
 	 */
-	/*@NonNull*/ List<Segment> m_segments;
+	private volatile /*@Nullable*/ XPathPlan m_plan;
 
 	/**
 	 * Creates an XPath expression from a list of segments
-	 * @param segments The segments
+	 * @param segments The segments. The list is not copied: changes made
+	 * to it later are taken into account by the expression.
 	 */
 	public XPathExpression(/*@NonNull*/ List</*@NonNull*/ Segment> segments)
 	{
@@ -112,16 +126,12 @@ public class XPathExpression
 	 * @param root The root
 	 * @return The result of the expression. If the expression returns multiple
 	 * elements, the method picks only one and returns it. If the expression
-	 * returns no element, the method returns null.
+	 * returns no element, the method returns null. The tree is only
+	 * explored up to the first result in document order.
 	 */
 	public /*@Nullable*/ XmlElement evaluateAny(/*@NonNull*/ XmlElement root)
 	{
-		Collection<XmlElement> col = evaluate(root);
-		for (XmlElement e : col)
-		{
-			return e;
-		}
-		return null;
+		return getPlan().evaluateAny(root);
 	}
 
 	/**
@@ -131,9 +141,10 @@ public class XPathExpression
 	 */
 	public /*@NonNull*/ String evaluateAnyString(/*@NonNull*/ XmlElement root)
 	{
-		Collection<XmlElement> col = evaluate(root);
-		for (XmlElement e : col)
+		Iterator<XmlElement> it = iterator(root);
+		while (it.hasNext())
 		{
+			XmlElement e = it.next();
 			if (e instanceof TextElement)
 			{
 				return ((TextElement) e).getText();
@@ -149,20 +160,7 @@ public class XPathExpression
 	 */
 	public /*@Nullable*/ Number evaluateAnyNumber(/*@NonNull*/ XmlElement root)
 	{
-		Collection<XmlElement> col = evaluate(root);
-		for (XmlElement e : col)
-		{
-			if (e instanceof TextElement)
-			{
-				String text = ((TextElement) e).getText(); 
-				Number n = parseAsNumber(text);
-				if (n != null)
-				{
-					return n;
-				}
-			}
-		}
-		return null;
+		return getPlan().evaluateAnyNumber(root);
 	}
 
 	/**
@@ -174,12 +172,7 @@ public class XPathExpression
 	 */
 	public int evaluateAnyInt(/*@NonNull*/ XmlElement root)
 	{
-		Number n = evaluateAnyNumber(root);
-		if (n == null)
-		{
-			return 0;
-		}
-		return n.intValue();
+		return getPlan().evaluateAnyInt(root, 0);
 	}
 
 	/**
@@ -191,12 +184,31 @@ public class XPathExpression
 	 */
 	public float evaluateAnyFloat(/*@NonNull*/ XmlElement root)
 	{
-		Number n = evaluateAnyNumber(root);
-		if (n == null)
-		{
-			return 0;
-		}
-		return n.floatValue();
+		return (float) getPlan().evaluateAnyDouble(root, 0);
+	}
+
+	/**
+	 * Evaluates an XPath expression, and casts its result as a
+	 * <code>long</code>
+	 * @param root The root
+	 * @param default_value The value to return if no result is a number
+	 * @return The result of the expression
+	 */
+	public long evaluateAnyLong(/*@NonNull*/ XmlElement root, long default_value)
+	{
+		return getPlan().evaluateAnyLong(root, default_value);
+	}
+
+	/**
+	 * Evaluates an XPath expression, and casts its result as a
+	 * <code>double</code>
+	 * @param root The root
+	 * @param default_value The value to return if no result is a number
+	 * @return The result of the expression
+	 */
+	public double evaluateAnyDouble(/*@NonNull*/ XmlElement root, double default_value)
+	{
+		return getPlan().evaluateAnyDouble(root, default_value);
 	}
 
 	/**
@@ -207,10 +219,11 @@ public class XPathExpression
 	 */
 	public /*@NonNull*/ Collection</*@NonNull*/ String> evaluateAsStrings(/*@NonNull*/ XmlElement root)
 	{
-		Collection<XmlElement> col = evaluate(root);
 		Collection<String> new_col = getNewStringCollection();
-		for (XmlElement e : col)
+		Iterator<XmlElement> it = iterator(root);
+		while (it.hasNext())
 		{
+			XmlElement e = it.next();
 			if (e instanceof TextElement)
 			{
 				new_col.add(((TextElement) e).getText());
@@ -227,14 +240,14 @@ public class XPathExpression
 	 */
 	public /*@NonNull*/ Collection</*@NonNull*/ Number> evaluateAsNumbers(/*@NonNull*/ XmlElement root)
 	{
-		Collection<XmlElement> col = evaluate(root);
 		Collection<Number> new_col = getNewNumberCollection();
-		for (XmlElement e : col)
+		Iterator<XmlElement> it = iterator(root);
+		while (it.hasNext())
 		{
+			XmlElement e = it.next();
 			if (e instanceof TextElement)
 			{
-				String text = ((TextElement) e).getText(); 
-				Number n = parseAsNumber(text);
+				Number n = NumberParser.parse(((TextElement) e).getText());
 				if (n != null)
 				{
 					new_col.add(n);
@@ -244,6 +257,30 @@ public class XPathExpression
 		return new_col;
 	}
 
+	/**
+	 * Evaluates an XPath expression, and casts all its results as a
+	 * <code>long</code>
+	 * @param root The root
+	 * @return The result of the expression. If an element is not a text node,
+	 *   or does not parse as a number, it is omitted from the result.
+	 */
+	public /*@NonNull*/ long[] evaluateAsLongs(/*@NonNull*/ XmlElement root)
+	{
+		return getPlan().evaluateAsLongs(root);
+	}
+
+	/**
+	 * Evaluates an XPath expression, and casts all its results as a
+	 * <code>double</code>
+	 * @param root The root
+	 * @return The result of the expression. If an element is not a text node,
+	 *   or does not parse as a number, it is omitted from the result.
+	 */
+	public /*@NonNull*/ double[] evaluateAsDoubles(/*@NonNull*/ XmlElement root)
+	{
+		return getPlan().evaluateAsDoubles(root);
+	}
+
 	/**
 	 * Evaluates an XPath expression, using some element as the root
 	 * @param root The root
@@ -251,7 +288,132 @@ public class XPathExpression
 	 */
 	public /*@NonNull*/ Collection</*@NonNull*/ XmlElement> evaluate(/*@NonNull*/ XmlElement root)
 	{
-		return evaluate(m_segments, root);
+		return getPlan().evaluate(root);
+	}
+
+	/**
+	 * Evaluates an XPath expression, and passes each result to a callback
+	 * as soon as it is found, without collecting the results
+	 * @param root The root
+	 * @param callback The callback receiving the results, in the same order
+	 * as those of {@link #evaluate(XmlElement)}
+	 * @return true if all the results were passed to the callback, false if
+	 * the callback stopped the evaluation
+	 */
+	public boolean evaluate(/*@NonNull*/ XmlElement root, /*@NonNull*/ ElementCallback callback)
+	{
+		return getPlan().evaluate(root, callback);
+	}
+
+	/**
+	 * Evaluates an XPath expression, and passes the text of each result
+	 * that is a text node to a callback
+	 * @param root The root
+	 * @param callback The callback receiving the strings
+	 * @return true if all the results were passed to the callback, false if
+	 * the callback stopped the evaluation
+	 */
+	public boolean evaluateAsStrings(/*@NonNull*/ XmlElement root, /*@NonNull*/ StringCallback callback)
+	{
+		return getPlan().evaluateAsStrings(root, callback);
+	}
+
+	/**
+	 * Evaluates an XPath expression, and passes each result that parses as
+	 * a number to a callback, as an <code>int</code>
+	 * @param root The root
+	 * @param callback The callback receiving the numbers
+	 * @return true if all the results were passed to the callback, false if
+	 * the callback stopped the evaluation
+	 */
+	public boolean evaluateAsInts(/*@NonNull*/ XmlElement root, /*@NonNull*/ IntCallback callback)
+	{
+		return getPlan().evaluateAsInts(root, callback);
+	}
+
+	/**
+	 * Evaluates an XPath expression, and passes each result that parses as
+	 * a number to a callback, as a <code>long</code>
+	 * @param root The root
+	 * @param callback The callback receiving the numbers
+	 * @return true if all the results were passed to the callback, false if
+	 * the callback stopped the evaluation
+	 */
+	public boolean evaluateAsLongs(/*@NonNull*/ XmlElement root, /*@NonNull*/ LongCallback callback)
+	{
+		return getPlan().evaluateAsLongs(root, callback);
+	}
+
+	/**
+	 * Evaluates an XPath expression, and passes each result that parses as
+	 * a number to a callback, as a <code>double</code>
+	 * @param root The root
+	 * @param callback The callback receiving the numbers
+	 * @return true if all the results were passed to the callback, false if
+	 * the callback stopped the evaluation
+	 */
+	public boolean evaluateAsDoubles(/*@NonNull*/ XmlElement root, /*@NonNull*/ DoubleCallback callback)
+	{
+		return getPlan().evaluateAsDoubles(root, callback);
+	}
+
+	/**
+	 * Evaluates an XPath expression lazily. The tree is only explored as
+	 * the results are requested.
+	 * @param root The root
+	 * @return An iterator over the results, in the same order as those of
+	 * {@link #evaluate(XmlElement)}
+	 * @see XPathPlan#iterator(XmlElement)
+	 */
+	public /*@NonNull*/ Iterator<XmlElement> iterator(/*@NonNull*/ XmlElement root)
+	{
+		return getPlan().iterator(root);
+	}
+
+	/**
+	 * Evaluates an XPath expression lazily, as an iterable that can be used
+	 * in a for-each loop
+	 * @param root The root
+	 * @return The results, in the same order as those of
+	 * {@link #evaluate(XmlElement)}
+	 * @see XPathPlan#iterate(XmlElement)
+	 */
+	public /*@NonNull*/ Iterable<XmlElement> iterate(/*@NonNull*/ XmlElement root)
+	{
+		return getPlan().iterate(root);
+	}
+
+	/**
+	 * Evaluates an XPath expression on a document read as a stream of
+	 * events, without building the tree of the whole document. Each result
+	 * is passed to the callback as soon as it is complete, i.e. when the
+	 * matching element is closed and the predicates of all its ancestors
+	 * have been decided. The results are the same, and come in the same
+	 * order, as those of {@link #evaluate(XmlElement)} on the parsed
+	 * document.
+	 * @param reader The reader producing the events
+	 * @param callback The callback receiving the results
+	 * @throws XmlParseException If the input is not well-formed
+	 * @throws IOException If reading from the input failed
+	 */
+	public void evaluate(/*@NonNull*/ XmlEventReader reader, /*@NonNull*/ ElementCallback callback) throws XmlParseException, IOException
+	{
+		new StreamingEvaluator(m_segments).evaluate(reader, callback);
+	}
+
+	/**
+	 * Evaluates an XPath expression on a stream of characters, without
+	 * building the tree of the whole document
+	 * @param r The reader to read from. The reader is not closed by this
+	 * method.
+	 * @param callback The callback receiving the results
+	 * @throws XmlParseException If the input is not well-formed
+	 * @throws IOException If reading from the input failed
+	 * @see #evaluate(XmlEventReader, ElementCallback)
+	 */
+	public void evaluate(/*@NonNull*/ Reader r, /*@NonNull*/ ElementCallback callback) throws XmlParseException, IOException
+	{
+		evaluate(new XmlEventReader(r), callback);
 	}
 
 	/**
@@ -260,60 +422,55 @@ public class XPathExpression
 	 * @param segments The list of segments
 	 * @param root The root
 	 * @return The result of the expression
+	 * @see XPathPlan
 	 */
 	protected static /*@NonNull*/ Collection<XmlElement> evaluate(/*@NonNull*/ List<Segment> segments, /*@NonNull*/ XmlElement root)
 	{
-		Collection<XmlElement> result = getNewCollection();
-		Segment first_segment = segments.get(0);
-		if (first_segment instanceof TextSegment)
-		{
-			if (root instanceof TextElement)
-			{
-				result.add(root);
-			}
-			return result;
-		}
-		if (first_segment.getElementName().compareTo(root.getName()) != 0)
+		return new XPathPlan(segments, false).evaluate(root);
+	}
+
+	/**
+	 * Compiles this expression into a plan, which evaluates faster and can
+	 * be shared among threads. The plan is a snapshot of the expression:
+	 * later changes to the expression do not affect it.
+	 * @return The plan
+	 */
+	public /*@NonNull*/ XPathPlan compile()
+	{
+		return new XPathPlan(m_segments, true);
+	}
+
+	/**
+	 * Checks whether an element matches the name and the predicates of a
+	 * segment
+	 * @param segment The segment
+	 * @param element The element
+	 * @return true if the element matches, false otherwise
+	 */
+	protected static boolean matches(/*@NonNull*/ Segment segment, /*@NonNull*/ XmlElement element)
+	{
+		String name = segment.getElementName();
+		String element_name = element.getName();
+		if (!NameTable.sameName(name, element_name))
 		{
-			return result;
+			return false;
 		}
-		Collection<Predicate> predicates = first_segment.getPredicates();
-		for (Predicate p : predicates)
+		for (Predicate p : segment.getPredicates())
 		{
-			if (!p.evaluate(root))
+			if (!p.evaluate(element))
 			{
 				// Predicate returns false: stop considering this branch
-				return result;
+				return false;
 			}
 		}
-		// This segment is OK; remove it and continue evaluation with every
-		// child of the root
-		if (segments.size() == 1)
-		{
-			result.add(root);
-			return result;
-		}
-		List<Segment> new_segments = getNewList();
-		new_segments.addAll(segments);
-		new_segments.remove(0);
-		if (!new_segments.isEmpty())
-		{
-			List<XmlElement> children = root.getChildren();
-			for (XmlElement child : children)
-			{
-				/*@NonNull*/ Collection<XmlElement> child_result = evaluate(new_segments, child);
-				result.addAll(child_result);
-			}
-		}
-		else
-		{
-			result.add(root);
-		}
-		return result;
+		return true;
 	}
 
 	/**
-	 * Gets the segments of this XPath expression
+	 * Gets the segments of this XPath expression. The list and the
+	 * predicates of its segments can be modified, but not while other
+	 * threads evaluate the expression; predicates can however be changed
+	 * through their setters at any time.
 	 * @return The list of segments
 	 */
 	public /*@NonNull*/ List<Segment> getSegments()
@@ -321,6 +478,22 @@ public class XPathExpression
 		return m_segments;
 	}
 
+	/**
+	 * Gets the plan evaluating this expression
+	 * @return The plan
+	 */
+	protected /*@NonNull*/ XPathPlan getPlan()
+	{
+		XPathPlan plan = m_plan;
+		if (plan == null || !plan.isBuiltFrom(m_segments))
+		{
+			// Threads that get here at the same time build identical plans
+			plan = new XPathPlan(m_segments, true);
+			m_plan = plan;
+		}
+		return plan;
+	}
+
 	/**
 	 * Exception denoting an error in the parsing of an XPath expression
 	 */
@@ -337,6 +510,76 @@ public class XPathExpression
 		}
 	}
 
+	/**
+	 * Receives the elements produced by the evaluation of an expression
+	 */
+	public static interface ElementCallback
+	{
+		/**
+		 * Receives an element
+		 * @param e The element
+		 * @return true if the evaluation should continue, false if it should
+		 * stop
+		 */
+		public boolean accept(/*@NonNull*/ XmlElement e);
+	}
+
+	/**
+	 * Receives the text of the results of an expression
+	 */
+	public static interface StringCallback
+	{
+		/**
+		 * Receives the text of a result
+		 * @param s The text
+		 * @return true if the evaluation should continue, false if it should
+		 * stop
+		 */
+		public boolean accept(/*@NonNull*/ String s);
+	}
+
+	/**
+	 * Receives the results of an expression as <code>int</code>s
+	 */
+	public static interface IntCallback
+	{
+		/**
+		 * Receives a number
+		 * @param n The number
+		 * @return true if the evaluation should continue, false if it should
+		 * stop
+		 */
+		public boolean accept(int n);
+	}
+
+	/**
+	 * Receives the results of an expression as <code>long</code>s
+	 */
+	public static interface LongCallback
+	{
+		/**
+		 * Receives a number
+		 * @param n The number
+		 * @return true if the evaluation should continue, false if it should
+		 * stop
+		 */
+		public boolean accept(long n);
+	}
+
+	/**
+	 * Receives the results of an expression as <code>double</code>s
+	 */
+	public static interface DoubleCallback
+	{
+		/**
+		 * Receives a number
+		 * @param n The number
+		 * @return true if the evaluation should continue, false if it should
+		 * stop
+		 */
+		public boolean accept(double n);
+	}
+
 	@Override
 	public String toString()
 	{
@@ -400,17 +643,10 @@ public class XPathExpression
 	 * Parses a string as a number
 	 * @param s The string
 	 * @return The number, or null if no number could be parsed
+	 * @see NumberParser#parse(CharSequence)
 	 */
 	protected static /*@Nullable*/ Number parseAsNumber(/*@NonNull*/ String s)
 	{
-		try
-		{
-			return s_numberFormat.parse(s);
-		} 
-		catch (ParseException e)
-		{
-			// String does not contain a number
-		}
-		return null;
+		return NumberParser.parse(s);
 	}
 }
@@ -0,0 +1,706 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import ca.uqac.lif.xml.XPathExpression.DoubleCallback;
+import ca.uqac.lif.xml.XPathExpression.ElementCallback;
+import ca.uqac.lif.xml.XPathExpression.IntCallback;
+import ca.uqac.lif.xml.XPathExpression.LongCallback;
+import ca.uqac.lif.xml.XPathExpression.StringCallback;
+
+/**
+ * Compiled form of an {@link XPathExpression}, obtained with
+ * {@link XPathExpression#compile()}. The segments of the expression are
+ * flattened into arrays, and the tree is explored one level per segment,
+ * keeping for each level only the list of children being visited and the
+ * position in that list. Apart from the collection of results, an
+ * evaluation only allocates two arrays as long as the expression. The
+ * exploration can be suspended after each result: the results can hence
+ * also be {@link #iterator(XmlElement) iterated over} lazily.
+ * <p>
+ * A plan obtained with {@link XPathExpression#compile()} holds its own
+ * copy of the predicates of the expression, and cannot be modified:
+ * later changes to the expression have no effect on it, and it can be
+ * shared by any number of threads. Plans built internally without
+ * copying the predicates (see
+ * {@link XPathExpression#evaluate(List, XmlElement)}) are only used for
+ * the duration of a single evaluation.
+ */
+public class XPathPlan
+{
+	/**
+	 * An empty array of predicates, shared by all the segments that have
+	 * none
+	 */
+	private static final Predicate[] s_noPredicates = new Predicate[0];
+
+	/**
+	 * The element does not match the expression
+	 */
+	protected static final int s_skip = 0;
+
+	/**
+	 * The element is a result of the expression
+	 */
+	protected static final int s_match = 1;
+
+	/**
+	 * The children of the element must be checked
+	 */
+	protected static final int s_descend = 2;
+
+	/**
+	 * The name matched by each segment, or null for a text segment
+	 */
+	private final String[] m_names;
+
+	/**
+	 * The predicates of each segment
+	 */
+	private final Predicate[][] m_predicates;
+
+	/**
+	 * The segments the plan was built from
+	 */
+	private final Segment[] m_segments;
+
+	/**
+	 * The predicates of each segment the plan was built from, which
+	 * differ from {@link #m_predicates} when these are copies
+	 */
+	private final Predicate[][] m_sources;
+
+	/**
+	 * The version of each of these predicates when the plan was built
+	 * @see Predicate#getVersion()
+	 */
+	private final int[][] m_versions;
+
+	/**
+	 * Creates a plan from the segments of an expression
+	 * @param segments The segments
+	 * @param copy Whether to copy the predicates of the segments, so that
+	 * changes made to them later do not affect the plan
+	 */
+	XPathPlan(/*@NonNull*/ List<Segment> segments, boolean copy)
+	{
+		super();
+		int size = segments.size();
+		m_segments = segments.toArray(new Segment[size]);
+		m_names = new String[size];
+		m_predicates = new Predicate[size][];
+		m_sources = new Predicate[size][];
+		m_versions = new int[size][];
+		for (int i = 0; i < size; i++)
+		{
+			Segment s = m_segments[i];
+			m_names[i] = s instanceof TextSegment ? null : s.getElementName();
+			Collection<Predicate> predicates = s.getPredicates();
+			if (s instanceof TextSegment || predicates == null || predicates.isEmpty())
+			{
+				m_predicates[i] = s_noPredicates;
+				m_sources[i] = s_noPredicates;
+				continue;
+			}
+			Predicate[] array = new Predicate[predicates.size()];
+			Predicate[] sources = new Predicate[array.length];
+			int[] versions = new int[array.length];
+			int j = 0;
+			for (Predicate p : predicates)
+			{
+				// Read before the copy, so that a concurrent change is noticed
+				versions[j] = p.getVersion();
+				sources[j] = p;
+				array[j++] = copy ? p.duplicate() : p;
+			}
+			m_predicates[i] = array;
+			m_sources[i] = sources;
+			m_versions[i] = versions;
+		}
+	}
+
+	/**
+	 * Evaluates the plan, using some element as the root
+	 * @param root The root
+	 * @return The result of the expression
+	 */
+	public /*@NonNull*/ Collection</*@NonNull*/ XmlElement> evaluate(/*@NonNull*/ XmlElement root)
+	{
+		Collection<XmlElement> result = XPathExpression.getNewCollection();
+		evaluate(root, result);
+		return result;
+	}
+
+	/**
+	 * Evaluates the plan, using some element as the root, and adds the
+	 * results to an existing collection
+	 * @param root The root
+	 * @param out The collection to which the results are added, in document
+	 * order
+	 */
+	public void evaluate(/*@NonNull*/ XmlElement root, /*@NonNull*/ Collection<? super XmlElement> out)
+	{
+		ResultIterator it = new ResultIterator(root);
+		while (it.hasNext())
+		{
+			out.add(it.next());
+		}
+	}
+
+	/**
+	 * Evaluates the plan lazily. The tree is only explored as the results
+	 * are requested, so that a caller that stops after the first few
+	 * results does not pay for the rest of the tree.
+	 * @param root The root
+	 * @return An iterator over the results, in document order
+	 */
+	public /*@NonNull*/ Iterator<XmlElement> iterator(/*@NonNull*/ XmlElement root)
+	{
+		return new ResultIterator(root);
+	}
+
+	/**
+	 * Evaluates the plan lazily, as an iterable that can be used in a
+	 * for-each loop. Each call to {@link Iterable#iterator()} starts a new
+	 * evaluation.
+	 * @param root The root
+	 * @return The results, in document order
+	 * @see #iterator(XmlElement)
+	 */
+	public /*@NonNull*/ Iterable<XmlElement> iterate(/*@NonNull*/ final XmlElement root)
+	{
+		return new Iterable<XmlElement>()
+		{
+			@Override
+			public Iterator<XmlElement> iterator()
+			{
+				return new ResultIterator(root);
+			}
+		};
+	}
+
+	/**
+	 * Gets the first result of the plan. The tree is explored only up to
+	 * that result.
+	 * @param root The root
+	 * @return The first result in document order, or null if there is none
+	 */
+	public /*@Nullable*/ XmlElement evaluateAny(/*@NonNull*/ XmlElement root)
+	{
+		ResultIterator it = new ResultIterator(root);
+		return it.hasNext() ? it.next() : null;
+	}
+
+	/**
+	 * Evaluates the plan, and passes each result to a callback as soon as
+	 * it is found, without collecting the results
+	 * @param root The root
+	 * @param callback The callback receiving the results, in document order
+	 * @return true if all the results were passed to the callback, false if
+	 * the callback stopped the evaluation
+	 */
+	public boolean evaluate(/*@NonNull*/ XmlElement root, /*@NonNull*/ ElementCallback callback)
+	{
+		ResultIterator it = new ResultIterator(root);
+		while (it.hasNext())
+		{
+			if (!callback.accept(it.next()))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Evaluates the plan, and passes the text of each result that is a
+	 * text node to a callback
+	 * @param root The root
+	 * @param callback The callback receiving the strings
+	 * @return true if all the results were passed to the callback, false if
+	 * the callback stopped the evaluation
+	 */
+	public boolean evaluateAsStrings(/*@NonNull*/ XmlElement root, /*@NonNull*/ StringCallback callback)
+	{
+		ResultIterator it = new ResultIterator(root);
+		while (it.hasNext())
+		{
+			XmlElement e = it.next();
+			if (e instanceof TextElement && !callback.accept(((TextElement) e).getText()))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Evaluates the plan, and passes each result that parses as a number to
+	 * a callback, as an <code>int</code>
+	 * @param root The root
+	 * @param callback The callback receiving the numbers
+	 * @return true if all the results were passed to the callback, false if
+	 * the callback stopped the evaluation
+	 * @see NumberParser
+	 */
+	public boolean evaluateAsInts(/*@NonNull*/ XmlElement root, /*@NonNull*/ IntCallback callback)
+	{
+		ResultIterator it = new ResultIterator(root);
+		while (it.hasNext())
+		{
+			XmlElement e = it.next();
+			if (!(e instanceof TextElement))
+			{
+				continue;
+			}
+			String text = ((TextElement) e).getText();
+			int length = NumberParser.scan(text);
+			if (length > 0 && !callback.accept(NumberParser.toInt(text, length)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Evaluates the plan, and passes each result that parses as a number to
+	 * a callback, as a <code>long</code>
+	 * @param root The root
+	 * @param callback The callback receiving the numbers
+	 * @return true if all the results were passed to the callback, false if
+	 * the callback stopped the evaluation
+	 * @see NumberParser
+	 */
+	public boolean evaluateAsLongs(/*@NonNull*/ XmlElement root, /*@NonNull*/ LongCallback callback)
+	{
+		ResultIterator it = new ResultIterator(root);
+		while (it.hasNext())
+		{
+			XmlElement e = it.next();
+			if (!(e instanceof TextElement))
+			{
+				continue;
+			}
+			String text = ((TextElement) e).getText();
+			int length = NumberParser.scan(text);
+			if (length > 0 && !callback.accept(NumberParser.toLong(text, length)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Evaluates the plan, and passes each result that parses as a number to
+	 * a callback, as a <code>double</code>
+	 * @param root The root
+	 * @param callback The callback receiving the numbers
+	 * @return true if all the results were passed to the callback, false if
+	 * the callback stopped the evaluation
+	 * @see NumberParser
+	 */
+	public boolean evaluateAsDoubles(/*@NonNull*/ XmlElement root, /*@NonNull*/ DoubleCallback callback)
+	{
+		ResultIterator it = new ResultIterator(root);
+		while (it.hasNext())
+		{
+			XmlElement e = it.next();
+			if (!(e instanceof TextElement))
+			{
+				continue;
+			}
+			String text = ((TextElement) e).getText();
+			int length = NumberParser.scan(text);
+			if (length > 0 && !callback.accept(NumberParser.toDouble(text, length)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Evaluates the plan, and gets all the results that parse as a number,
+	 * as <code>long</code>s
+	 * @param root The root
+	 * @return The numbers, in document order
+	 * @see NumberParser
+	 */
+	public /*@NonNull*/ long[] evaluateAsLongs(/*@NonNull*/ XmlElement root)
+	{
+		long[] values = new long[8];
+		int count = 0;
+		ResultIterator it = new ResultIterator(root);
+		while (it.hasNext())
+		{
+			XmlElement e = it.next();
+			if (!(e instanceof TextElement))
+			{
+				continue;
+			}
+			String text = ((TextElement) e).getText();
+			int length = NumberParser.scan(text);
+			if (length > 0)
+			{
+				if (count == values.length)
+				{
+					values = Arrays.copyOf(values, 2 * count);
+				}
+				values[count++] = NumberParser.toLong(text, length);
+			}
+		}
+		return Arrays.copyOf(values, count);
+	}
+
+	/**
+	 * Evaluates the plan, and gets all the results that parse as a number,
+	 * as <code>double</code>s
+	 * @param root The root
+	 * @return The numbers, in document order
+	 * @see NumberParser
+	 */
+	public /*@NonNull*/ double[] evaluateAsDoubles(/*@NonNull*/ XmlElement root)
+	{
+		double[] values = new double[8];
+		int count = 0;
+		ResultIterator it = new ResultIterator(root);
+		while (it.hasNext())
+		{
+			XmlElement e = it.next();
+			if (!(e instanceof TextElement))
+			{
+				continue;
+			}
+			String text = ((TextElement) e).getText();
+			int length = NumberParser.scan(text);
+			if (length > 0)
+			{
+				if (count == values.length)
+				{
+					values = Arrays.copyOf(values, 2 * count);
+				}
+				values[count++] = NumberParser.toDouble(text, length);
+			}
+		}
+		return Arrays.copyOf(values, count);
+	}
+
+	/**
+	 * Gets the first result of the plan that parses as a number. The tree
+	 * is explored only up to that result.
+	 * @param root The root
+	 * @return The number, or null if no result is a number
+	 * @see NumberParser#parse(CharSequence)
+	 */
+	public /*@Nullable*/ Number evaluateAnyNumber(/*@NonNull*/ XmlElement root)
+	{
+		String text = findNumber(root);
+		return text == null ? null : NumberParser.parse(text);
+	}
+
+	/**
+	 * Gets the first result of the plan that parses as a number, as an
+	 * <code>int</code>
+	 * @param root The root
+	 * @param default_value The value to return if no result is a number
+	 * @return The number
+	 */
+	public int evaluateAnyInt(/*@NonNull*/ XmlElement root, int default_value)
+	{
+		String text = findNumber(root);
+		return text == null ? default_value : NumberParser.toInt(text, NumberParser.scan(text));
+	}
+
+	/**
+	 * Gets the first result of the plan that parses as a number, as a
+	 * <code>long</code>
+	 * @param root The root
+	 * @param default_value The value to return if no result is a number
+	 * @return The number
+	 */
+	public long evaluateAnyLong(/*@NonNull*/ XmlElement root, long default_value)
+	{
+		String text = findNumber(root);
+		return text == null ? default_value : NumberParser.toLong(text, NumberParser.scan(text));
+	}
+
+	/**
+	 * Gets the first result of the plan that parses as a number, as a
+	 * <code>double</code>
+	 * @param root The root
+	 * @param default_value The value to return if no result is a number
+	 * @return The number
+	 */
+	public double evaluateAnyDouble(/*@NonNull*/ XmlElement root, double default_value)
+	{
+		String text = findNumber(root);
+		return text == null ? default_value : NumberParser.toDouble(text, NumberParser.scan(text));
+	}
+
+	/**
+	 * Finds the first result that is a text node starting with a number
+	 * @param root The root
+	 * @return The text of the result, or null if there is none
+	 */
+	protected /*@Nullable*/ String findNumber(/*@NonNull*/ XmlElement root)
+	{
+		ResultIterator it = new ResultIterator(root);
+		while (it.hasNext())
+		{
+			XmlElement e = it.next();
+			if (e instanceof TextElement)
+			{
+				String text = ((TextElement) e).getText();
+				if (NumberParser.scan(text) > 0)
+				{
+					return text;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Checks an element against a segment
+	 * @param index The index of the segment
+	 * @param e The element
+	 * @return {@link #s_match} if the element is a result,
+	 * {@link #s_descend} if its children must be checked against the next
+	 * segment, {@link #s_skip} otherwise
+	 */
+	protected int check(int index, /*@NonNull*/ XmlElement e)
+	{
+		String name = m_names[index];
+		if (name == null)
+		{
+			// Text segment
+			return e instanceof TextElement ? s_match : s_skip;
+		}
+		String element_name = e.getName();
+		if (!NameTable.sameName(name, element_name))
+		{
+			return s_skip;
+		}
+		for (Predicate p : m_predicates[index])
+		{
+			if (!p.evaluate(e))
+			{
+				return s_skip;
+			}
+		}
+		return index == m_names.length - 1 ? s_match : s_descend;
+	}
+
+	/**
+	 * Checks whether the plan still corresponds to a list of segments:
+	 * the list must hold the same segments as when the plan was built,
+	 * with the same predicates, none of which has been modified since
+	 * @param segments The segments
+	 * @return true if the plan corresponds to the segments, false
+	 * otherwise
+	 */
+	boolean isBuiltFrom(/*@NonNull*/ List<Segment> segments)
+	{
+		if (segments.size() != m_segments.length)
+		{
+			return false;
+		}
+		for (int i = 0; i < m_segments.length; i++)
+		{
+			Segment s = segments.get(i);
+			if (s != m_segments[i])
+			{
+				return false;
+			}
+			Collection<Predicate> predicates = s.getPredicates();
+			Predicate[] sources = m_sources[i];
+			if ((predicates == null ? 0 : predicates.size()) != sources.length)
+			{
+				return false;
+			}
+			if (sources.length == 0)
+			{
+				continue;
+			}
+			int[] versions = m_versions[i];
+			int j = 0;
+			for (Predicate p : predicates)
+			{
+				if (p != sources[j] || p.getVersion() != versions[j])
+				{
+					return false;
+				}
+				j++;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the number of segments of the expression
+	 * @return The number of segments
+	 */
+	public int size()
+	{
+		return m_names.length;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < m_names.length; i++)
+		{
+			if (i > 0)
+			{
+				out.append(XPathExpression.s_pathSeparator);
+			}
+			if (m_names[i] == null)
+			{
+				out.append(TextSegment.s_expression);
+				continue;
+			}
+			out.append(m_names[i]);
+			for (Predicate p : m_predicates[i])
+			{
+				out.append(p);
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Iterator exploring the tree one result at a time
+	 */
+	protected class ResultIterator implements Iterator<XmlElement>
+	{
+		/**
+		 * For each level of the tree below the root, the children being
+		 * visited
+		 */
+		private final List<List<XmlElement>> m_lists;
+
+		/**
+		 * For each level, the position of the next child to visit
+		 */
+		private final int[] m_positions;
+
+		/**
+		 * The next result, if it has already been found
+		 */
+		private /*@Nullable*/ XmlElement m_next;
+
+		/**
+		 * Creates an iterator
+		 * @param root The root of the tree
+		 */
+		public ResultIterator(/*@NonNull*/ XmlElement root)
+		{
+			super();
+			int length = m_names.length;
+			m_lists = new ArrayList<List<XmlElement>>(length);
+			m_positions = new int[length];
+			if (length == 0)
+			{
+				return;
+			}
+			int action = check(0, root);
+			if (action == s_match)
+			{
+				m_next = root;
+			}
+			else if (action == s_descend)
+			{
+				m_lists.add(root.getChildren());
+			}
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			if (m_next == null)
+			{
+				m_next = findNext();
+			}
+			return m_next != null;
+		}
+
+		@Override
+		public /*@NonNull*/ XmlElement next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			XmlElement e = m_next;
+			m_next = null;
+			return e;
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException("Results cannot be removed");
+		}
+
+		/**
+		 * Explores the tree up to the next result
+		 * @return The result, or null if there are no more results
+		 */
+		private /*@Nullable*/ XmlElement findNext()
+		{
+			List<List<XmlElement>> lists = m_lists;
+			int[] positions = m_positions;
+			int level = lists.size() - 1;
+			while (level >= 0)
+			{
+				List<XmlElement> children = lists.get(level);
+				int position = positions[level];
+				if (position == children.size())
+				{
+					lists.remove(level);
+					level--;
+					continue;
+				}
+				positions[level] = position + 1;
+				XmlElement child = children.get(position);
+				int action = check(level + 1, child);
+				if (action == s_match)
+				{
+					return child;
+				}
+				if (action == s_descend)
+				{
+					level++;
+					lists.add(child.getChildren());
+					positions[level] = 0;
+				}
+			}
+			return null;
+		}
+	}
+}
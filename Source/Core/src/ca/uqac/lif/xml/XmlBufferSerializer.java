@@ -0,0 +1,315 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializer writing the UTF-8 representation of an element into byte
+ * buffers taken from a {@link BufferPool}. A document larger than one
+ * buffer is spread over as many buffers as needed, which can be written
+ * at once to a {@link GatheringByteChannel}; no string or byte array
+ * holding the whole document is ever built.
+ * <p>
+ * The serializer keeps the encoded bytes of the tags of the names it has
+ * seen, so that the name of an element is only encoded the first time
+ * it is written. At most {@link NameTable#s_defaultMaxSize} names are
+ * kept.
+ * <p>
+ * A serializer can be reused for any number of documents, but is not
+ * thread-safe. The output is the same as {@link XmlElement#toString()}.
+ */
+public class XmlBufferSerializer
+{
+	/**
+	 * The pool the buffers are taken from
+	 */
+	protected final BufferPool m_pool;
+
+	/**
+	 * The encoded opening tags of the names seen so far
+	 */
+	protected final Map<String,byte[]> m_openingTags;
+
+	/**
+	 * The encoded closing tags of the names seen so far
+	 */
+	protected final Map<String,byte[]> m_closingTags;
+
+	/**
+	 * The buffers filled with the document being written
+	 */
+	protected final List<ByteBuffer> m_buffers;
+
+	/**
+	 * The writer encoding text into the buffers
+	 */
+	protected final Utf8Writer m_writer;
+
+	/**
+	 * The elements that are currently open
+	 */
+	protected final List<XmlElement> m_elements;
+
+	/**
+	 * The position of the next child to write in each open element
+	 */
+	protected int[] m_positions;
+
+	/**
+	 * Creates a serializer with its own pool of direct buffers
+	 */
+	public XmlBufferSerializer()
+	{
+		this(new BufferPool());
+	}
+
+	/**
+	 * Creates a serializer
+	 * @param pool The pool the buffers are taken from
+	 */
+	public XmlBufferSerializer(/*@NonNull*/ BufferPool pool)
+	{
+		super();
+		m_pool = pool;
+		m_openingTags = new HashMap<String,byte[]>();
+		m_closingTags = new HashMap<String,byte[]>();
+		m_buffers = new ArrayList<ByteBuffer>();
+		m_writer = new Utf8Writer(new BufferOutput());
+		m_elements = new ArrayList<XmlElement>();
+		m_positions = new int[16];
+	}
+
+	/**
+	 * Gets the pool the buffers are taken from
+	 * @return The pool
+	 */
+	public /*@NonNull*/ BufferPool getPool()
+	{
+		return m_pool;
+	}
+
+	/**
+	 * Writes an element into buffers
+	 * @param e The element
+	 * @return The buffers, ready to be read, in order. They should be given
+	 * back to the {@link #getPool() pool} once they have been used.
+	 */
+	public /*@NonNull*/ ByteBuffer[] serialize(/*@NonNull*/ XmlElement e)
+	{
+		List<ByteBuffer> buffers = m_buffers;
+		buffers.add(m_pool.acquire());
+		boolean done = false;
+		try
+		{
+			write(e);
+			m_writer.finish();
+			done = true;
+		}
+		catch (IOException ex)
+		{
+			// Cannot happen when writing to buffers
+			throw new IllegalStateException(ex);
+		}
+		finally
+		{
+			m_elements.clear();
+			if (!done)
+			{
+				m_writer.discard();
+				for (ByteBuffer b : buffers)
+				{
+					m_pool.release(b);
+				}
+				buffers.clear();
+			}
+		}
+		ByteBuffer[] out = buffers.toArray(new ByteBuffer[buffers.size()]);
+		buffers.clear();
+		for (ByteBuffer b : out)
+		{
+			b.flip();
+		}
+		return out;
+	}
+
+	/**
+	 * Writes an element to a channel, and gives the buffers back to the
+	 * pool
+	 * @param e The element
+	 * @param channel The channel to write to, which must be in blocking
+	 * mode. Callers writing to a non-blocking channel should rather call
+	 * {@link #serialize(XmlElement)} and write the buffers as the channel
+	 * becomes ready.
+	 * @return The number of bytes written
+	 * @throws IOException If writing to the channel failed
+	 * @throws IllegalBlockingModeException If the channel is in
+	 * non-blocking mode
+	 */
+	public long write(/*@NonNull*/ XmlElement e, /*@NonNull*/ GatheringByteChannel channel) throws IOException
+	{
+		if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking())
+		{
+			// Would spin on writes of zero bytes until the channel is ready
+			throw new IllegalBlockingModeException();
+		}
+		ByteBuffer[] buffers = serialize(e);
+		try
+		{
+			long written = 0;
+			int first = 0;
+			while (first < buffers.length)
+			{
+				written += channel.write(buffers, first, buffers.length - first);
+				while (first < buffers.length && !buffers[first].hasRemaining())
+				{
+					first++;
+				}
+			}
+			return written;
+		}
+		finally
+		{
+			m_pool.release(buffers);
+		}
+	}
+
+	/**
+	 * Walks the tree of an element and writes it
+	 * @param root The element
+	 * @throws IOException If writing failed
+	 */
+	protected void write(/*@NonNull*/ XmlElement root) throws IOException
+	{
+		Utf8Writer writer = m_writer;
+		if (root instanceof TextElement || root.isCached())
+		{
+			root.writeTo(writer);
+			return;
+		}
+		// Same walk as in XmlElement, with the tags taken from the cache
+		List<XmlElement> elements = m_elements;
+		int[] positions = m_positions;
+		writeTag(root.getName(), true);
+		elements.add(root);
+		positions[0] = 0;
+		while (!elements.isEmpty())
+		{
+			int top = elements.size() - 1;
+			XmlElement e = elements.get(top);
+			List<XmlElement> children = e.getChildren();
+			int position = positions[top];
+			if (position == children.size())
+			{
+				writeTag(e.getName(), false);
+				elements.remove(top);
+				continue;
+			}
+			positions[top] = position + 1;
+			XmlElement child = children.get(position);
+			if (child instanceof TextElement || child.isCached())
+			{
+				child.writeTo(writer);
+				continue;
+			}
+			writeTag(child.getName(), true);
+			if (top + 1 == positions.length)
+			{
+				int[] new_positions = new int[positions.length * 2];
+				System.arraycopy(positions, 0, new_positions, 0, positions.length);
+				positions = new_positions;
+				m_positions = positions;
+			}
+			positions[top + 1] = 0;
+			elements.add(child);
+		}
+	}
+
+	/**
+	 * Writes the tag of an element
+	 * @param name The name of the element
+	 * @param opening Whether to write the opening or the closing tag
+	 * @throws IOException If writing failed
+	 */
+	protected void writeTag(/*@NonNull*/ String name, boolean opening) throws IOException
+	{
+		Map<String,byte[]> tags = opening ? m_openingTags : m_closingTags;
+		byte[] tag = tags.get(name);
+		if (tag == null)
+		{
+			tag = ((opening ? "<" : "</") + name + ">").getBytes(Utf8Tokenizer.s_utf8);
+			if (tags.size() < NameTable.s_defaultMaxSize)
+			{
+				tags.put(name, tag);
+			}
+		}
+		m_writer.writeBytes(tag, 0, tag.length);
+	}
+
+	/**
+	 * Stream putting the bytes it receives into the buffers of the
+	 * serializer, taking new ones from the pool as they fill up
+	 */
+	protected class BufferOutput extends OutputStream
+	{
+		@Override
+		public void write(int b)
+		{
+			current(1).put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			while (len > 0)
+			{
+				ByteBuffer buffer = current(1);
+				int n = Math.min(len, buffer.remaining());
+				buffer.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * Gets the buffer to write to
+		 * @param needed The number of bytes to write
+		 * @return The last buffer, or a new one if it has less room than
+		 * needed
+		 */
+		protected /*@NonNull*/ ByteBuffer current(int needed)
+		{
+			ByteBuffer buffer = m_buffers.get(m_buffers.size() - 1);
+			if (buffer.remaining() < needed)
+			{
+				buffer = m_pool.acquire();
+				m_buffers.add(buffer);
+			}
+			return buffer;
+		}
+	}
+}
@@ -0,0 +1,789 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+import ca.uqac.lif.xml.XmlTokenizer.Token;
+
+/**
+ * Compact representation of an XML document. Instead of one object per
+ * node, the tree is stored in a few arrays of primitive values, indexed by
+ * node number: the name of each element (as an index in a table of
+ * distinct names), its first child, its next sibling and its parent. The
+ * text of all the text nodes is concatenated in a single character array,
+ * in which each text node records its offset and length. A node hence
+ * takes about 24 bytes, plus the characters of its text.
+ * <p>
+ * Nodes are numbered in document order, the root being node 0; a value
+ * of -1 stands for "no node". Text nodes have no name, and their name
+ * index is -1.
+ * <p>
+ * The document cannot be modified once it is built. It can be queried
+ * through {@link #getRoot()}, which returns a view of the root that
+ * behaves like an {@link XmlElement}: {@link XPathExpression}s can be
+ * evaluated on it unchanged. Views are small objects created on demand:
+ * the document keeps the view of its root, and each element view keeps
+ * the views of its children once they have been asked for, so that
+ * walking the same part of the tree twice creates no new objects. The
+ * text of a text node is copied into a string the first time it is read,
+ * and kept by its view.
+ */
+public class XmlDocumentArena
+{
+	/**
+	 * The distinct names of the elements
+	 */
+	private final String[] m_nameTable;
+
+	/**
+	 * For each node, the index of its name in the name table, or -1 for a
+	 * text node
+	 */
+	private final int[] m_names;
+
+	/**
+	 * For each node, the index of its first child
+	 */
+	private final int[] m_firstChild;
+
+	/**
+	 * For each node, the index of its next sibling
+	 */
+	private final int[] m_nextSibling;
+
+	/**
+	 * For each node, the index of its parent
+	 */
+	private final int[] m_parent;
+
+	/**
+	 * For each text node, the position of its text in the text array
+	 */
+	private final int[] m_textStart;
+
+	/**
+	 * For each text node, the length of its text
+	 */
+	private final int[] m_textLength;
+
+	/**
+	 * The text of all the text nodes
+	 */
+	private final char[] m_text;
+
+	/**
+	 * The view of the root, created on the first call to {@link #getRoot()}
+	 */
+	private volatile XmlElement m_root;
+
+	/**
+	 * Creates a document from the arrays filled by a {@link Builder}
+	 * @param b The builder
+	 */
+	protected XmlDocumentArena(/*@NonNull*/ Builder b)
+	{
+		super();
+		int size = b.m_size;
+		m_nameTable = b.m_nameTable.toArray(new String[b.m_nameTable.size()]);
+		m_names = trim(b.m_names, size);
+		m_firstChild = trim(b.m_firstChild, size);
+		m_nextSibling = trim(b.m_nextSibling, size);
+		m_parent = trim(b.m_parent, size);
+		m_textStart = trim(b.m_textStart, size);
+		m_textLength = trim(b.m_textLength, size);
+		m_text = new char[b.m_textSize];
+		System.arraycopy(b.m_text, 0, m_text, 0, b.m_textSize);
+	}
+
+	/**
+	 * Creates a document from a string
+	 * @param s The string to read
+	 * @return The document
+	 * @throws XmlParseException If parsing resulted in an error
+	 */
+	public static /*@NonNull*/ XmlDocumentArena parse(/*@Nullable*/ String s) throws XmlParseException
+	{
+		if (s == null)
+		{
+			throw new XmlParseException("Input string is null");
+		}
+		try
+		{
+			return parse(new XmlTokenizer(s));
+		}
+		catch (IOException e)
+		{
+			// Cannot happen when reading from a string
+			throw new XmlParseException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Creates a document from bytes encoded in UTF-8
+	 * @param bytes The bytes to read
+	 * @return The document
+	 * @throws XmlParseException If parsing resulted in an error
+	 */
+	public static /*@NonNull*/ XmlDocumentArena parse(/*@Nullable*/ byte[] bytes) throws XmlParseException
+	{
+		if (bytes == null)
+		{
+			throw new XmlParseException("Input bytes are null");
+		}
+		try
+		{
+			return parse(new Utf8Tokenizer(bytes));
+		}
+		catch (IOException e)
+		{
+			// Cannot happen when reading from memory
+			throw new XmlParseException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Creates a document from a stream of characters
+	 * @param r The reader to read from. The reader is not closed by this
+	 * method.
+	 * @return The document
+	 * @throws XmlParseException If parsing resulted in an error
+	 * @throws IOException If reading from the reader failed
+	 */
+	public static /*@NonNull*/ XmlDocumentArena parse(/*@Nullable*/ Reader r) throws XmlParseException, IOException
+	{
+		if (r == null)
+		{
+			throw new XmlParseException("Input reader is null");
+		}
+		return parse(new XmlTokenizer(r));
+	}
+
+	/**
+	 * Creates a document from the tokens produced by a tokenizer. The
+	 * document is the same as the one produced by {@link XmlParser}.
+	 * @param tokenizer The tokenizer
+	 * @return The document
+	 * @throws XmlParseException If parsing resulted in an error
+	 * @throws IOException If reading from the input failed
+	 */
+	public static /*@NonNull*/ XmlDocumentArena parse(/*@NonNull*/ XmlTokenizer tokenizer) throws XmlParseException, IOException
+	{
+		Builder b = new Builder();
+		Token t = tokenizer.next();
+		if (t == Token.EOF)
+		{
+			b.addText(-1, -1, new char[0], 0, 0);
+			return new XmlDocumentArena(b);
+		}
+		if (t == Token.TEXT)
+		{
+			// A document that does not start with a tag is plain text
+			char[] text = tokenizer.readToEnd().toCharArray();
+			b.addText(-1, -1, text, 0, text.length);
+			return new XmlDocumentArena(b);
+		}
+		String root_name = XmlParser.getName(tokenizer, NameTable.getGlobal());
+		b.addElement(-1, -1, root_name);
+		// For each open element, its last child so far
+		int[] last_child = new int[16];
+		int[] open = new int[16];
+		open[0] = 0;
+		last_child[0] = -1;
+		int depth = 1;
+		while (depth > 0)
+		{
+			t = tokenizer.next();
+			int parent = open[depth - 1];
+			if (t == Token.TEXT)
+			{
+				last_child[depth - 1] = b.addText(parent, last_child[depth - 1], tokenizer.getBuffer(), tokenizer.getTokenStart(), tokenizer.getTokenLength());
+			}
+			else if (t == Token.START)
+			{
+				int node = b.addElement(parent, last_child[depth - 1], XmlParser.getName(tokenizer, NameTable.getGlobal()));
+				last_child[depth - 1] = node;
+				if (depth == open.length)
+				{
+					open = grow(open);
+					last_child = grow(last_child);
+				}
+				open[depth] = node;
+				last_child[depth] = -1;
+				depth++;
+			}
+			else
+			{
+				// The tokenizer has checked that the tags match, and never
+				// returns EOF while elements are open
+				depth--;
+			}
+		}
+		if (tokenizer.next() != Token.EOF)
+		{
+			throw new XmlParseException("Unexpected content after closing element " + root_name);
+		}
+		return new XmlDocumentArena(b);
+	}
+
+	/**
+	 * Gets a view of the root of the document. The view is created on the
+	 * first call, and the same object is returned afterwards.
+	 * @return The root
+	 */
+	public /*@NonNull*/ XmlElement getRoot()
+	{
+		XmlElement root = m_root;
+		if (root == null)
+		{
+			root = getElement(0);
+			m_root = root;
+		}
+		return root;
+	}
+
+	/**
+	 * Gets a view of a node of the document. The view is a new object on
+	 * each call, which behaves like a parsed {@link XmlElement} (or
+	 * {@link TextElement} for a text node), except that it cannot be
+	 * modified. Code visiting the tree repeatedly should rather start from
+	 * {@link #getRoot()}, whose views are kept.
+	 * @param node The index of the node
+	 * @return The view
+	 */
+	public /*@NonNull*/ XmlElement getElement(int node)
+	{
+		if (m_names[node] < 0)
+		{
+			return new ArenaTextElement(this, node);
+		}
+		return new ArenaElement(this, node);
+	}
+
+	/**
+	 * Gets the number of nodes in the document
+	 * @return The number of nodes
+	 */
+	public int size()
+	{
+		return m_names.length;
+	}
+
+	/**
+	 * Checks whether a node is a text node
+	 * @param node The index of the node
+	 * @return true if the node is a text node, false if it is an element
+	 */
+	public boolean isText(int node)
+	{
+		return m_names[node] < 0;
+	}
+
+	/**
+	 * Gets the name of an element
+	 * @param node The index of the node
+	 * @return The name, or null for a text node
+	 */
+	public /*@Nullable*/ String getName(int node)
+	{
+		int id = m_names[node];
+		return id < 0 ? null : m_nameTable[id];
+	}
+
+	/**
+	 * Gets the index of the name of an element in the table of names
+	 * @param node The index of the node
+	 * @return The index of the name, or -1 for a text node
+	 * @see #getNameTable()
+	 */
+	public int getNameId(int node)
+	{
+		return m_names[node];
+	}
+
+	/**
+	 * Gets the distinct names of the elements of the document
+	 * @return A copy of the table of names
+	 */
+	public /*@NonNull*/ String[] getNameTable()
+	{
+		return m_nameTable.clone();
+	}
+
+	/**
+	 * Gets the first child of a node
+	 * @param node The index of the node
+	 * @return The index of the child, or -1 if the node has no children
+	 */
+	public int getFirstChild(int node)
+	{
+		return m_firstChild[node];
+	}
+
+	/**
+	 * Gets the next sibling of a node
+	 * @param node The index of the node
+	 * @return The index of the sibling, or -1 if the node is the last child
+	 * of its parent
+	 */
+	public int getNextSibling(int node)
+	{
+		return m_nextSibling[node];
+	}
+
+	/**
+	 * Gets the parent of a node
+	 * @param node The index of the node
+	 * @return The index of the parent, or -1 for the root
+	 */
+	public int getParent(int node)
+	{
+		return m_parent[node];
+	}
+
+	/**
+	 * Gets the text of a text node. The text is copied into a new string
+	 * on each call.
+	 * @param node The index of the node
+	 * @return The text, or null if the node is an element
+	 */
+	public /*@Nullable*/ String getText(int node)
+	{
+		if (m_names[node] >= 0)
+		{
+			return null;
+		}
+		return new String(m_text, m_textStart[node], m_textLength[node]);
+	}
+
+	/**
+	 * Copies the document into a tree of {@link XmlElement}s
+	 * @return The root of the tree
+	 */
+	public /*@NonNull*/ XmlElement toXmlElement()
+	{
+		if (m_names[0] < 0)
+		{
+			return new TextElement(getText(0));
+		}
+		XmlElement[] elements = new XmlElement[m_names.length];
+		elements[0] = new XmlElement(m_nameTable[m_names[0]]);
+		// Parents always come before their children
+		for (int node = 1; node < m_names.length; node++)
+		{
+			XmlElement e;
+			if (m_names[node] < 0)
+			{
+				e = new TextElement(getText(node));
+			}
+			else
+			{
+				e = new XmlElement(m_nameTable[m_names[node]]);
+			}
+			elements[node] = e;
+			elements[m_parent[node]].appendChild(e);
+		}
+		for (XmlElement e : elements)
+		{
+			e.trimChildren();
+		}
+		return elements[0];
+	}
+
+	@Override
+	public /*@NonNull*/ String toString()
+	{
+		StringBuilder out = new StringBuilder();
+		try
+		{
+			writeTo(out, 0);
+		}
+		catch (IOException e)
+		{
+			// Cannot happen when writing to a string builder
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Writes the XML representation of the document, directly from its
+	 * arrays
+	 * @param out The output to write to
+	 * @throws IOException If writing to the output failed
+	 * @see XmlElement#writeTo(Appendable)
+	 */
+	public void writeTo(/*@NonNull*/ Appendable out) throws IOException
+	{
+		writeTo(out, 0);
+	}
+
+	/**
+	 * Writes the XML representation of a node and its descendants
+	 * @param out The output to write to
+	 * @param from The index of the node
+	 * @throws IOException If writing to the output failed
+	 */
+	protected void writeTo(/*@NonNull*/ Appendable out, int from) throws IOException
+	{
+		int node = from;
+		while (true)
+		{
+			if (m_names[node] < 0)
+			{
+				writeText(out, node);
+			}
+			else
+			{
+				out.append('<').append(m_nameTable[m_names[node]]).append('>');
+				if (m_firstChild[node] >= 0)
+				{
+					node = m_firstChild[node];
+					continue;
+				}
+				out.append("</").append(m_nameTable[m_names[node]]).append('>');
+			}
+			// Close the elements whose last child has been written
+			while (node != from && m_nextSibling[node] < 0)
+			{
+				node = m_parent[node];
+				out.append("</").append(m_nameTable[m_names[node]]).append('>');
+			}
+			if (node == from)
+			{
+				return;
+			}
+			node = m_nextSibling[node];
+		}
+	}
+
+	/**
+	 * Writes the contents of a text node, without copying them into a
+	 * string
+	 * @param out The output to write to
+	 * @param node The index of the node
+	 * @throws IOException If writing to the output failed
+	 */
+	protected void writeText(/*@NonNull*/ Appendable out, int node) throws IOException
+	{
+		int start = m_textStart[node];
+		int length = m_textLength[node];
+		if (out instanceof StringBuilder)
+		{
+			((StringBuilder) out).append(m_text, start, length);
+		}
+		else if (out instanceof Writer)
+		{
+			((Writer) out).write(m_text, start, length);
+		}
+		else
+		{
+			out.append(CharBuffer.wrap(m_text, start, length));
+		}
+	}
+
+	/**
+	 * Copies the first elements of an array into a new array
+	 * @param array The array
+	 * @param size The number of elements to copy
+	 * @return The new array
+	 */
+	protected static /*@NonNull*/ int[] trim(/*@NonNull*/ int[] array, int size)
+	{
+		int[] a = new int[size];
+		System.arraycopy(array, 0, a, 0, size);
+		return a;
+	}
+
+	/**
+	 * Copies an array into a new array twice as large
+	 * @param array The array
+	 * @return The new array
+	 */
+	protected static /*@NonNull*/ int[] grow(/*@NonNull*/ int[] array)
+	{
+		int[] a = new int[array.length * 2];
+		System.arraycopy(array, 0, a, 0, array.length);
+		return a;
+	}
+
+	/**
+	 * Accumulates the nodes of a document while it is being read
+	 */
+	protected static class Builder
+	{
+		protected List<String> m_nameTable = new ArrayList<String>();
+
+		protected Map<String,Integer> m_nameIds = new HashMap<String,Integer>();
+
+		protected int m_size = 0;
+
+		protected int[] m_names = new int[64];
+
+		protected int[] m_firstChild = new int[64];
+
+		protected int[] m_nextSibling = new int[64];
+
+		protected int[] m_parent = new int[64];
+
+		protected int[] m_textStart = new int[64];
+
+		protected int[] m_textLength = new int[64];
+
+		protected char[] m_text = new char[256];
+
+		protected int m_textSize = 0;
+
+		/**
+		 * Adds an element
+		 * @param parent The index of the parent, or -1 for the root
+		 * @param previous The index of the previous sibling, or -1 if the
+		 * element is the first child of its parent
+		 * @param name The name of the element
+		 * @return The index of the element
+		 */
+		protected int addElement(int parent, int previous, /*@NonNull*/ String name)
+		{
+			Integer id = m_nameIds.get(name);
+			if (id == null)
+			{
+				id = m_nameTable.size();
+				m_nameTable.add(name);
+				m_nameIds.put(name, id);
+			}
+			int node = addNode(parent, previous);
+			m_names[node] = id;
+			return node;
+		}
+
+		/**
+		 * Adds a text node
+		 * @param parent The index of the parent, or -1 for the root
+		 * @param previous The index of the previous sibling, or -1 if the
+		 * node is the first child of its parent
+		 * @param buffer The array containing the text
+		 * @param start The position of the text in the array
+		 * @param length The length of the text
+		 * @return The index of the node
+		 */
+		protected int addText(int parent, int previous, /*@NonNull*/ char[] buffer, int start, int length)
+		{
+			if (m_textSize + length > m_text.length)
+			{
+				char[] text = new char[Math.max(m_textSize + length, m_text.length * 2)];
+				System.arraycopy(m_text, 0, text, 0, m_textSize);
+				m_text = text;
+			}
+			System.arraycopy(buffer, start, m_text, m_textSize, length);
+			int node = addNode(parent, previous);
+			m_names[node] = -1;
+			m_textStart[node] = m_textSize;
+			m_textLength[node] = length;
+			m_textSize += length;
+			return node;
+		}
+
+		/**
+		 * Adds a node and links it to its parent and previous sibling
+		 * @param parent The index of the parent, or -1 for the root
+		 * @param previous The index of the previous sibling, or -1
+		 * @return The index of the node
+		 */
+		protected int addNode(int parent, int previous)
+		{
+			if (m_size == m_names.length)
+			{
+				m_names = grow(m_names);
+				m_firstChild = grow(m_firstChild);
+				m_nextSibling = grow(m_nextSibling);
+				m_parent = grow(m_parent);
+				m_textStart = grow(m_textStart);
+				m_textLength = grow(m_textLength);
+			}
+			int node = m_size++;
+			m_parent[node] = parent;
+			m_firstChild[node] = -1;
+			m_nextSibling[node] = -1;
+			if (previous >= 0)
+			{
+				m_nextSibling[previous] = node;
+			}
+			else if (parent >= 0)
+			{
+				m_firstChild[parent] = node;
+			}
+			return node;
+		}
+	}
+
+	/**
+	 * View of an element of the document
+	 */
+	protected static class ArenaElement extends XmlElement
+	{
+		/**
+		 * The document
+		 */
+		protected final XmlDocumentArena m_arena;
+
+		/**
+		 * The index of the element in the document
+		 */
+		protected final int m_node;
+
+		/**
+		 * The views of the children, created on the first call to
+		 * {@link #getChildren()}
+		 */
+		private volatile List<XmlElement> m_views;
+
+		/**
+		 * Creates a view of an element
+		 * @param arena The document
+		 * @param node The index of the element
+		 */
+		protected ArenaElement(/*@NonNull*/ XmlDocumentArena arena, int node)
+		{
+			super(arena.getName(node));
+			m_arena = arena;
+			m_node = node;
+		}
+
+		@Override
+		public void writeTo(/*@NonNull*/ Appendable out) throws IOException
+		{
+			m_arena.writeTo(out, m_node);
+		}
+
+		/**
+		 * Gets the views of the children of the element. They are created
+		 * on the first call; later calls return the same list, which cannot
+		 * be modified.
+		 * @return The children
+		 */
+		@Override
+		public /*@NonNull*/ List<XmlElement> getChildren()
+		{
+			List<XmlElement> views = m_views;
+			if (views == null)
+			{
+				List<XmlElement> children = new ArrayList<XmlElement>();
+				for (int child = m_arena.m_firstChild[m_node]; child >= 0; child = m_arena.m_nextSibling[child])
+				{
+					children.add(m_arena.getElement(child));
+				}
+				// The wrapper holds the list in a final field, so that the
+				// views can be shared between threads
+				views = Collections.unmodifiableList(children);
+				m_views = views;
+			}
+			return views;
+		}
+
+		@Override
+		public /*@Nullable*/ TextElement getTextElement()
+		{
+			for (XmlElement child : getChildren())
+			{
+				if (child instanceof TextElement)
+				{
+					return (TextElement) child;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public XmlElement addChild(XmlElement e)
+		{
+			throw new UnsupportedOperationException("The document cannot be modified");
+		}
+	}
+
+	/**
+	 * View of a text node of the document
+	 */
+	protected static class ArenaTextElement extends TextElement
+	{
+		/**
+		 * The document
+		 */
+		protected final XmlDocumentArena m_arena;
+
+		/**
+		 * The index of the node in the document
+		 */
+		protected final int m_node;
+
+		/**
+		 * The text of the node, copied from the document on the first call
+		 * to {@link #getText()}
+		 */
+		private volatile String m_value;
+
+		/**
+		 * Creates a view of a text node
+		 * @param arena The document
+		 * @param node The index of the node
+		 */
+		protected ArenaTextElement(/*@NonNull*/ XmlDocumentArena arena, int node)
+		{
+			super(null);
+			m_arena = arena;
+			m_node = node;
+		}
+
+		/**
+		 * Gets the text of the node. The text is copied into a string on
+		 * the first call, and the same string is returned afterwards.
+		 * @return The text
+		 */
+		@Override
+		public /*@NonNull*/ String getText()
+		{
+			String value = m_value;
+			if (value == null)
+			{
+				value = m_arena.getText(m_node);
+				m_value = value;
+			}
+			return value;
+		}
+
+		@Override
+		public void writeTo(/*@NonNull*/ Appendable out) throws IOException
+		{
+			m_arena.writeText(out, m_node);
+		}
+
+		@Override
+		public XmlElement addChild(XmlElement e)
+		{
+			throw new UnsupportedOperationException("The document cannot be modified");
+		}
+	}
+}
@@ -17,7 +17,18 @@
  */
 package ca.uqac.lif.xml;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -27,9 +38,6 @@ import java.util.List;
  * <ul>
  * <li>Elements may have attributes, but they are ignored</li>
  * <li>Self-closing elements are not recognized</li>
- * <li>The schema of the document may not be recursive, i.e. an
- * element named <tt>&lt;a&gt;</tt> must not <em>contain</em> another element
- * named <tt>&lt;a&gt;</tt> at any level of nesting</li>
  * <li>Entities and CDATA sections are not supported</li>
  * </ul>
  * An Element can be built from a String by using {@link #parse(String)},
@@ -45,17 +53,39 @@ public class XmlElement
 	private /*@NonNull*/ String m_name = "";
 
 	/**
-	 * The element's children
+	 * The list of children shared by all the elements that have none
+	 */
+	private static final List<XmlElement> s_noChildren = Collections.emptyList();
+
+	/**
+	 * The element's children. Elements without children all share the same
+	 * empty list, and a list of their own is only created when a first
+	 * child is added.
 	 */
 	private /*@NonNull*/ List</*@NonNull*/ XmlElement> m_children;
 
+	/**
+	 * The element this element was last added to, if any. Once the element
+	 * caches its serialized form, this is rather a {@link CacheState}
+	 * holding the parent, so that elements that do not use the cache take
+	 * no more memory.
+	 */
+	private /*@Nullable*/ Object m_parent;
+
+	/**
+	 * Whether an element has ever been asked to cache its serialized form.
+	 * Until then, adding a child does not need to look for ancestors whose
+	 * cached form must be discarded.
+	 */
+	private static volatile boolean s_cacheUsed = false;
+
 	/**
 	 * Creates an empty XML element
 	 */
 	XmlElement()
 	{
 		super();
-		m_children = new ArrayList<XmlElement>();
+		m_children = s_noChildren;
 	}
 
 	/**
@@ -75,41 +105,349 @@ public class XmlElement
 	 */
 	public XmlElement addChild(XmlElement e)
 	{
+		appendChild(e);
+		if (s_cacheUsed)
+		{
+			invalidate();
+		}
+		return this;
+	}
+
+	/**
+	 * Adds a child to this element, without discarding the serialized forms
+	 * cached by the element and its ancestors. Parsers use this method to
+	 * add children to the elements they create, which cannot have cached
+	 * anything yet.
+	 * @param e The element to add
+	 */
+	protected void appendChild(/*@NonNull*/ XmlElement e)
+	{
+		if (m_children == s_noChildren)
+		{
+			// Most elements only have a single child
+			m_children = new ArrayList<XmlElement>(1);
+		}
 		m_children.add(e);
+		if (e.m_parent instanceof CacheState)
+		{
+			((CacheState) e.m_parent).m_parent = this;
+		}
+		else
+		{
+			e.m_parent = this;
+		}
+	}
+
+	/**
+	 * Gets the element this element was last added to
+	 * @return The parent, or null if the element was never added to another
+	 */
+	public /*@Nullable*/ XmlElement getParent()
+	{
+		Object parent = m_parent;
+		if (parent instanceof CacheState)
+		{
+			return ((CacheState) parent).m_parent;
+		}
+		return (XmlElement) parent;
+	}
+
+	/**
+	 * Sets whether this element keeps its serialized form once it has been
+	 * computed. The cached form is used by {@link #toString()} and
+	 * {@link #writeTo(Appendable)}, whether they are called on this
+	 * element or on one of its ancestors; serializing an unchanged element
+	 * then only takes time proportional to the size of the output.
+	 * <p>
+	 * The cached form is discarded when a child is added to the element
+	 * or to one of its descendants. For this to work, each element must
+	 * have been added to a single parent, and the lists returned by
+	 * {@link #getChildren()} must not be modified directly. Once an element
+	 * has been asked to cache its form, adding a child to any element
+	 * walks up the parents of that element to find the cached forms to
+	 * discard.
+	 * <p>
+	 * A tree that caches serialized forms can be serialized by several
+	 * threads at the same time: the cached forms are published safely, and
+	 * threads that compute the same form at the same time simply compute
+	 * it twice. Like any other tree, however, it must not be modified, nor
+	 * have its caching turned on or off, while other threads are using it.
+	 * @param b Set to true to cache the serialized form, false otherwise
+	 * @return This element
+	 */
+	public XmlElement setCached(boolean b)
+	{
+		if (!b)
+		{
+			if (m_parent instanceof CacheState)
+			{
+				// The state is dropped, leaving only the parent
+				m_parent = ((CacheState) m_parent).m_parent;
+			}
+		}
+		else if (!(m_parent instanceof CacheState))
+		{
+			s_cacheUsed = true;
+			m_parent = new CacheState((XmlElement) m_parent);
+		}
 		return this;
 	}
 
+	/**
+	 * Checks whether this element keeps its serialized form
+	 * @return true if the serialized form is cached, false otherwise
+	 * @see #setCached(boolean)
+	 */
+	public boolean isCached()
+	{
+		return m_parent instanceof CacheState;
+	}
+
+	/**
+	 * Discards the serialized form cached by this element and by all its
+	 * ancestors
+	 */
+	protected void invalidate()
+	{
+		XmlElement e = this;
+		while (e != null)
+		{
+			Object parent = e.m_parent;
+			if (parent instanceof CacheState)
+			{
+				CacheState state = (CacheState) parent;
+				state.m_serialized = null;
+				e = state.m_parent;
+			}
+			else
+			{
+				e = (XmlElement) parent;
+			}
+		}
+	}
+
+	/**
+	 * Gets the serialized form of an element that caches it, computing it
+	 * if it is not up to date
+	 * @return The serialized form
+	 * @throws IOException Never thrown when writing to a string builder
+	 */
+	private /*@NonNull*/ String getSerialized() throws IOException
+	{
+		CacheState state = (CacheState) m_parent;
+		String serialized = state.m_serialized;
+		if (serialized == null)
+		{
+			StringBuilder out = new StringBuilder();
+			writeTree(out);
+			serialized = out.toString();
+			state.m_serialized = serialized;
+		}
+		return serialized;
+	}
+
+	/**
+	 * The parent of an element that caches its serialized form, along with
+	 * that form
+	 */
+	private static class CacheState
+	{
+		/**
+		 * The element the element was last added to, if any
+		 */
+		/*@Nullable*/ XmlElement m_parent;
+
+		/**
+		 * The serialized form of the element, or null if it is not up to
+		 * date. Strings are immutable: once written to this field, a string
+		 * can be read by any thread.
+		 */
+		volatile /*@Nullable*/ String m_serialized;
+
+		/**
+		 * Creates the state of an element
+		 * @param parent The parent of the element
+		 */
+		CacheState(/*@Nullable*/ XmlElement parent)
+		{
+			super();
+			m_parent = parent;
+		}
+	}
+
+	/**
+	 * Prepares the list of children of this element to receive a number of
+	 * children, when this number is known in advance
+	 * @param n The number of children
+	 */
+	protected void reserveChildren(int n)
+	{
+		if (m_children == s_noChildren && n > 0)
+		{
+			m_children = new ArrayList<XmlElement>(n);
+		}
+	}
+
+	/**
+	 * Shrinks the list of children of this element to its actual size.
+	 * The parser calls this method once an element is complete.
+	 */
+	protected void trimChildren()
+	{
+		if (m_children != s_noChildren)
+		{
+			((ArrayList<XmlElement>) m_children).trimToSize();
+		}
+	}
+
 	/**
 	 * Creates an XML document from a string
 	 * @param s The string to read
 	 * @return An XML element
 	 * @throws XmlParseException If parsing resulted in an error
+	 * @see XmlParser
 	 */
 	public static /*@NonNull*/ XmlElement parse(String s) throws XmlParseException
 	{
-		if (s == null)
+		return XmlParser.getLocalInstance().parse(s);
+	}
+
+	/**
+	 * Creates an XML document from a stream of characters. The characters
+	 * are read through a fixed-size buffer, so that the text of the
+	 * document is never held in memory as a whole.
+	 * @param r The reader to read from. The reader is not closed by this
+	 * method.
+	 * @return An XML element
+	 * @throws XmlParseException If parsing resulted in an error
+	 * @throws IOException If reading from the reader failed
+	 */
+	public static /*@NonNull*/ XmlElement parse(Reader r) throws XmlParseException, IOException
+	{
+		return new XmlParser().parse(r);
+	}
+
+	/**
+	 * Creates an XML document from bytes encoded in UTF-8. The markup is
+	 * found by scanning the bytes directly, without decoding the whole
+	 * document into a string first.
+	 * @param bytes The bytes to read
+	 * @return An XML element
+	 * @throws XmlParseException If parsing resulted in an error
+	 * @see Utf8Tokenizer
+	 */
+	public static /*@NonNull*/ XmlElement parse(byte[] bytes) throws XmlParseException
+	{
+		return XmlParser.getLocalInstance().parse(bytes);
+	}
+
+	/**
+	 * Creates an XML document from a stream of bytes
+	 * @param is The input stream to read from. The stream is not closed by
+	 * this method.
+	 * @param charset The character set used to decode the bytes
+	 * @return An XML element
+	 * @throws XmlParseException If parsing resulted in an error
+	 * @throws IOException If reading from the stream failed
+	 * @see #parse(Reader)
+	 */
+	public static /*@NonNull*/ XmlElement parse(InputStream is, Charset charset) throws XmlParseException, IOException
+	{
+		if (is == null)
+		{
+			throw new XmlParseException("Input stream is null");
+		}
+		return new XmlParser().parse(new InputStreamReader(is, charset));
+	}
+
+	/**
+	 * Creates an XML document from a file encoded in UTF-8. The file is
+	 * mapped in memory and read directly from there, without being loaded
+	 * into a string first.
+	 * @param f The file to read
+	 * @return An XML element
+	 * @throws XmlParseException If parsing resulted in an error
+	 * @throws IOException If reading from the file failed
+	 * @see XmlParser#parseMapped(java.nio.channels.FileChannel)
+	 */
+	public static /*@NonNull*/ XmlElement parse(File f) throws XmlParseException, IOException
+	{
+		if (f == null)
+		{
+			throw new XmlParseException("Input file is null");
+		}
+		FileInputStream fis = new FileInputStream(f);
+		try
 		{
-			throw new XmlParseException("Input string is null");
+			return new XmlParser().parseMapped(fis.getChannel());
 		}
-		s = s.trim();
-		if (!s.startsWith("<"))
+		finally
 		{
-			return new TextElement(s);
+			fis.close();
 		}
-		int closing_index = s.indexOf(">");
-		if (closing_index < 0)
+	}
+
+	/**
+	 * Writes a binary snapshot of this element, which can be loaded much
+	 * faster than its XML representation can be parsed
+	 * @param os The stream to write to. The stream is flushed, but not
+	 * closed.
+	 * @throws IOException If writing to the stream failed
+	 * @see BinarySnapshot
+	 */
+	public void writeBinary(/*@NonNull*/ OutputStream os) throws IOException
+	{
+		BinarySnapshot.write(this, os);
+	}
+
+	/**
+	 * Reads an element from a binary snapshot
+	 * @param is The stream to read from. The stream is not closed.
+	 * @return The element
+	 * @throws XmlParseException If the bytes are not a valid snapshot
+	 * @throws IOException If reading from the stream failed
+	 * @see #writeBinary(OutputStream)
+	 */
+	public static /*@NonNull*/ XmlElement readBinary(/*@NonNull*/ InputStream is) throws XmlParseException, IOException
+	{
+		return BinarySnapshot.read(is);
+	}
+
+	/**
+	 * Reads an element from a binary snapshot held in a buffer, such as a
+	 * file mapped in memory
+	 * @param buffer The buffer. The snapshot is read from the position of
+	 * the buffer, which is left unchanged.
+	 * @return The element
+	 * @throws XmlParseException If the bytes are not a valid snapshot
+	 * @see #writeBinary(OutputStream)
+	 */
+	public static /*@NonNull*/ XmlElement readBinary(/*@NonNull*/ ByteBuffer buffer) throws XmlParseException
+	{
+		return BinarySnapshot.read(buffer);
+	}
+
+	/**
+	 * Reads an element from a file holding a binary snapshot. The file is
+	 * mapped in memory.
+	 * @param f The file
+	 * @return The element
+	 * @throws XmlParseException If the file is not a valid snapshot
+	 * @throws IOException If reading from the file failed
+	 * @see #writeBinary(OutputStream)
+	 */
+	public static /*@NonNull*/ XmlElement readBinary(/*@NonNull*/ File f) throws XmlParseException, IOException
+	{
+		FileInputStream fis = new FileInputStream(f);
+		try
 		{
-			throw new XmlParseException("Closing bracket not found");
+			FileChannel channel = fis.getChannel();
+			return BinarySnapshot.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
 		}
-		String element_name = s.substring(1, closing_index);
-		if (!s.endsWith("</" + element_name + ">"))
+		finally
 		{
-			throw new XmlParseException("Closing element " + element_name + " not found");
+			fis.close();
 		}
-		XmlElement root = new XmlElement(element_name);
-		String inside = s.substring(closing_index + 1, s.length() - (element_name.length() + 3));
-		parse(root, inside.trim());
-		return root;
 	}
 
 	/**
@@ -120,50 +458,13 @@ public class XmlElement
 	 */
 	protected static void parse(/*@NonNull*/ XmlElement root, /*@NonNull*/ String s) throws XmlParseException
 	{
-		while (!s.isEmpty())
-		{
-			int consumed = 0;
-			XmlElement new_element = null;
-			if (!s.startsWith("<"))
-			{
-				int begin_index = s.indexOf("<");
-				if (begin_index < 0)
-				{
-					new_element = new TextElement(s);
-					consumed = s.length();
-				}
-				else
-				{
-					new_element = new TextElement(s.substring(0, begin_index));
-					consumed = begin_index;
-				}
-			}
-			else
-			{
-				int closing_index = s.indexOf(">");
-				if (closing_index < 0)
-				{
-					throw new XmlParseException("Closing bracket not found");
-				}
-				String element_name = s.substring(1, closing_index);
-				// Find matching closing element name
-				int closing_pos = s.indexOf("</" + element_name + ">");
-				if (closing_pos < 0)
-				{
-					throw new XmlParseException("Closing element " + element_name + " not found");
-				}
-				new_element = new XmlElement(element_name);
-				String inside = s.substring(closing_index + 1, closing_pos);
-				parse(new_element, inside.trim()); 
-				consumed = closing_pos + element_name.length() + 3;
-			}
-			root.addChild(new_element);
-			s = s.substring(consumed).trim();
-		}
+		new XmlParser().parseInto(root, s);
 	}
 	
 	/**
-	 * Gets the children of this element
+	 * Gets the children of this element. The list of an element that has
+	 * no children cannot be modified; use {@link #addChild(XmlElement)}
+	 * to add children.
 	 * @return The children
 	 */
 	public /*@NonNull*/ List<XmlElement> getChildren()
@@ -184,14 +485,97 @@ public class XmlElement
 	public /*@NonNull*/ String toString()
 	{
 		StringBuilder out = new StringBuilder();
-		out.append("<").append(m_name).append(">");
-		for (XmlElement e : m_children)
+		try
+		{
+			writeTo(out);
+		}
+		catch (IOException e)
 		{
-			out.append(e);
+			// Cannot happen when writing to a string builder
+			throw new IllegalStateException(e);
 		}
-		out.append("</").append(m_name).append(">");
 		return out.toString();
 	}
+
+	/**
+	 * Writes the XML representation of this element. The tree is walked
+	 * once, and its contents are appended directly to the output, without
+	 * building any intermediate string.
+	 * @param out The output to write to
+	 * @throws IOException If writing to the output failed
+	 */
+	public void writeTo(/*@NonNull*/ Appendable out) throws IOException
+	{
+		if (isCached())
+		{
+			out.append(getSerialized());
+			return;
+		}
+		writeTree(out);
+	}
+
+	/**
+	 * Writes the XML representation of this element by walking its tree
+	 * @param out The output to write to
+	 * @throws IOException If writing to the output failed
+	 */
+	private void writeTree(/*@NonNull*/ Appendable out) throws IOException
+	{
+		// The tree is walked with an explicit stack, so that deep documents
+		// do not overflow the call stack
+		List<XmlElement> elements = new ArrayList<XmlElement>();
+		int[] positions = new int[16];
+		out.append('<').append(m_name).append('>');
+		elements.add(this);
+		positions[0] = 0;
+		while (!elements.isEmpty())
+		{
+			int top = elements.size() - 1;
+			XmlElement e = elements.get(top);
+			List<XmlElement> children = e.getChildren();
+			int position = positions[top];
+			if (position == children.size())
+			{
+				out.append("</").append(e.m_name).append('>');
+				elements.remove(top);
+				continue;
+			}
+			positions[top] = position + 1;
+			XmlElement child = children.get(position);
+			if (child instanceof TextElement)
+			{
+				child.writeTo(out);
+				continue;
+			}
+			if (child.isCached())
+			{
+				out.append(child.getSerialized());
+				continue;
+			}
+			out.append('<').append(child.m_name).append('>');
+			if (top + 1 == positions.length)
+			{
+				int[] new_positions = new int[positions.length * 2];
+				System.arraycopy(positions, 0, new_positions, 0, positions.length);
+				positions = new_positions;
+			}
+			positions[top + 1] = 0;
+			elements.add(child);
+		}
+	}
+
+	/**
+	 * Writes the XML representation of this element, encoded in UTF-8
+	 * @param os The stream to write to. The stream is flushed, but not
+	 * closed.
+	 * @throws IOException If writing to the stream failed
+	 */
+	public void writeTo(/*@NonNull*/ OutputStream os) throws IOException
+	{
+		Utf8Writer w = new Utf8Writer(os);
+		writeTo(w);
+		w.finish();
+	}
 	
 	/**
 	 * Exception denoting an error in the parsing of an XML document
@@ -215,7 +599,7 @@ public class XmlElement
 	 */
 	public /*@Nullable*/ TextElement getTextElement()
 	{
-		for (XmlElement child : m_children)
+		for (XmlElement child : getChildren())
 		{
 			if (child instanceof TextElement)
 			{
@@ -239,10 +623,12 @@ public class XmlElement
 			return false;
 		}
 		XmlElement xe = (XmlElement) o;
-		if (m_children.size() != xe.m_children.size())
+		List<XmlElement> children = getChildren();
+		List<XmlElement> other_children = xe.getChildren();
+		if (children.size() != other_children.size())
 		{
 			return false;
 		}
-		return m_children.containsAll(xe.m_children);
+		return children.containsAll(other_children);
 	}
 }
@@ -0,0 +1,209 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+import ca.uqac.lif.xml.XmlTokenizer.Token;
+
+/**
+ * Reads an XML document as a sequence of events, without building a tree
+ * of {@link XmlElement}s. Each call to {@link #next()} returns one of:
+ * <ul>
+ * <li>{@link Token#START} when an element is opened</li>
+ * <li>{@link Token#TEXT} for a text node</li>
+ * <li>{@link Token#END} when an element is closed</li>
+ * <li>{@link Token#EOF} when the end of the input is reached</li>
+ * </ul>
+ * The reader uses the same {@link XmlTokenizer} as
+ * {@link XmlElement#parse(String)}, and hence the same rules for names,
+ * whitespace and well-formedness. The name and text of the current event
+ * are exposed as {@link CharSequence}s that look directly into the
+ * tokenizer's buffer; these views are reused from one event to the next,
+ * so that reading a document does not allocate any object per event.
+ * A view must be copied (e.g. with <tt>toString()</tt>) if its contents
+ * are needed after the next call to {@link #next()}.
+ * <p>
+ * Typical usage:
+ * <pre>
+ * XmlEventReader reader = new XmlEventReader(my_reader);
+ * Token t;
+ * while ((t = reader.next()) != Token.EOF)
+ * {
+ *   if (t == Token.START &amp;&amp; reader.nameEquals("price"))
+ *   {
+ *     ...
+ *   }
+ * }
+ * </pre>
+ */
+public class XmlEventReader
+{
+	/**
+	 * The tokenizer producing the events
+	 */
+	protected final XmlTokenizer m_tokenizer;
+
+	/**
+	 * The view on the current token
+	 */
+	protected final TokenView m_view;
+
+	/**
+	 * Creates an event reader from a string
+	 * @param s The string
+	 */
+	public XmlEventReader(/*@NonNull*/ String s)
+	{
+		this(new XmlTokenizer(s));
+	}
+
+	/**
+	 * Creates an event reader from a stream of characters
+	 * @param r The reader to read from
+	 */
+	public XmlEventReader(/*@NonNull*/ Reader r)
+	{
+		this(new XmlTokenizer(r));
+	}
+
+	/**
+	 * Creates an event reader from a tokenizer
+	 * @param tokenizer The tokenizer
+	 */
+	public XmlEventReader(/*@NonNull*/ XmlTokenizer tokenizer)
+	{
+		super();
+		m_tokenizer = tokenizer;
+		m_view = new TokenView();
+	}
+
+	/**
+	 * Reads the next event
+	 * @return The type of the event
+	 * @throws XmlParseException If the input is not well-formed
+	 * @throws IOException If reading from the input failed
+	 */
+	public /*@NonNull*/ Token next() throws XmlParseException, IOException
+	{
+		return m_tokenizer.next();
+	}
+
+	/**
+	 * Gets the type of the current event
+	 * @return The type, or null if {@link #next()} has not been called yet
+	 */
+	public /*@Nullable*/ Token getEvent()
+	{
+		return m_tokenizer.getToken();
+	}
+
+	/**
+	 * Gets the name of the element of the current {@link Token#START} or
+	 * {@link Token#END} event
+	 * @return A view on the name, valid until the next call to
+	 * {@link #next()}
+	 */
+	public /*@NonNull*/ CharSequence getName()
+	{
+		return m_view;
+	}
+
+	/**
+	 * Gets the contents of the current {@link Token#TEXT} event
+	 * @return A view on the text, valid until the next call to
+	 * {@link #next()}
+	 */
+	public /*@NonNull*/ CharSequence getText()
+	{
+		return m_view;
+	}
+
+	/**
+	 * Checks whether the name or text of the current event is equal to
+	 * a character sequence
+	 * @param s The sequence
+	 * @return true if it is equal, false otherwise
+	 */
+	public boolean nameEquals(/*@NonNull*/ CharSequence s)
+	{
+		return m_tokenizer.tokenEquals(s);
+	}
+
+	/**
+	 * Gets the number of elements currently open
+	 * @return The depth
+	 * @see XmlTokenizer#getDepth()
+	 */
+	public int getDepth()
+	{
+		return m_tokenizer.getDepth();
+	}
+
+	/**
+	 * Skips the remainder of the element that is currently open. After
+	 * this method returns, the current event is the {@link Token#END}
+	 * event of that element.
+	 * @throws XmlParseException If the input is not well-formed
+	 * @throws IOException If reading from the input failed
+	 */
+	public void skipElement() throws XmlParseException, IOException
+	{
+		int depth = m_tokenizer.getDepth();
+		while (depth > 0 && m_tokenizer.getDepth() >= depth)
+		{
+			m_tokenizer.next();
+		}
+	}
+
+	/**
+	 * A view on the current token of the tokenizer
+	 */
+	protected class TokenView implements CharSequence
+	{
+		@Override
+		public int length()
+		{
+			return m_tokenizer.getTokenLength();
+		}
+
+		@Override
+		public char charAt(int index)
+		{
+			if (index < 0 || index >= m_tokenizer.getTokenLength())
+			{
+				throw new IndexOutOfBoundsException();
+			}
+			return m_tokenizer.getBuffer()[m_tokenizer.getTokenStart() + index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end)
+		{
+			return toString().subSequence(start, end);
+		}
+
+		@Override
+		public String toString()
+		{
+			return new String(m_tokenizer.getBuffer(), m_tokenizer.getTokenStart(), m_tokenizer.getTokenLength());
+		}
+	}
+}
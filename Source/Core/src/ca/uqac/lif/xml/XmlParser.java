@@ -0,0 +1,834 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+import ca.uqac.lif.xml.XmlTokenizer.Token;
+
+/**
+ * Builds a tree of {@link XmlElement}s from a string or a stream of
+ * characters. The parser reads the tokens produced by an
+ * {@link XmlTokenizer}, which walks the input exactly once, and keeps a
+ * stack of the elements that are currently open; it never copies the
+ * remainder of the document. Its output is the same as the one produced
+ * by {@link XmlElement#parse(String)}, which delegates to this class:
+ * <ul>
+ * <li>The name of an element is everything between its angle
+ * brackets</li>
+ * <li>Whitespace at the start of a text node is removed, and so is
+ * whitespace at its end when the text node is the last child of its
+ * parent</li>
+ * <li>Text nodes made only of whitespace are discarded</li>
+ * </ul>
+ * Since the parser keeps track of the nesting depth, elements may
+ * contain other elements with the same name.
+ * <p>
+ * When reading from a {@link Reader} or from a file mapped in memory,
+ * the input is consumed through the tokenizer's fixed-size buffer, so
+ * that no copy of the whole document is ever held in memory. Documents
+ * available as UTF-8 bytes are read by a {@link Utf8Tokenizer}, without
+ * being decoded to a string first.
+ * <p>
+ * A parser keeps its tokenizers and its stack from one document to the
+ * next, so that parsing many documents with the same parser does not
+ * allocate anything beyond the elements produced. A parser is neither
+ * thread-safe nor reentrant; {@link #getLocalInstance()} provides one
+ * parser per thread.
+ */
+public class XmlParser
+{
+	/**
+	 * The minimum number of characters in a part of a document parsed by
+	 * a separate task in {@link #parseParallel(String, ExecutorService)}
+	 */
+	public static final int s_minChunkSize = 1 << 16;
+
+	/**
+	 * The stack of elements that are currently open
+	 */
+	protected List<XmlElement> m_stack;
+
+	/**
+	 * Whether text nodes are read lazily from the source document
+	 */
+	protected boolean m_lazyText;
+
+	/**
+	 * Whether the children of elements are parsed lazily
+	 */
+	protected boolean m_lazyElements;
+
+	/**
+	 * The table in which element names are looked up, or null to give each
+	 * element its own copy of its name
+	 */
+	protected /*@Nullable*/ NameTable m_names;
+
+	/**
+	 * The tokenizer reused to read characters, once it has been created
+	 */
+	protected /*@Nullable*/ XmlTokenizer m_tokenizer;
+
+	/**
+	 * The tokenizer reused to read bytes, once it has been created
+	 */
+	protected /*@Nullable*/ Utf8Tokenizer m_utf8Tokenizer;
+
+	/**
+	 * The parser of each thread, returned by {@link #getLocalInstance()}
+	 */
+	private static final ThreadLocal<XmlParser> s_localParsers = new ThreadLocal<XmlParser>() {
+		@Override
+		protected XmlParser initialValue()
+		{
+			return new XmlParser();
+		}
+	};
+
+	/**
+	 * The parser of each thread used by the tasks submitted to an
+	 * executor, returned by {@link #getTaskInstance()}. It is distinct from
+	 * the one returned by {@link #getLocalInstance()}, which the code that
+	 * submits a task may be using when the task runs on the same thread.
+	 */
+	private static final ThreadLocal<XmlParser> s_taskParsers = new ThreadLocal<XmlParser>() {
+		@Override
+		protected XmlParser initialValue()
+		{
+			return new XmlParser();
+		}
+	};
+
+	/**
+	 * Creates a new parser
+	 */
+	public XmlParser()
+	{
+		super();
+		m_stack = new ArrayList<XmlElement>();
+		m_lazyText = false;
+		m_lazyElements = false;
+		m_names = NameTable.getGlobal();
+	}
+
+	/**
+	 * Gets a parser for the current thread. The same parser is returned by
+	 * every call made by a given thread, with its default settings; as its
+	 * buffers are kept from one document to the next, parsing documents
+	 * with this parser only allocates memory for the elements produced.
+	 * The parser should be used right away and not be kept, since the
+	 * next call to this method on the same thread resets it.
+	 * @return The parser
+	 */
+	public static /*@NonNull*/ XmlParser getLocalInstance()
+	{
+		return restore(s_localParsers.get());
+	}
+
+	/**
+	 * Gets a parser for a task that parses a document, or a part of a
+	 * document, on the current thread. The parser is reused in the same
+	 * way as the one returned by {@link #getLocalInstance()}; a task must
+	 * not run another task while it uses it.
+	 * @return The parser, with its default settings
+	 */
+	protected static /*@NonNull*/ XmlParser getTaskInstance()
+	{
+		return restore(s_taskParsers.get());
+	}
+
+	/**
+	 * Resets a parser and gives it back its default settings
+	 * @param parser The parser
+	 * @return The parser
+	 */
+	private static /*@NonNull*/ XmlParser restore(/*@NonNull*/ XmlParser parser)
+	{
+		parser.reset();
+		parser.m_lazyText = false;
+		parser.m_lazyElements = false;
+		parser.m_names = NameTable.getGlobal();
+		return parser;
+	}
+
+	/**
+	 * Discards the state left by the last document parsed, including any
+	 * reference to its input. The settings and the buffers of the parser
+	 * are kept. This is done automatically at the end of each call to one
+	 * of the <tt>parse</tt> methods that take a string, a reader or bytes.
+	 * @return This parser
+	 */
+	public XmlParser reset()
+	{
+		m_stack.clear();
+		if (m_tokenizer != null)
+		{
+			m_tokenizer.reset();
+		}
+		if (m_utf8Tokenizer != null)
+		{
+			m_utf8Tokenizer.reset();
+		}
+		return this;
+	}
+
+	/**
+	 * Gets the tokenizer reused to read characters
+	 * @return The tokenizer
+	 */
+	protected /*@NonNull*/ XmlTokenizer getTokenizer()
+	{
+		if (m_tokenizer == null)
+		{
+			m_tokenizer = new XmlTokenizer("");
+		}
+		return m_tokenizer;
+	}
+
+	/**
+	 * Gets the tokenizer reused to read bytes
+	 * @return The tokenizer
+	 */
+	protected /*@NonNull*/ Utf8Tokenizer getUtf8Tokenizer()
+	{
+		if (m_utf8Tokenizer == null)
+		{
+			m_utf8Tokenizer = new Utf8Tokenizer(new byte[0]);
+		}
+		return m_utf8Tokenizer;
+	}
+
+	/**
+	 * Sets whether text nodes are read lazily from the source document.
+	 * When enabled, and when the whole document is available in memory
+	 * (i.e. it is parsed from a string), text nodes are created as
+	 * {@link LazyTextElement}s that refer to a region of the document,
+	 * instead of copying their contents. This saves the copy of every
+	 * text that is never read, but keeps the document in memory as long
+	 * as one of its text nodes is not detached.
+	 * @param b Set to true to read text lazily, false otherwise (the
+	 * default)
+	 * @return This parser
+	 */
+	public XmlParser setLazyText(boolean b)
+	{
+		m_lazyText = b;
+		return this;
+	}
+
+	/**
+	 * Sets whether the children of elements are parsed lazily. When
+	 * enabled, and when the whole document is available in memory (i.e. it
+	 * is parsed from a string), the parser only checks that the document
+	 * is well-formed, and returns a {@link LazyXmlElement} that parses its
+	 * children the first time they are needed.
+	 * @param b Set to true to parse children lazily, false otherwise (the
+	 * default)
+	 * @return This parser
+	 */
+	public XmlParser setLazyElements(boolean b)
+	{
+		m_lazyElements = b;
+		return this;
+	}
+
+	/**
+	 * Sets the table in which element names are looked up. All the elements
+	 * with the same name then share the string held by the table. By
+	 * default, parsers use the {@link NameTable#getGlobal() global table},
+	 * which is also used by {@link XPathExpression}s.
+	 * @param names The table, or null to give each element its own copy of
+	 * its name
+	 * @return This parser
+	 */
+	public XmlParser setNameTable(/*@Nullable*/ NameTable names)
+	{
+		m_names = names;
+		return this;
+	}
+
+	/**
+	 * Creates an XML document from a string
+	 * @param s The string to read
+	 * @return An XML element
+	 * @throws XmlParseException If parsing resulted in an error
+	 */
+	public /*@NonNull*/ XmlElement parse(/*@Nullable*/ String s) throws XmlParseException
+	{
+		if (s == null)
+		{
+			throw new XmlParseException("Input string is null");
+		}
+		try
+		{
+			return parse(getTokenizer().reset(s));
+		}
+		catch (IOException e)
+		{
+			// Cannot happen when reading from a string
+			throw new XmlParseException(e.getMessage());
+		}
+		finally
+		{
+			reset();
+		}
+	}
+
+	/**
+	 * Creates an XML document from a stream of characters
+	 * @param r The reader to read from. The reader is not closed by this
+	 * method.
+	 * @return An XML element
+	 * @throws XmlParseException If parsing resulted in an error
+	 * @throws IOException If reading from the reader failed
+	 */
+	public /*@NonNull*/ XmlElement parse(/*@Nullable*/ Reader r) throws XmlParseException, IOException
+	{
+		if (r == null)
+		{
+			throw new XmlParseException("Input reader is null");
+		}
+		try
+		{
+			return parse(getTokenizer().reset(r));
+		}
+		finally
+		{
+			reset();
+		}
+	}
+
+	/**
+	 * Creates an XML document from bytes encoded in UTF-8. The bytes are
+	 * tokenized directly, and only the names and text that end up in the
+	 * tree are decoded.
+	 * @param bytes The bytes to read
+	 * @return An XML element
+	 * @throws XmlParseException If parsing resulted in an error
+	 * @see Utf8Tokenizer
+	 */
+	public /*@NonNull*/ XmlElement parse(/*@Nullable*/ byte[] bytes) throws XmlParseException
+	{
+		if (bytes == null)
+		{
+			throw new XmlParseException("Input bytes are null");
+		}
+		return parse(getUtf8Tokenizer().reset(bytes));
+	}
+
+	/**
+	 * Creates an XML document from the remaining bytes of a buffer, encoded
+	 * in UTF-8. The position of the buffer is not modified.
+	 * @param bytes The buffer to read
+	 * @return An XML element
+	 * @throws XmlParseException If parsing resulted in an error
+	 * @see Utf8Tokenizer
+	 */
+	public /*@NonNull*/ XmlElement parse(/*@Nullable*/ ByteBuffer bytes) throws XmlParseException
+	{
+		if (bytes == null)
+		{
+			throw new XmlParseException("Input bytes are null");
+		}
+		return parse(getUtf8Tokenizer().reset(bytes));
+	}
+
+	/**
+	 * Creates an XML document from the tokens produced by a byte-level
+	 * tokenizer, which never fails to read its input
+	 * @param tokenizer The tokenizer
+	 * @return An XML element
+	 * @throws XmlParseException If parsing resulted in an error
+	 */
+	protected /*@NonNull*/ XmlElement parse(/*@NonNull*/ Utf8Tokenizer tokenizer) throws XmlParseException
+	{
+		try
+		{
+			return parse((XmlTokenizer) tokenizer);
+		}
+		catch (IOException e)
+		{
+			// Cannot happen when reading from memory
+			throw new XmlParseException(e.getMessage());
+		}
+		finally
+		{
+			reset();
+		}
+	}
+
+	/**
+	 * Creates an XML document from a file encoded in UTF-8, by mapping it
+	 * in memory
+	 * @param channel The channel to read from. The channel is not closed by
+	 * this method.
+	 * @return An XML element
+	 * @throws XmlParseException If parsing resulted in an error
+	 * @throws IOException If reading from the file failed
+	 * @see MappedTokenizer
+	 */
+	public /*@NonNull*/ XmlElement parseMapped(/*@NonNull*/ FileChannel channel) throws XmlParseException, IOException
+	{
+		return parse(new MappedTokenizer(channel));
+	}
+
+	/**
+	 * Creates an XML document from a file, by mapping it in memory
+	 * @param channel The channel to read from. The channel is not closed by
+	 * this method.
+	 * @param charset The character set used to decode the file
+	 * @return An XML element
+	 * @throws XmlParseException If parsing resulted in an error
+	 * @throws IOException If reading from the file failed
+	 * @see MappedTokenizer
+	 */
+	public /*@NonNull*/ XmlElement parseMapped(/*@NonNull*/ FileChannel channel, /*@NonNull*/ Charset charset) throws XmlParseException, IOException
+	{
+		return parse(new MappedTokenizer(channel, charset));
+	}
+
+	/**
+	 * Creates an XML document from the tokens produced by a tokenizer
+	 * @param tokenizer The tokenizer
+	 * @return An XML element
+	 * @throws XmlParseException If parsing resulted in an error
+	 * @throws IOException If reading from the input failed
+	 */
+	public /*@NonNull*/ XmlElement parse(/*@NonNull*/ XmlTokenizer tokenizer) throws XmlParseException, IOException
+	{
+		Token t = tokenizer.next();
+		if (t == Token.EOF)
+		{
+			return new TextElement("");
+		}
+		if (t == Token.TEXT)
+		{
+			// A document that does not start with a tag is plain text
+			return new TextElement(tokenizer.readToEnd());
+		}
+		CharSequence source = tokenizer.getSource();
+		if (m_lazyElements && source != null)
+		{
+			return parseLazy(tokenizer, source);
+		}
+		XmlElement root = new XmlElement(getName(tokenizer, m_names));
+		m_stack.clear();
+		m_stack.add(root);
+		parseContent(tokenizer, root);
+		if (tokenizer.next() != Token.EOF)
+		{
+			throw new XmlParseException("Unexpected content after closing element " + root.getName());
+		}
+		return root;
+	}
+
+	/**
+	 * Checks that a document is well-formed, and creates a lazy element for
+	 * its root
+	 * @param tokenizer The tokenizer, whose current token is the opening
+	 * tag of the root
+	 * @param source The document
+	 * @return The root
+	 * @throws XmlParseException If parsing resulted in an error
+	 * @throws IOException If reading from the input failed
+	 */
+	protected /*@NonNull*/ XmlElement parseLazy(/*@NonNull*/ XmlTokenizer tokenizer, /*@NonNull*/ CharSequence source) throws XmlParseException, IOException
+	{
+		String name = getName(tokenizer, m_names);
+		int start = (int) tokenizer.getPosition();
+		while (tokenizer.next() != Token.END || tokenizer.getDepth() > 0)
+		{
+			// Only check the contents of the root
+		}
+		int end = (int) tokenizer.getTokenOffset() - 2;
+		if (tokenizer.next() != Token.EOF)
+		{
+			throw new XmlParseException("Unexpected content after closing element " + name);
+		}
+		return new LazyXmlElement(name, source, start, end, m_lazyText, m_names);
+	}
+
+	/**
+	 * Creates an XML document from a string, parsing parts of it in
+	 * parallel. This is meant for wide documents, such as a root with many
+	 * records: a first pass only looks for the brackets of the tags, in
+	 * order to split the contents of the root between top-level children.
+	 * The parts are then parsed by tasks submitted to an executor, and
+	 * their elements are added to the root in document order.
+	 * <p>
+	 * The result is the same as the one of {@link #parse(String)}. Small
+	 * documents, and documents that are not well-formed, are parsed
+	 * sequentially; in the latter case, the exception thrown is the same
+	 * as in sequential parsing. Lazy parsing of elements does not apply in
+	 * this mode.
+	 * <p>
+	 * The calling thread waits for the tasks to complete; it should hence
+	 * not be one of the threads of a fixed-size executor.
+	 * @param s The string to read
+	 * @param executor The executor that runs the parsing tasks
+	 * @return An XML element
+	 * @throws XmlParseException If parsing resulted in an error
+	 */
+	public /*@NonNull*/ XmlElement parseParallel(/*@Nullable*/ String s, /*@NonNull*/ ExecutorService executor) throws XmlParseException
+	{
+		if (s == null)
+		{
+			throw new XmlParseException("Input string is null");
+		}
+		int num_chunks = Math.min(s.length() / s_minChunkSize, 4 * Runtime.getRuntime().availableProcessors());
+		List<Integer> cuts = num_chunks > 1 ? split(s, num_chunks) : null;
+		if (cuts == null)
+		{
+			return parse(s);
+		}
+		List<Future<XmlElement>> futures = new ArrayList<Future<XmlElement>>(cuts.size() - 2);
+		XmlElement root;
+		try
+		{
+			XmlTokenizer tokenizer = getTokenizer().reset(s);
+			tokenizer.next();
+			root = new XmlElement(getName(tokenizer, m_names));
+			reset();
+			for (int i = 1; i < cuts.size() - 1; i++)
+			{
+				futures.add(executor.submit(new ChunkTask(this, s, cuts.get(i), cuts.get(i + 1))));
+			}
+			for (Future<XmlElement> f : futures)
+			{
+				for (XmlElement child : f.get().getChildren())
+				{
+					root.appendChild(child);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			cancel(futures);
+			Thread.currentThread().interrupt();
+			throw new XmlParseException("Parsing was interrupted");
+		}
+		catch (ExecutionException e)
+		{
+			// The other parts are useless: report the same error as
+			// sequential parsing
+			cancel(futures);
+			return parse(s);
+		}
+		catch (XmlParseException e)
+		{
+			cancel(futures);
+			return parse(s);
+		}
+		catch (IOException e)
+		{
+			// Cannot happen when reading from a string
+			throw new IllegalStateException(e);
+		}
+		root.trimChildren();
+		return root;
+	}
+
+	/**
+	 * Cancels the parsing tasks that are not finished
+	 * @param futures The futures of the tasks
+	 */
+	protected static void cancel(/*@NonNull*/ List<Future<XmlElement>> futures)
+	{
+		for (Future<XmlElement> f : futures)
+		{
+			f.cancel(true);
+		}
+	}
+
+	/**
+	 * Looks for the positions where the contents of the root of a document
+	 * can be split between top-level children. Only the brackets of the
+	 * tags are examined; the names of the tags are checked when the parts
+	 * are parsed.
+	 * @param s The document
+	 * @param num_chunks The number of parts to aim for
+	 * @return A list whose first element is the position of the opening
+	 * tag of the root, followed by the start of each part, and whose last
+	 * element is the position of the closing tag of the root. Null is
+	 * returned if the document does not start with a tag, does not seem
+	 * well-formed, or cannot be split.
+	 */
+	protected static /*@Nullable*/ List<Integer> split(/*@NonNull*/ String s, int num_chunks)
+	{
+		int length = s.length();
+		int pos = 0;
+		while (pos < length && s.charAt(pos) <= ' ')
+		{
+			pos++;
+		}
+		if (pos >= length || s.charAt(pos) != '<' || (pos + 1 < length && s.charAt(pos + 1) == '/'))
+		{
+			return null;
+		}
+		int name_end = s.indexOf('>', pos);
+		if (name_end < 0)
+		{
+			return null;
+		}
+		String root_name = s.substring(pos + 1, name_end);
+		List<Integer> cuts = new ArrayList<Integer>(num_chunks + 2);
+		cuts.add(pos);
+		cuts.add(name_end + 1);
+		int chunk_size = (length - name_end) / num_chunks;
+		int next_cut = name_end + 1 + chunk_size;
+		int depth = 1;
+		pos = name_end + 1;
+		while (true)
+		{
+			int open = s.indexOf('<', pos);
+			if (open < 0 || open + 1 >= length)
+			{
+				return null;
+			}
+			boolean closing = s.charAt(open + 1) == '/';
+			int close = s.indexOf('>', open);
+			if (close < 0)
+			{
+				return null;
+			}
+			pos = close + 1;
+			if (!closing)
+			{
+				depth++;
+				continue;
+			}
+			depth--;
+			if (depth == 0)
+			{
+				// Closing tag of the root: nothing but whitespace may follow
+				if (!root_name.equals(s.substring(open + 2, close)))
+				{
+					return null;
+				}
+				for (int i = pos; i < length; i++)
+				{
+					if (s.charAt(i) > ' ')
+					{
+						return null;
+					}
+				}
+				cuts.add(open);
+				return cuts.size() > 3 ? cuts : null;
+			}
+			if (depth == 1 && pos >= next_cut)
+			{
+				// A part never ends with text, whose trailing whitespace
+				// would otherwise be trimmed
+				cuts.add(pos);
+				next_cut = pos + chunk_size;
+			}
+		}
+	}
+
+	/**
+	 * Parses a fragment of XML and adds the elements it contains as children
+	 * of an existing element
+	 * @param root The element to which the parsed elements are added
+	 * @param s The string to read
+	 * @throws XmlParseException If parsing resulted in an error
+	 */
+	public void parseInto(/*@NonNull*/ XmlElement root, /*@NonNull*/ String s) throws XmlParseException
+	{
+		m_stack.clear();
+		try
+		{
+			parseContent(getTokenizer().reset(s), root);
+		}
+		catch (IOException e)
+		{
+			// Cannot happen when reading from a string
+			throw new XmlParseException(e.getMessage());
+		}
+		finally
+		{
+			reset();
+		}
+	}
+
+	/**
+	 * Reads tokens until the last open element is closed, or until
+	 * the end of the input if the stack of open elements is empty
+	 * @param tokenizer The tokenizer to read from
+	 * @param root The element at the bottom of the stack; this is where
+	 * children are added when the stack is empty
+	 * @throws XmlParseException If parsing resulted in an error
+	 * @throws IOException If reading from the input failed
+	 */
+	protected void parseContent(/*@NonNull*/ XmlTokenizer tokenizer, /*@NonNull*/ XmlElement root) throws XmlParseException, IOException
+	{
+		boolean nested = !m_stack.isEmpty();
+		CharSequence source = m_lazyText ? tokenizer.getSource() : null;
+		while (true)
+		{
+			Token t = tokenizer.next();
+			if (t == Token.EOF)
+			{
+				return;
+			}
+			XmlElement parent = m_stack.isEmpty() ? root : m_stack.get(m_stack.size() - 1);
+			if (t == Token.TEXT)
+			{
+				if (source != null)
+				{
+					addChild(parent, root, new LazyTextElement(source, (int) tokenizer.getTokenOffset(), tokenizer.getTokenLength()));
+				}
+				else
+				{
+					addChild(parent, root, new TextElement(tokenizer.getText()));
+				}
+			}
+			else if (t == Token.START)
+			{
+				XmlElement new_element = new XmlElement(getName(tokenizer, m_names));
+				addChild(parent, root, new_element);
+				m_stack.add(new_element);
+			}
+			else
+			{
+				m_stack.remove(m_stack.size() - 1).trimChildren();
+				if (nested && m_stack.isEmpty())
+				{
+					// The element we started from is now closed
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a parsed element to its parent. The root may have been given by
+	 * the caller and have cached its serialized form, so it goes through
+	 * {@link XmlElement#addChild(XmlElement)}; the other elements were
+	 * created by the parser and can be appended directly.
+	 * @param parent The parent
+	 * @param root The root of the elements being parsed
+	 * @param e The element to add
+	 */
+	protected static void addChild(/*@NonNull*/ XmlElement parent, /*@NonNull*/ XmlElement root, /*@NonNull*/ XmlElement e)
+	{
+		if (parent == root)
+		{
+			parent.addChild(e);
+		}
+		else
+		{
+			parent.appendChild(e);
+		}
+	}
+
+	/**
+	 * Gets the name in the current opening tag of a tokenizer
+	 * @param tokenizer The tokenizer
+	 * @param names The table in which the name is looked up, or null to
+	 * make a new string
+	 * @return The name
+	 */
+	protected static /*@NonNull*/ String getName(/*@NonNull*/ XmlTokenizer tokenizer, /*@Nullable*/ NameTable names)
+	{
+		if (names == null)
+		{
+			return tokenizer.getName();
+		}
+		return names.intern(tokenizer.getBuffer(), tokenizer.getTokenStart(), tokenizer.getTokenLength());
+	}
+
+	/**
+	 * Task parsing a part of the contents of the root of a document
+	 */
+	protected static class ChunkTask implements Callable<XmlElement>
+	{
+		/**
+		 * Whether text nodes are read lazily, as in the parser that creates
+		 * the task
+		 */
+		protected final boolean m_lazyText;
+
+		/**
+		 * The table in which names are looked up, as in the parser that
+		 * creates the task
+		 */
+		protected final /*@Nullable*/ NameTable m_names;
+
+		/**
+		 * The document
+		 */
+		protected final String m_source;
+
+		/**
+		 * The position where the part starts
+		 */
+		protected final int m_start;
+
+		/**
+		 * The position where the part ends
+		 */
+		protected final int m_end;
+
+		/**
+		 * Creates a new task
+		 * @param parser The parser whose settings are used
+		 * @param source The document
+		 * @param start The position where the part starts
+		 * @param end The position where the part ends
+		 */
+		public ChunkTask(/*@NonNull*/ XmlParser parser, /*@NonNull*/ String source, int start, int end)
+		{
+			super();
+			m_lazyText = parser.m_lazyText;
+			m_names = parser.m_names;
+			m_source = source;
+			m_start = start;
+			m_end = end;
+		}
+
+		@Override
+		public /*@NonNull*/ XmlElement call() throws XmlParseException, IOException
+		{
+			// The elements of the part are added to a placeholder
+			XmlElement parent = new XmlElement("");
+			// Parsers are not thread-safe: the task uses the one of its thread
+			XmlParser parser = getTaskInstance().setLazyText(m_lazyText).setNameTable(m_names);
+			try
+			{
+				parser.parseContent(parser.getTokenizer().reset(m_source, m_start, m_end), parent);
+			}
+			finally
+			{
+				parser.reset();
+			}
+			return parent;
+		}
+	}
+}
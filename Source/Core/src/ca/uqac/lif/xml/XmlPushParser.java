@@ -0,0 +1,444 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+
+/**
+ * Parser to which the input is pushed in chunks of arbitrary size, such
+ * as the buffers read from a non-blocking socket. Unlike
+ * {@link XmlParser}, which pulls characters from its input until the
+ * document is complete, the push parser processes each chunk as soon as
+ * it is {@link #feed(char[], int, int) fed}, and keeps its state until
+ * the next one; a token may hence be split across any number of chunks.
+ * <p>
+ * Elements are built as their tags are read. Each time an element is
+ * closed, it is passed to a {@link Listener}, which may choose to discard
+ * it instead of keeping it in the tree; very large documents can thus be
+ * processed one subtree at a time. Once the root of a document is closed,
+ * the document can be retrieved with {@link #nextDocument()}, and the
+ * parser is ready for the next document in the input.
+ * <p>
+ * The documents produced are the same as those of {@link XmlParser},
+ * except that text outside of a document (other than whitespace) is an
+ * error. A parser cannot be used any more after it has thrown an
+ * exception, until it is {@link #reset()}.
+ */
+public class XmlPushParser
+{
+	/**
+	 * Reading text between tags
+	 */
+	protected static final int S_CONTENT = 0;
+
+	/**
+	 * An opening bracket has just been read
+	 */
+	protected static final int S_BRACKET = 1;
+
+	/**
+	 * Reading the name in an opening tag
+	 */
+	protected static final int S_OPENING = 2;
+
+	/**
+	 * Reading the name in a closing tag
+	 */
+	protected static final int S_CLOSING = 3;
+
+	/**
+	 * The state of the parser
+	 */
+	protected int m_state;
+
+	/**
+	 * The text or name being read
+	 */
+	protected final StringBuilder m_token;
+
+	/**
+	 * The elements that are currently open
+	 */
+	protected final List<XmlElement> m_stack;
+
+	/**
+	 * The documents that have been completely read
+	 */
+	protected final Deque<XmlElement> m_documents;
+
+	/**
+	 * The listener notified of closed elements, if any
+	 */
+	protected /*@Nullable*/ Listener m_listener;
+
+	/**
+	 * The table in which element names are looked up
+	 */
+	protected /*@Nullable*/ NameTable m_names;
+
+	/**
+	 * The decoder used for bytes
+	 */
+	protected final CharsetDecoder m_decoder;
+
+	/**
+	 * The bytes of a character split between two chunks
+	 */
+	protected final ByteBuffer m_leftover;
+
+	/**
+	 * The buffer into which bytes are decoded
+	 */
+	protected final CharBuffer m_chars;
+
+	/**
+	 * Creates a push parser reading characters, or bytes encoded in UTF-8
+	 */
+	public XmlPushParser()
+	{
+		this(Charset.forName("UTF-8"));
+	}
+
+	/**
+	 * Creates a push parser
+	 * @param charset The character set used to decode the bytes given to
+	 * {@link #feed(ByteBuffer)}
+	 */
+	public XmlPushParser(/*@NonNull*/ Charset charset)
+	{
+		super();
+		m_token = new StringBuilder();
+		m_stack = new ArrayList<XmlElement>();
+		m_documents = new ArrayDeque<XmlElement>();
+		m_names = NameTable.getGlobal();
+		m_decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		m_leftover = ByteBuffer.allocate(16);
+		m_chars = CharBuffer.allocate(4096);
+		m_state = S_CONTENT;
+	}
+
+	/**
+	 * Sets the listener notified each time an element is closed
+	 * @param listener The listener, or null to keep all the elements
+	 * @return This parser
+	 */
+	public XmlPushParser setListener(/*@Nullable*/ Listener listener)
+	{
+		m_listener = listener;
+		return this;
+	}
+
+	/**
+	 * Sets the table in which element names are looked up
+	 * @param names The table, or null to give each element its own copy of
+	 * its name
+	 * @return This parser
+	 * @see XmlParser#setNameTable(NameTable)
+	 */
+	public XmlPushParser setNameTable(/*@Nullable*/ NameTable names)
+	{
+		m_names = names;
+		return this;
+	}
+
+	/**
+	 * Processes a chunk of the input
+	 * @param chars The array containing the chunk
+	 * @param offset The position of the chunk in the array
+	 * @param length The length of the chunk
+	 * @throws XmlParseException If the input is not well-formed
+	 */
+	public void feed(/*@NonNull*/ char[] chars, int offset, int length) throws XmlParseException
+	{
+		int end = offset + length;
+		for (int i = offset; i < end; i++)
+		{
+			char c = chars[i];
+			switch (m_state)
+			{
+			case S_CONTENT:
+				if (c == '<')
+				{
+					m_state = S_BRACKET;
+				}
+				else if (m_token.length() > 0)
+				{
+					m_token.append(c);
+				}
+				else if (c > ' ')
+				{
+					// Leading whitespace is skipped
+					if (m_stack.isEmpty())
+					{
+						throw new XmlParseException("Unexpected text outside of a document");
+					}
+					m_token.append(c);
+				}
+				break;
+			case S_BRACKET:
+				if (c == '/')
+				{
+					addText(true);
+					m_state = S_CLOSING;
+				}
+				else
+				{
+					// Trailing whitespace is kept before an opening tag
+					addText(false);
+					if (c == '>')
+					{
+						open();
+						m_state = S_CONTENT;
+					}
+					else
+					{
+						m_token.append(c);
+						m_state = S_OPENING;
+					}
+				}
+				break;
+			case S_OPENING:
+				if (c == '>')
+				{
+					open();
+					m_state = S_CONTENT;
+				}
+				else
+				{
+					m_token.append(c);
+				}
+				break;
+			default:
+				if (c == '>')
+				{
+					close();
+					m_state = S_CONTENT;
+				}
+				else
+				{
+					m_token.append(c);
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Processes a chunk of the input given as bytes. The bytes of a
+	 * character may be split between two chunks.
+	 * @param bytes The chunk. All its remaining bytes are consumed.
+	 * @throws XmlParseException If the input is not well-formed
+	 */
+	public void feed(/*@NonNull*/ ByteBuffer bytes) throws XmlParseException
+	{
+		// Complete the character left over from the previous chunk
+		while (m_leftover.position() > 0 && bytes.hasRemaining())
+		{
+			m_leftover.put(bytes.get());
+			m_leftover.flip();
+			decode(m_leftover, false);
+			m_leftover.compact();
+		}
+		decode(bytes, false);
+		if (bytes.hasRemaining())
+		{
+			m_leftover.put(bytes);
+		}
+	}
+
+	/**
+	 * Signals the end of the input
+	 * @throws XmlParseException If the last document is incomplete
+	 */
+	public void end() throws XmlParseException
+	{
+		m_leftover.flip();
+		decode(m_leftover, true);
+		m_leftover.clear();
+		m_chars.clear();
+		m_decoder.flush(m_chars);
+		flushChars();
+		m_decoder.reset();
+		if (m_state != S_CONTENT)
+		{
+			throw new XmlParseException("Closing bracket not found");
+		}
+		if (!m_stack.isEmpty())
+		{
+			throw new XmlParseException("Closing element " + m_stack.get(m_stack.size() - 1).getName() + " not found");
+		}
+	}
+
+	/**
+	 * Gets the next document that has been completely read
+	 * @return The root of the document, or null if no document is complete
+	 */
+	public /*@Nullable*/ XmlElement nextDocument()
+	{
+		return m_documents.pollFirst();
+	}
+
+	/**
+	 * Gets the number of elements currently open
+	 * @return The depth
+	 */
+	public int getDepth()
+	{
+		return m_stack.size();
+	}
+
+	/**
+	 * Discards the state of the parser and the documents not yet retrieved,
+	 * so that it can read a new input
+	 */
+	public void reset()
+	{
+		m_state = S_CONTENT;
+		m_token.setLength(0);
+		m_stack.clear();
+		m_documents.clear();
+		m_leftover.clear();
+		m_decoder.reset();
+	}
+
+	/**
+	 * Decodes bytes and processes the resulting characters
+	 * @param bytes The bytes
+	 * @param end_of_input Whether there are no more bytes after these
+	 * @throws XmlParseException If the input is not well-formed
+	 */
+	protected void decode(/*@NonNull*/ ByteBuffer bytes, boolean end_of_input) throws XmlParseException
+	{
+		while (true)
+		{
+			m_chars.clear();
+			CoderResult result = m_decoder.decode(bytes, m_chars, end_of_input);
+			flushChars();
+			if (result.isUnderflow())
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Processes the characters produced by the decoder
+	 * @throws XmlParseException If the input is not well-formed
+	 */
+	protected void flushChars() throws XmlParseException
+	{
+		m_chars.flip();
+		feed(m_chars.array(), m_chars.arrayOffset(), m_chars.remaining());
+	}
+
+	/**
+	 * Adds the text read so far to the current element
+	 * @param trim Whether to remove trailing whitespace
+	 */
+	protected void addText(boolean trim)
+	{
+		StringBuilder token = m_token;
+		if (token.length() == 0)
+		{
+			return;
+		}
+		if (trim)
+		{
+			int length = token.length();
+			while (length > 0 && token.charAt(length - 1) <= ' ')
+			{
+				length--;
+			}
+			token.setLength(length);
+		}
+		m_stack.get(m_stack.size() - 1).appendChild(new TextElement(token.toString()));
+		token.setLength(0);
+	}
+
+	/**
+	 * Opens an element whose name has just been read
+	 */
+	protected void open()
+	{
+		String name = m_names == null ? m_token.toString() : m_names.intern(m_token);
+		m_token.setLength(0);
+		m_stack.add(new XmlElement(name));
+	}
+
+	/**
+	 * Closes the element whose name has just been read
+	 * @throws XmlParseException If the name is not the one of the last
+	 * open element
+	 */
+	protected void close() throws XmlParseException
+	{
+		int top = m_stack.size() - 1;
+		if (top < 0)
+		{
+			throw new XmlParseException("Unexpected closing element " + m_token);
+		}
+		XmlElement e = m_stack.get(top);
+		if (!e.getName().contentEquals(m_token))
+		{
+			throw new XmlParseException("Closing element " + e.getName() + " not found");
+		}
+		m_token.setLength(0);
+		m_stack.remove(top);
+		e.trimChildren();
+		boolean keep = m_listener == null || m_listener.elementClosed(e, top + 1);
+		if (keep)
+		{
+			if (top == 0)
+			{
+				m_documents.addLast(e);
+			}
+			else
+			{
+				m_stack.get(top - 1).appendChild(e);
+			}
+		}
+	}
+
+	/**
+	 * Receives the elements of a document as soon as they are closed
+	 */
+	public static interface Listener
+	{
+		/**
+		 * Receives an element that has just been closed. All its children
+		 * have been added to the element; its parent, if any, is still open.
+		 * @param e The element
+		 * @param depth The depth of the element, 1 being the root of a
+		 * document
+		 * @return true to keep the element in its parent (or, for a root, in
+		 * the list of documents), false to discard it
+		 */
+		public boolean elementClosed(/*@NonNull*/ XmlElement e, int depth);
+	}
+}
@@ -0,0 +1,323 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+import ca.uqac.lif.xml.XmlTokenizer.Token;
+
+/**
+ * Splits a stream made of XML documents written one after the other into
+ * individual records. The splitter only reads tokens to find where each
+ * document ends, without building any tree; records can then be parsed
+ * separately, possibly by other threads.
+ * <p>
+ * Records can be read one by one with {@link #nextRecord()}. Method
+ * {@link #process(ExecutorService, XPathExpression, int, RecordCallback)}
+ * rather submits each record to an executor, which parses it and
+ * optionally evaluates an XPath expression on it, and passes the results
+ * to a callback in the order of the input. At most a fixed number of
+ * records are read ahead of the one being delivered, so that a slow
+ * callback does not make records pile up in memory.
+ * <p>
+ * Whitespace between records is ignored; any other text outside of a
+ * record is an error.
+ */
+public class XmlRecordSplitter
+{
+	/**
+	 * The tokenizer reading the input
+	 */
+	protected final XmlTokenizer m_tokenizer;
+
+	/**
+	 * The contents of the record being read
+	 */
+	protected final StringBuilder m_record;
+
+	/**
+	 * The number of records read so far
+	 */
+	protected long m_count;
+
+	/**
+	 * Creates a splitter reading from a tokenizer
+	 * @param tokenizer The tokenizer
+	 */
+	public XmlRecordSplitter(/*@NonNull*/ XmlTokenizer tokenizer)
+	{
+		super();
+		m_tokenizer = tokenizer;
+		m_record = new StringBuilder();
+		m_count = 0;
+	}
+
+	/**
+	 * Creates a splitter reading from a stream of characters
+	 * @param r The reader to read from. The reader is not closed by the
+	 * splitter.
+	 */
+	public XmlRecordSplitter(/*@NonNull*/ Reader r)
+	{
+		this(new XmlTokenizer(r));
+	}
+
+	/**
+	 * Creates a splitter reading from a file encoded in UTF-8, by mapping
+	 * it in memory
+	 * @param channel The channel to read from. The channel is not closed by
+	 * the splitter.
+	 * @throws IOException If the size of the file cannot be read
+	 * @see MappedTokenizer
+	 */
+	public XmlRecordSplitter(/*@NonNull*/ FileChannel channel) throws IOException
+	{
+		this(new MappedTokenizer(channel));
+	}
+
+	/**
+	 * Reads the next record
+	 * @return The text of the record, or null if the end of the input has
+	 * been reached. Whitespace that is ignored by the parser may not be
+	 * preserved.
+	 * @throws XmlParseException If the record is not well-formed
+	 * @throws IOException If reading from the input failed
+	 */
+	public /*@Nullable*/ String nextRecord() throws XmlParseException, IOException
+	{
+		XmlTokenizer tokenizer = m_tokenizer;
+		Token t = tokenizer.next();
+		if (t == Token.EOF)
+		{
+			return null;
+		}
+		if (t != Token.START)
+		{
+			throw new XmlParseException("Unexpected text between records");
+		}
+		StringBuilder out = m_record;
+		out.setLength(0);
+		while (true)
+		{
+			// The text given to the parser produces the same tokens
+			if (t == Token.START)
+			{
+				out.append('<').append(tokenizer.getBuffer(), tokenizer.getTokenStart(), tokenizer.getTokenLength()).append('>');
+			}
+			else if (t == Token.END)
+			{
+				out.append("</").append(tokenizer.getBuffer(), tokenizer.getTokenStart(), tokenizer.getTokenLength()).append('>');
+				if (tokenizer.getDepth() == 0)
+				{
+					break;
+				}
+			}
+			else
+			{
+				out.append(tokenizer.getBuffer(), tokenizer.getTokenStart(), tokenizer.getTokenLength());
+			}
+			t = tokenizer.next();
+		}
+		m_count++;
+		return out.toString();
+	}
+
+	/**
+	 * Gets the number of records read so far
+	 * @return The number of records
+	 */
+	public long getCount()
+	{
+		return m_count;
+	}
+
+	/**
+	 * Reads all the remaining records, and parses them in parallel. Each
+	 * record is parsed by a task submitted to an executor, which also
+	 * evaluates an XPath expression on it if one is given. The callback is
+	 * called by the current thread, once for each record, in the order of
+	 * the input.
+	 * <p>
+	 * If a record cannot be read or parsed, all the records that precede it
+	 * are first passed to the callback, and the exception is then thrown.
+	 * @param executor The executor that runs the tasks
+	 * @param exp The expression to evaluate on each record, or null
+	 * @param max_pending The maximum number of records that are read but
+	 * not yet passed to the callback
+	 * @param callback The callback receiving the records
+	 * @return The number of records passed to the callback
+	 * @throws XmlParseException If a record is not well-formed
+	 * @throws IOException If reading from the input failed
+	 */
+	public long process(/*@NonNull*/ ExecutorService executor, /*@Nullable*/ XPathExpression exp, int max_pending, /*@NonNull*/ RecordCallback callback) throws XmlParseException, IOException
+	{
+		Deque<Future<RecordTask>> pending = new ArrayDeque<Future<RecordTask>>();
+		XmlParseException read_error = null;
+		boolean done = false;
+		boolean stopped = false;
+		long delivered = 0;
+		try
+		{
+			while (true)
+			{
+				if (!done)
+				{
+					String record = null;
+					try
+					{
+						record = nextRecord();
+					}
+					catch (XmlParseException e)
+					{
+						// Deliver the records read so far first
+						read_error = e;
+					}
+					if (record == null)
+					{
+						done = true;
+					}
+					else
+					{
+						pending.addLast(executor.submit(new RecordTask(record, exp)));
+					}
+				}
+				if (!done && pending.size() < max_pending)
+				{
+					continue;
+				}
+				if (pending.isEmpty())
+				{
+					break;
+				}
+				RecordTask task = pending.removeFirst().get();
+				delivered++;
+				if (!callback.accept(task.m_element, task.m_results))
+				{
+					stopped = true;
+					break;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new XmlParseException("Processing was interrupted");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof XmlParseException)
+			{
+				throw (XmlParseException) cause;
+			}
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			throw new XmlParseException(String.valueOf(cause));
+		}
+		finally
+		{
+			for (Future<RecordTask> f : pending)
+			{
+				f.cancel(true);
+			}
+		}
+		if (read_error != null && !stopped)
+		{
+			throw read_error;
+		}
+		return delivered;
+	}
+
+	/**
+	 * Receives the records processed by
+	 * {@link XmlRecordSplitter#process(ExecutorService, XPathExpression, int, RecordCallback)}
+	 */
+	public static interface RecordCallback
+	{
+		/**
+		 * Receives a record
+		 * @param record The parsed record
+		 * @param results The result of the XPath expression on the record, or
+		 * null if no expression was given
+		 * @return true to continue with the next record, false to stop
+		 */
+		public boolean accept(/*@NonNull*/ XmlElement record, /*@Nullable*/ Collection<XmlElement> results);
+	}
+
+	/**
+	 * Task parsing a record and evaluating an expression on it
+	 */
+	protected static class RecordTask implements Callable<RecordTask>
+	{
+		/**
+		 * The text of the record
+		 */
+		protected /*@Nullable*/ String m_text;
+
+		/**
+		 * The expression to evaluate, if any
+		 */
+		protected final /*@Nullable*/ XPathExpression m_expression;
+
+		/**
+		 * The parsed record
+		 */
+		protected /*@Nullable*/ XmlElement m_element;
+
+		/**
+		 * The result of the expression
+		 */
+		protected /*@Nullable*/ Collection<XmlElement> m_results;
+
+		/**
+		 * Creates a new task
+		 * @param text The text of the record
+		 * @param exp The expression to evaluate, if any
+		 */
+		public RecordTask(/*@NonNull*/ String text, /*@Nullable*/ XPathExpression exp)
+		{
+			super();
+			m_text = text;
+			m_expression = exp;
+		}
+
+		@Override
+		public /*@NonNull*/ RecordTask call() throws XmlParseException
+		{
+			m_element = XmlParser.getTaskInstance().parse(m_text);
+			m_text = null;
+			if (m_expression != null)
+			{
+				m_results = m_expression.evaluate(m_element);
+			}
+			return this;
+		}
+	}
+}
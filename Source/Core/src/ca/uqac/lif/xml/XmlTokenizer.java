@@ -0,0 +1,697 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+
+/**
+ * Splits a stream of characters into opening tags, closing tags and
+ * text. The tokenizer reads its input through a fixed-size character
+ * buffer, which is refilled as the input is consumed; the buffer only
+ * grows when a single tag or text node does not fit in it. Characters
+ * that have been consumed are never kept, so the memory used by the
+ * tokenizer does not depend on the size of the document.
+ * <p>
+ * The current token is exposed as a view over the internal buffer (see
+ * {@link #getBuffer()}, {@link #getTokenStart()} and
+ * {@link #getTokenLength()}); this view is only valid until the next
+ * call to {@link #next()}. Methods {@link #getName()} and
+ * {@link #getText()} create a string from it.
+ * <p>
+ * The tokenizer applies the same whitespace rules as
+ * {@link XmlElement#parse(String)}: whitespace at the start of a text
+ * node is skipped, whitespace at its end is removed when it is followed
+ * by a closing tag, and whitespace-only text is ignored. It also keeps
+ * track of the elements that are open, and checks that closing tags
+ * match them.
+ */
+public class XmlTokenizer
+{
+	/**
+	 * The types of tokens produced by the tokenizer
+	 */
+	public static enum Token {START, TEXT, END, EOF}
+
+	/**
+	 * The default size of the character buffer
+	 */
+	public static final int s_defaultBufferSize = 8192;
+
+	/**
+	 * The largest size of a buffer kept when the tokenizer is reset. A
+	 * buffer that has grown past this size for a large token is replaced
+	 * by one of its initial size, so that a tokenizer that is kept and
+	 * reused does not hold on to the memory needed by its largest input.
+	 */
+	public static final int s_maxRetainedBufferSize = 1 << 16;
+
+	/**
+	 * The buffer containing the characters read from the input
+	 */
+	protected char[] m_buffer;
+
+	/**
+	 * The initial size of the character buffer
+	 */
+	protected final int m_bufferSize;
+
+	/**
+	 * The position of the next character to read in the buffer
+	 */
+	protected int m_position;
+
+	/**
+	 * The number of valid characters in the buffer
+	 */
+	protected int m_limit;
+
+	/**
+	 * The position in the input of the first character of the buffer
+	 */
+	protected long m_offset;
+
+	/**
+	 * The position in the buffer of the token being read. Characters
+	 * from this position are kept when the buffer is refilled.
+	 */
+	protected int m_tokenStart;
+
+	/**
+	 * The length of the current token
+	 */
+	protected int m_tokenLength;
+
+	/**
+	 * The type of the current token
+	 */
+	protected Token m_token;
+
+	/**
+	 * Whether the end of the input has been reached
+	 */
+	protected boolean m_eof;
+
+	/**
+	 * The names of the open elements, one after the other
+	 */
+	protected char[] m_names;
+
+	/**
+	 * The position in {@link #m_names} where the name of each open element
+	 * ends
+	 */
+	protected int[] m_nameEnds;
+
+	/**
+	 * The number of open elements
+	 */
+	protected int m_depth;
+
+	/**
+	 * The character sequence to read from, if any
+	 */
+	protected CharSequence m_source;
+
+	/**
+	 * The position in the character sequence where the input ends
+	 */
+	protected int m_sourceEnd;
+
+	/**
+	 * The reader to read from, if any
+	 */
+	protected Reader m_reader;
+
+	/**
+	 * Creates a tokenizer reading from a character sequence, such as a
+	 * string or a {@link java.nio.CharBuffer}
+	 * @param s The sequence
+	 */
+	public XmlTokenizer(/*@NonNull*/ CharSequence s)
+	{
+		this(s, 0, s.length());
+	}
+
+	/**
+	 * Creates a tokenizer reading from a region of a character sequence.
+	 * Positions returned by {@link #getTokenOffset()} and
+	 * {@link #getPosition()} are relative to the start of the sequence, not
+	 * of the region.
+	 * @param s The sequence
+	 * @param start The position where the region starts
+	 * @param end The position where the region ends
+	 */
+	public XmlTokenizer(/*@NonNull*/ CharSequence s, int start, int end)
+	{
+		this(s_defaultBufferSize);
+		m_source = s;
+		m_offset = start;
+		m_sourceEnd = end;
+	}
+
+	/**
+	 * Creates a tokenizer reading from a reader
+	 * @param r The reader
+	 */
+	public XmlTokenizer(/*@NonNull*/ Reader r)
+	{
+		this(r, s_defaultBufferSize);
+	}
+
+	/**
+	 * Creates a tokenizer reading from a reader
+	 * @param r The reader
+	 * @param buffer_size The initial size of the character buffer
+	 */
+	public XmlTokenizer(/*@NonNull*/ Reader r, int buffer_size)
+	{
+		this(buffer_size);
+		m_reader = r;
+	}
+
+	/**
+	 * Creates a tokenizer with no input. Descendants of this class must
+	 * override {@link #fill(char[], int, int)}.
+	 * @param buffer_size The initial size of the character buffer
+	 */
+	protected XmlTokenizer(int buffer_size)
+	{
+		super();
+		m_bufferSize = Math.max(buffer_size, 16);
+		m_buffer = new char[m_bufferSize];
+		m_names = new char[256];
+		m_nameEnds = new int[16];
+		m_token = null;
+	}
+
+	/**
+	 * Makes the tokenizer read from a character sequence. The buffers of
+	 * the tokenizer are kept, so that reading a new input does not
+	 * allocate memory.
+	 * @param s The sequence
+	 * @return This tokenizer
+	 */
+	public XmlTokenizer reset(/*@NonNull*/ CharSequence s)
+	{
+		return reset(s, 0, s.length());
+	}
+
+	/**
+	 * Makes the tokenizer read from a region of a character sequence
+	 * @param s The sequence
+	 * @param start The position where the region starts
+	 * @param end The position where the region ends
+	 * @return This tokenizer
+	 * @see #XmlTokenizer(CharSequence, int, int)
+	 */
+	public XmlTokenizer reset(/*@NonNull*/ CharSequence s, int start, int end)
+	{
+		reset();
+		m_source = s;
+		m_offset = start;
+		m_sourceEnd = end;
+		return this;
+	}
+
+	/**
+	 * Makes the tokenizer read from a reader
+	 * @param r The reader
+	 * @return This tokenizer
+	 */
+	public XmlTokenizer reset(/*@NonNull*/ Reader r)
+	{
+		reset();
+		m_reader = r;
+		return this;
+	}
+
+	/**
+	 * Discards the input of the tokenizer and its current state, but keeps
+	 * its buffers, unless they have grown past
+	 * {@link #s_maxRetainedBufferSize}
+	 */
+	public void reset()
+	{
+		m_source = null;
+		m_sourceEnd = 0;
+		m_reader = null;
+		m_offset = 0;
+		m_position = 0;
+		m_limit = 0;
+		m_tokenStart = 0;
+		m_tokenLength = 0;
+		m_token = null;
+		m_eof = false;
+		m_depth = 0;
+		if (m_buffer.length > Math.max(m_bufferSize, s_maxRetainedBufferSize))
+		{
+			m_buffer = new char[m_bufferSize];
+		}
+		if (m_names.length > s_maxRetainedBufferSize)
+		{
+			m_names = new char[256];
+		}
+		if (m_nameEnds.length > s_maxRetainedBufferSize)
+		{
+			m_nameEnds = new int[16];
+		}
+	}
+
+	/**
+	 * Reads the next token
+	 * @return The type of the token
+	 * @throws XmlParseException If the input is not well-formed
+	 * @throws IOException If reading from the input failed
+	 */
+	public /*@NonNull*/ Token next() throws XmlParseException, IOException
+	{
+		// Skip whitespace
+		while (true)
+		{
+			while (m_position < m_limit && m_buffer[m_position] <= ' ')
+			{
+				m_position++;
+			}
+			if (m_position < m_limit)
+			{
+				break;
+			}
+			m_tokenStart = m_position;
+			if (!ensure(1))
+			{
+				if (m_depth > 0)
+				{
+					throw new XmlParseException("Closing element " + topName() + " not found");
+				}
+				m_tokenLength = 0;
+				m_token = Token.EOF;
+				return m_token;
+			}
+		}
+		m_tokenStart = m_position;
+		if (m_buffer[m_position] != '<')
+		{
+			readText();
+			return m_token;
+		}
+		if (!ensure(2))
+		{
+			throw new XmlParseException("Closing bracket not found");
+		}
+		if (m_buffer[m_position + 1] == '/')
+		{
+			m_position += 2;
+			m_tokenStart = m_position;
+			readUntilClosingBracket();
+			popName();
+			m_token = Token.END;
+		}
+		else
+		{
+			m_position++;
+			m_tokenStart = m_position;
+			readUntilClosingBracket();
+			pushName();
+			m_token = Token.START;
+		}
+		return m_token;
+	}
+
+	/**
+	 * Gets the type of the current token
+	 * @return The type, or null if {@link #next()} has not been called yet
+	 */
+	public /*@Nullable*/ Token getToken()
+	{
+		return m_token;
+	}
+
+	/**
+	 * Gets the buffer containing the current token
+	 * @return The buffer
+	 */
+	public /*@NonNull*/ char[] getBuffer()
+	{
+		return m_buffer;
+	}
+
+	/**
+	 * Gets the position in the buffer where the current token starts
+	 * @return The position
+	 */
+	public int getTokenStart()
+	{
+		return m_tokenStart;
+	}
+
+	/**
+	 * Gets the length of the current token
+	 * @return The length
+	 */
+	public int getTokenLength()
+	{
+		return m_tokenLength;
+	}
+
+	/**
+	 * Gets the position in the input where the current token starts
+	 * @return The position
+	 */
+	public long getTokenOffset()
+	{
+		return m_offset + m_tokenStart;
+	}
+
+	/**
+	 * Gets the position in the input of the next character to be read. Right
+	 * after a {@link Token#START} token, this is where the contents of the
+	 * element begin.
+	 * @return The position
+	 */
+	public long getPosition()
+	{
+		return m_offset + m_position;
+	}
+
+	/**
+	 * Gets the character sequence the tokenizer reads from, if the whole
+	 * input is available in memory. In such a case, the position of a token
+	 * given by {@link #getTokenOffset()} is a valid index in that sequence.
+	 * @return The sequence, or null if the input is read from a stream
+	 */
+	public /*@Nullable*/ CharSequence getSource()
+	{
+		return m_source;
+	}
+
+	/**
+	 * Gets the number of elements currently open. After a
+	 * {@link Token#START} token, this includes the element that has just
+	 * been opened; after a {@link Token#END} token, it no longer includes
+	 * the element that has just been closed.
+	 * @return The depth
+	 */
+	public int getDepth()
+	{
+		return m_depth;
+	}
+
+	/**
+	 * Gets the name of the element in the current opening or closing tag
+	 * @return The name
+	 */
+	public /*@NonNull*/ String getName()
+	{
+		return new String(m_buffer, m_tokenStart, m_tokenLength);
+	}
+
+	/**
+	 * Gets the contents of the current text token
+	 * @return The text
+	 */
+	public /*@NonNull*/ String getText()
+	{
+		return new String(m_buffer, m_tokenStart, m_tokenLength);
+	}
+
+	/**
+	 * Checks whether the current token is equal to a character sequence
+	 * @param s The sequence
+	 * @return true if the token is equal to the sequence, false otherwise
+	 */
+	public boolean tokenEquals(/*@NonNull*/ CharSequence s)
+	{
+		if (s.length() != m_tokenLength)
+		{
+			return false;
+		}
+		for (int i = 0; i < m_tokenLength; i++)
+		{
+			if (m_buffer[m_tokenStart + i] != s.charAt(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the remainder of the input, starting at the current token, as
+	 * a single string. This is used when the input does not start with a
+	 * tag, in which case it is not interpreted as XML.
+	 * @return The string, with its trailing whitespace removed
+	 * @throws IOException If reading from the input failed
+	 */
+	public /*@NonNull*/ String readToEnd() throws IOException
+	{
+		m_position = m_tokenStart;
+		StringBuilder out = new StringBuilder();
+		do
+		{
+			out.append(m_buffer, m_position, m_limit - m_position);
+			m_position = m_limit;
+			m_tokenStart = m_position;
+		} while (ensure(1));
+		int end = out.length();
+		while (end > 0 && out.charAt(end - 1) <= ' ')
+		{
+			end--;
+		}
+		out.setLength(end);
+		m_tokenLength = 0;
+		m_token = Token.EOF;
+		return out.toString();
+	}
+
+	/**
+	 * Reads a text token starting at the current position
+	 * @throws IOException If reading from the input failed
+	 */
+	protected void readText() throws IOException
+	{
+		boolean trim = true;
+		while (true)
+		{
+			char[] buffer = m_buffer;
+			int limit = m_limit;
+			int pos = m_position;
+			while (pos < limit && buffer[pos] != '<')
+			{
+				pos++;
+			}
+			m_position = pos;
+			if (pos < limit)
+			{
+				// Trailing whitespace is only kept if the text is followed
+				// by an opening tag
+				trim = !ensure(2) || m_buffer[m_position + 1] == '/';
+				break;
+			}
+			if (!ensure(1))
+			{
+				break;
+			}
+		}
+		int end = m_position;
+		if (trim)
+		{
+			while (end > m_tokenStart && m_buffer[end - 1] <= ' ')
+			{
+				end--;
+			}
+		}
+		m_tokenLength = end - m_tokenStart;
+		m_token = Token.TEXT;
+	}
+
+	/**
+	 * Advances past the next closing bracket, and sets the current token
+	 * to the characters that precede it
+	 * @throws XmlParseException If no closing bracket is found
+	 * @throws IOException If reading from the input failed
+	 */
+	protected void readUntilClosingBracket() throws XmlParseException, IOException
+	{
+		while (true)
+		{
+			char[] buffer = m_buffer;
+			int limit = m_limit;
+			int pos = m_position;
+			while (pos < limit && buffer[pos] != '>')
+			{
+				pos++;
+			}
+			m_position = pos;
+			if (pos < limit)
+			{
+				break;
+			}
+			if (!ensure(1))
+			{
+				throw new XmlParseException("Closing bracket not found");
+			}
+		}
+		m_tokenLength = m_position - m_tokenStart;
+		m_position++;
+	}
+
+	/**
+	 * Records the current token as the name of a newly opened element
+	 */
+	protected void pushName()
+	{
+		int start = m_depth == 0 ? 0 : m_nameEnds[m_depth - 1];
+		int end = start + m_tokenLength;
+		if (end > m_names.length)
+		{
+			char[] names = new char[Math.max(end, m_names.length * 2)];
+			System.arraycopy(m_names, 0, names, 0, start);
+			m_names = names;
+		}
+		System.arraycopy(m_buffer, m_tokenStart, m_names, start, m_tokenLength);
+		if (m_depth == m_nameEnds.length)
+		{
+			int[] ends = new int[m_nameEnds.length * 2];
+			System.arraycopy(m_nameEnds, 0, ends, 0, m_depth);
+			m_nameEnds = ends;
+		}
+		m_nameEnds[m_depth++] = end;
+	}
+
+	/**
+	 * Checks that the current token is the name of the last open element,
+	 * and closes that element
+	 * @throws XmlParseException If the names do not match
+	 */
+	protected void popName() throws XmlParseException
+	{
+		if (m_depth == 0)
+		{
+			throw new XmlParseException("Unexpected closing element " + getName());
+		}
+		int start = m_depth == 1 ? 0 : m_nameEnds[m_depth - 2];
+		int end = m_nameEnds[m_depth - 1];
+		boolean match = end - start == m_tokenLength;
+		for (int i = 0; match && i < m_tokenLength; i++)
+		{
+			match = m_names[start + i] == m_buffer[m_tokenStart + i];
+		}
+		if (!match)
+		{
+			throw new XmlParseException("Closing element " + topName() + " not found");
+		}
+		m_depth--;
+	}
+
+	/**
+	 * Gets the name of the last open element
+	 * @return The name
+	 */
+	protected /*@NonNull*/ String topName()
+	{
+		int start = m_depth == 1 ? 0 : m_nameEnds[m_depth - 2];
+		return new String(m_names, start, m_nameEnds[m_depth - 1] - start);
+	}
+
+	/**
+	 * Makes sure that a number of characters are available in the buffer
+	 * from the current position, reading from the input if necessary.
+	 * Characters from the start of the current token onwards are kept.
+	 * @param n The number of characters
+	 * @return true if the characters are available, false if the end of
+	 * the input was reached first
+	 * @throws IOException If reading from the input failed
+	 */
+	protected boolean ensure(int n) throws IOException
+	{
+		boolean grow = false;
+		while (m_limit - m_position < n)
+		{
+			if (m_eof)
+			{
+				return false;
+			}
+			int keep = Math.min(m_tokenStart, m_position);
+			if (keep > 0)
+			{
+				System.arraycopy(m_buffer, keep, m_buffer, 0, m_limit - keep);
+				m_offset += keep;
+				m_position -= keep;
+				m_tokenStart -= keep;
+				m_limit -= keep;
+			}
+			if (m_limit == m_buffer.length || grow)
+			{
+				char[] buffer = new char[m_buffer.length * 2];
+				System.arraycopy(m_buffer, 0, buffer, 0, m_limit);
+				m_buffer = buffer;
+			}
+			int read = fill(m_buffer, m_limit, m_buffer.length - m_limit);
+			if (read < 0)
+			{
+				m_eof = true;
+			}
+			else
+			{
+				m_limit += read;
+				// Nothing read: the space left is too small for the next character
+				grow = read == 0;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads characters from the input
+	 * @param buffer The buffer to write the characters to
+	 * @param offset The position in the buffer where to start writing
+	 * @param length The maximum number of characters to read
+	 * @return The number of characters read, or -1 if the end of the input
+	 * has been reached. 0 means that the space given is too small for the
+	 * next character; the buffer is then enlarged before trying again.
+	 * @throws IOException If reading from the input failed
+	 */
+	protected int fill(/*@NonNull*/ char[] buffer, int offset, int length) throws IOException
+	{
+		if (m_reader != null)
+		{
+			return m_reader.read(buffer, offset, length);
+		}
+		int start = (int) (m_offset + m_limit);
+		int end = Math.min(m_sourceEnd, start + length);
+		if (start >= end)
+		{
+			return -1;
+		}
+		if (m_source instanceof String)
+		{
+			((String) m_source).getChars(start, end, buffer, offset);
+		}
+		else
+		{
+			for (int i = start; i < end; i++)
+			{
+				buffer[offset++] = m_source.charAt(i);
+			}
+		}
+		return end - start;
+	}
+}
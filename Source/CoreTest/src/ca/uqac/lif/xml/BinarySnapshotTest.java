@@ -0,0 +1,125 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+
+public class BinarySnapshotTest
+{
+	@Test
+	public void testRoundTrip() throws XmlParseException, IOException
+	{
+		XmlElement e = XmlElement.parse("<a><b>h\u00e9llo \ud83d\ude00</b><c></c>text<b><b>x</b></b></a>");
+		byte[] bytes = toBytes(e);
+		XmlElement copy = XmlElement.readBinary(new ByteArrayInputStream(bytes));
+		assertEquals(e.toString(), copy.toString());
+		assertSame(copy, copy.getChildren().get(0).getParent());
+		// Names come from the same table as those of the parser
+		assertSame(e.getChildren().get(0).getName(), copy.getChildren().get(0).getName());
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		direct.put(bytes).flip();
+		assertEquals(e.toString(), XmlElement.readBinary(direct).toString());
+		assertEquals(0, direct.position());
+		assertEquals(e.toString(), XmlElement.readBinary(ByteBuffer.wrap(bytes)).toString());
+	}
+
+	@Test
+	public void testText() throws XmlParseException, IOException
+	{
+		XmlElement copy = XmlElement.readBinary(ByteBuffer.wrap(toBytes(new TextElement("foo"))));
+		assertTrue(copy instanceof TextElement);
+		assertEquals("foo", copy.toString());
+	}
+
+	@Test
+	public void testLarge() throws XmlParseException, IOException
+	{
+		XmlElement e = XmlElement.parse(XmlParserTest.generateRecords(5000));
+		File f = File.createTempFile("xml-lif", ".bin");
+		try
+		{
+			FileOutputStream fos = new FileOutputStream(f);
+			try
+			{
+				e.writeBinary(fos);
+			}
+			finally
+			{
+				fos.close();
+			}
+			assertEquals(e, XmlElement.readBinary(f));
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testInvalid() throws IOException
+	{
+		byte[] bytes = toBytes(new XmlElement("a").addChild(new TextElement("b")));
+		for (int length = 0; length < bytes.length; length++)
+		{
+			byte[] truncated = new byte[length];
+			System.arraycopy(bytes, 0, truncated, 0, length);
+			try
+			{
+				XmlElement.readBinary(new ByteArrayInputStream(truncated));
+				fail("The snapshot is truncated");
+			}
+			catch (XmlParseException ex)
+			{
+				// Expected
+			}
+		}
+		try
+		{
+			XmlElement.readBinary(ByteBuffer.wrap("<a></a>".getBytes()));
+			fail("Not a snapshot");
+		}
+		catch (XmlParseException ex)
+		{
+			assertEquals("Not a snapshot", ex.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the snapshot of an element
+	 * @param e The element
+	 * @return The bytes of the snapshot
+	 * @throws IOException If writing failed
+	 */
+	protected static byte[] toBytes(XmlElement e) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		e.writeBinary(out);
+		return out.toByteArray();
+	}
+}
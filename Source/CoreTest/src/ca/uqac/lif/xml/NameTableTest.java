@@ -0,0 +1,152 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import ca.uqac.lif.xml.XPathExpression.XPathParseException;
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+
+public class NameTableTest
+{
+	@Test
+	public void testIntern()
+	{
+		NameTable table = new NameTable();
+		char[] buffer = "<abc><ab>".toCharArray();
+		String s1 = table.intern(buffer, 1, 3);
+		assertEquals("abc", s1);
+		assertSame(s1, table.intern(new StringBuilder("abc")));
+		assertSame(s1, table.intern(buffer, 1, 3));
+		assertEquals("ab", table.intern(buffer, 6, 2));
+		assertEquals(2, table.size());
+	}
+
+	@Test
+	public void testBounded()
+	{
+		NameTable table = new NameTable(2);
+		table.intern("a");
+		table.intern("b");
+		String c = table.intern("c");
+		assertEquals("c", c);
+		assertNotSame(c, table.intern(new String("c")));
+		assertEquals(2, table.size());
+		table.clear();
+		assertEquals(0, table.size());
+		String d = table.intern("d");
+		assertSame(d, table.intern(new String("d")));
+	}
+
+	@Test
+	public void testConcurrentIntern() throws Exception
+	{
+		// Threads adding the same names at the same time get the same strings
+		final NameTable table = new NameTable(100);
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try
+		{
+			List<Future<String[]>> futures = new ArrayList<Future<String[]>>();
+			for (int t = 0; t < 8; t++)
+			{
+				futures.add(executor.submit(new Callable<String[]>() {
+					@Override
+					public String[] call() throws InterruptedException
+					{
+						start.await();
+						String[] names = new String[100];
+						for (int i = 0; i < names.length; i++)
+						{
+							names[i] = table.intern(new StringBuilder("name").append(i));
+						}
+						return names;
+					}
+				}));
+			}
+			start.countDown();
+			String[] first = futures.get(0).get();
+			for (Future<String[]> f : futures)
+			{
+				String[] names = f.get();
+				for (int i = 0; i < names.length; i++)
+				{
+					assertSame(first[i], names[i]);
+				}
+			}
+			assertEquals(100, table.size());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testSameName()
+	{
+		String a = NameTable.getGlobal().intern("a");
+		assertTrue(NameTable.sameName(a, a));
+		assertTrue(NameTable.sameName(a, new String("a")));
+		assertFalse(NameTable.sameName(a, "b"));
+		assertFalse(NameTable.sameName(a, null));
+	}
+
+	@Test
+	public void testSharedNames() throws XmlParseException
+	{
+		NameTable table = new NameTable();
+		XmlParser parser = new XmlParser().setNameTable(table);
+		XmlElement e1 = parser.parse("<a><b>1</b><b>2</b></a>");
+		XmlElement e2 = parser.parse("<a><b>3</b></a>");
+		assertSame(e1.getName(), e2.getName());
+		assertSame(e1.getChildren().get(0).getName(), e1.getChildren().get(1).getName());
+		assertSame(e1.getChildren().get(0).getName(), e2.getChildren().get(0).getName());
+		assertEquals(2, table.size());
+	}
+
+	@Test
+	public void testNoTable() throws XmlParseException
+	{
+		XmlElement e = new XmlParser().setNameTable(null).parse("<a><b>1</b><b>2</b></a>");
+		assertNotSame(e.getChildren().get(0).getName(), e.getChildren().get(1).getName());
+		assertEquals(e, XmlElement.parse("<a><b>1</b><b>2</b></a>"));
+	}
+
+	@Test
+	public void testExpressionNames() throws XmlParseException, XPathParseException
+	{
+		// Expressions match elements whose names are not in the same table
+		XmlElement e = new XmlParser().setNameTable(new NameTable()).parse("<a><b><c>1</c></b><b><c>2</c><d>3</d></b></a>");
+		XPathExpression exp = XPathExpression.parse("a/b[c=2]/d");
+		assertEquals(1, exp.evaluate(e).size());
+		XmlElement f = XmlElement.parse("<a><b><c>1</c></b><b><c>2</c><d>3</d></b></a>");
+		assertSame(exp.getSegments().get(0).getElementName(), f.getName());
+		assertEquals(1, exp.evaluate(f).size());
+	}
+}
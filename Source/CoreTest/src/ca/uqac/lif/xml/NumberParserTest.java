@@ -0,0 +1,95 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class NumberParserTest
+{
+	@Test
+	public void testIntegers()
+	{
+		assertEquals(Long.valueOf(12), NumberParser.parse("12"));
+		assertEquals(Long.valueOf(-12), NumberParser.parse("-12"));
+		assertEquals(Long.valueOf(1234567), NumberParser.parse("1,234,567"));
+		assertEquals(Long.valueOf(12), NumberParser.parse("00012"));
+		assertEquals(Long.valueOf(1), NumberParser.parse("1.000"));
+		assertEquals(Long.valueOf(1500), NumberParser.parse("1.5E3"));
+		assertEquals(Long.valueOf(Long.MAX_VALUE), NumberParser.parse("9223372036854775807"));
+		assertEquals(Double.valueOf(9223372036854775808d), NumberParser.parse("9223372036854775808"));
+	}
+
+	@Test
+	public void testMinValue()
+	{
+		assertEquals(Long.valueOf(Long.MIN_VALUE), NumberParser.parse("-9223372036854775808"));
+		assertEquals(Long.valueOf(Long.MIN_VALUE), NumberParser.parse("-9,223,372,036,854,775,808.0"));
+		assertEquals(Long.valueOf(Long.MIN_VALUE + 1), NumberParser.parse("-9223372036854775807"));
+		assertEquals(Double.valueOf(-9223372036854775809d), NumberParser.parse("-9223372036854775809"));
+		assertEquals(Long.MIN_VALUE, NumberParser.parseLong("-9223372036854775808", 0));
+		assertEquals(0, NumberParser.parseLong("-0", 1));
+		assertEquals(Double.valueOf(-0d), NumberParser.parse("-0"));
+	}
+
+	@Test
+	public void testDecimals()
+	{
+		assertEquals(Double.valueOf(1.5), NumberParser.parse("1.5"));
+		assertEquals(Double.valueOf(-0.5), NumberParser.parse("-.5"));
+		assertEquals(Double.valueOf(-0d), NumberParser.parse("-0"));
+		assertEquals(Double.valueOf(0.01), NumberParser.parse("1E-2"));
+		assertEquals(Double.valueOf(0.1), NumberParser.parse("0.1"));
+		assertEquals(Double.valueOf(1234.5), NumberParser.parse("1,234.5"));
+		assertEquals(Double.valueOf(1.2345678901234567), NumberParser.parse("1.2345678901234567890123"));
+		assertEquals(Double.valueOf(Double.POSITIVE_INFINITY), NumberParser.parse("1E400"));
+		assertEquals(Double.valueOf(Double.NaN), NumberParser.parse("NaN"));
+	}
+
+	@Test
+	public void testPrefix()
+	{
+		assertEquals(Long.valueOf(12), NumberParser.parse("12 kg"));
+		assertEquals(Long.valueOf(1), NumberParser.parse("1,"));
+		assertEquals(Double.valueOf(1.2), NumberParser.parse("1.2.3"));
+		assertEquals(Long.valueOf(1), NumberParser.parse("1E"));
+		assertEquals(5, NumberParser.scan("1.5E3x"));
+		assertEquals(3, NumberParser.scan("1.5Ex"));
+		assertNull(NumberParser.parse("foo"));
+		assertNull(NumberParser.parse(""));
+		assertNull(NumberParser.parse("-"));
+		assertNull(NumberParser.parse("."));
+		assertNull(NumberParser.parse(" 1"));
+	}
+
+	@Test
+	public void testPrimitives()
+	{
+		assertEquals(3.25, NumberParser.parseDouble("3.25", -1), 0);
+		assertEquals(-1, NumberParser.parseDouble("x", -1), 0);
+		assertEquals(42, NumberParser.parseLong("42.9", -1));
+		assertEquals(-1, NumberParser.parseLong("", -1));
+		assertEquals(Long.MIN_VALUE, NumberParser.parseLong("-9223372036854775808", 0));
+		assertEquals(Long.MAX_VALUE, NumberParser.parseLong("1E30", 0));
+		String s = "2,147,483,648";
+		assertEquals(Integer.MIN_VALUE, NumberParser.toInt(s, NumberParser.scan(s)));
+		s = "3000000000.5";
+		assertEquals(Integer.MAX_VALUE, NumberParser.toInt(s, NumberParser.scan(s)));
+	}
+}
@@ -0,0 +1,74 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class Utf8WriterTest
+{
+	protected static final Charset s_utf8 = Charset.forName("UTF-8");
+
+	@Test
+	public void testEncode() throws IOException
+	{
+		String s = "a\u00e9\u4e2d\ud83d\ude00<b>";
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Utf8Writer w = new Utf8Writer(out, 16);
+		for (int i = 0; i < 10; i++)
+		{
+			w.append(s);
+			w.write(s.toCharArray(), 0, s.length());
+		}
+		w.finish();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 20; i++)
+		{
+			expected.append(s);
+		}
+		assertArrayEquals(expected.toString().getBytes(s_utf8), out.toByteArray());
+	}
+
+	@Test
+	public void testSplitPair() throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Utf8Writer w = new Utf8Writer(out);
+		w.write('\ud83d');
+		w.flush();
+		assertEquals(0, out.size());
+		w.write('\ude00');
+		w.finish();
+		assertArrayEquals("\ud83d\ude00".getBytes(s_utf8), out.toByteArray());
+	}
+
+	@Test
+	public void testUnpaired() throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Utf8Writer w = new Utf8Writer(out);
+		w.append("a\ude00b\ud83dc\ud83d");
+		w.finish();
+		assertEquals("a?b?c?", new String(out.toByteArray(), s_utf8));
+	}
+}
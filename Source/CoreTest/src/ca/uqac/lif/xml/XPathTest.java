@@ -19,10 +19,27 @@ package ca.uqac.lif.xml;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
+import ca.uqac.lif.xml.XPathExpression.DoubleCallback;
+import ca.uqac.lif.xml.XPathExpression.ElementCallback;
+import ca.uqac.lif.xml.XPathExpression.IntCallback;
+import ca.uqac.lif.xml.XPathExpression.LongCallback;
+import ca.uqac.lif.xml.XPathExpression.StringCallback;
 import ca.uqac.lif.xml.XPathExpression.XPathParseException;
 import ca.uqac.lif.xml.XmlElement.XmlParseException;
 
@@ -418,4 +435,368 @@ public class XPathTest
 			assertNotNull(xe);
 		}
 	}
+
+	@Test
+	public void testStreaming1() throws XPathParseException, XmlParseException, IOException
+	{
+		String doc = "<root><foo><bar>0</bar><baz>0</baz></foo><foo><bar>1</bar><baz>2</baz></foo></root>";
+		XPathExpression xpath = XPathExpression.parse("root/foo[bar=1]/baz/text()");
+		CollectingCallback cb = new CollectingCallback();
+		xpath.evaluate(new StringReader(doc), cb);
+		assertEquals(1, cb.m_results.size());
+		assertEquals("2", ((TextElement) cb.m_results.get(0)).getText());
+	}
+
+	@Test
+	public void testStreamingPredicateAfter() throws XPathParseException, XmlParseException, IOException
+	{
+		// The predicate is decided by a child that comes after the results
+		String doc = "<root><foo><baz>0</baz><baz>1</baz><bar>1</bar></foo><foo><baz>2</baz><bar>0</bar></foo></root>";
+		XPathExpression xpath = XPathExpression.parse("root/foo[bar=1]/baz");
+		CollectingCallback cb = new CollectingCallback();
+		xpath.evaluate(new StringReader(doc), cb);
+		assertEquals(xpath.evaluate(XmlElement.parse(doc)), cb.m_results);
+		assertEquals(2, cb.m_results.size());
+		assertEquals("<baz>0</baz>", cb.m_results.get(0).toString());
+		assertEquals("<baz>1</baz>", cb.m_results.get(1).toString());
+	}
+
+	@Test
+	public void testStreamingStop() throws XPathParseException, XmlParseException, IOException
+	{
+		String doc = "<root><foo>1</foo><foo>2</foo><foo>3</foo></root>";
+		XPathExpression xpath = XPathExpression.parse("root/foo");
+		CollectingCallback cb = new CollectingCallback();
+		cb.m_limit = 2;
+		xpath.evaluate(new XmlEventReader(doc), cb);
+		assertEquals(2, cb.m_results.size());
+	}
+
+	@Test(expected = XmlParseException.class)
+	public void testStreamingMalformed() throws XPathParseException, XmlParseException, IOException
+	{
+		XPathExpression xpath = XPathExpression.parse("root/foo");
+		xpath.evaluate(new StringReader("<root><foo></root>"), new CollectingCallback());
+	}
+
+	@Test
+	public void testDeep() throws XPathParseException, XmlParseException
+	{
+		// Deep enough to overflow the call stack with recursive methods
+		int depth = 100000;
+		StringBuilder doc = new StringBuilder();
+		StringBuilder path = new StringBuilder();
+		for (int i = 0; i < depth; i++)
+		{
+			doc.append("<a>");
+			path.append("a/");
+		}
+		doc.append("foo");
+		for (int i = 0; i < depth; i++)
+		{
+			doc.append("</a>");
+		}
+		path.append("text()");
+		XmlElement e = XmlElement.parse(doc.toString());
+		assertEquals("foo", XPathExpression.parse(path.toString()).evaluateAnyString(e));
+		assertEquals(doc.toString(), e.toString());
+	}
+
+	/**
+	 * Callback that stores the elements it receives
+	 */
+	protected static class CollectingCallback implements ElementCallback
+	{
+		protected List<XmlElement> m_results = new ArrayList<XmlElement>();
+
+		protected int m_limit = -1;
+
+		@Override
+		public boolean accept(XmlElement e)
+		{
+			m_results.add(e);
+			return m_limit < 0 || m_results.size() < m_limit;
+		}
+	}
+
+	@Test
+	public void testCompile() throws XPathParseException, XmlParseException
+	{
+		XmlElement doc = XmlElement.parse("<a><b><c>1</c><d>x</d></b><b><c>2</c><d>y</d></b><b><c>1</c><d>z</d></b></a>");
+		XPathExpression exp = XPathExpression.parse("a/b[c=1]/d/text()");
+		XPathPlan plan = exp.compile();
+		assertEquals(4, plan.size());
+		assertEquals(exp.toString(), plan.toString());
+		Collection<XmlElement> result = plan.evaluate(doc);
+		assertEquals(exp.evaluate(doc), result);
+		assertEquals(2, result.size());
+		// The plan is not affected by changes to the expression
+		((BinaryPredicate) exp.getSegments().get(1).getPredicates().iterator().next()).setRight("2");
+		assertEquals(1, exp.evaluate(doc).size());
+		assertEquals(result, plan.evaluate(doc));
+		// Results are appended to an existing collection
+		List<XmlElement> out = new ArrayList<XmlElement>();
+		plan.evaluate(doc, out);
+		plan.evaluate(doc, out);
+		assertEquals(4, out.size());
+		assertEquals("x", out.get(0).toString());
+	}
+
+	@Test
+	public void testIterator() throws XPathParseException, XmlParseException
+	{
+		XmlElement doc = XmlElement.parse("<a><b><c>1</c><d>x</d></b><b><c>2</c><d>y</d></b><b><c>1</c><d>z</d></b></a>");
+		XPathExpression exp = XPathExpression.parse("a/b[c=1]/d/text()");
+		Iterator<XmlElement> it = exp.iterator(doc);
+		assertTrue(it.hasNext());
+		assertTrue(it.hasNext());
+		assertEquals("x", it.next().toString());
+		assertEquals("z", it.next().toString());
+		assertFalse(it.hasNext());
+		try
+		{
+			it.next();
+			fail("Expected an exception");
+		}
+		catch (NoSuchElementException e)
+		{
+			// Expected
+		}
+		// Each iteration starts a new evaluation
+		Iterable<XmlElement> results = exp.compile().iterate(doc);
+		for (int i = 0; i < 2; i++)
+		{
+			List<XmlElement> list = new ArrayList<XmlElement>();
+			for (XmlElement e : results)
+			{
+				list.add(e);
+			}
+			assertEquals(exp.evaluate(doc), list);
+		}
+		// The root itself can be the only result
+		it = XPathExpression.parse("a").iterator(doc);
+		assertSame(doc, it.next());
+		assertFalse(it.hasNext());
+		assertFalse(XPathExpression.parse("b").iterator(doc).hasNext());
+	}
+
+	@Test
+	public void testEvaluateAnyStops() throws XPathParseException, XmlParseException
+	{
+		XmlElement doc = XmlElement.parse("<a><b><c>foo</c></b><b><c>3</c></b><b><c>4</c></b></a>");
+		XPathExpression exp = XPathExpression.parse("a/b/c/text()");
+		assertEquals("foo", exp.evaluateAnyString(doc));
+		assertEquals(3, exp.evaluateAnyInt(doc));
+		assertEquals("foo", exp.evaluateAny(doc).toString());
+		assertNull(XPathExpression.parse("a/e").evaluateAny(doc));
+		assertEquals("", XPathExpression.parse("a/b").evaluateAnyString(doc));
+		assertNull(exp.compile().evaluateAny(new XmlElement("b")));
+	}
+
+	@Test
+	public void testCallbacks() throws XPathParseException, XmlParseException
+	{
+		XmlElement doc = XmlElement.parse("<a><b>3</b><b>foo</b><b>2.5</b><b>7</b></a>");
+		XPathExpression exp = XPathExpression.parse("a/b/text()");
+		final List<XmlElement> elements = new ArrayList<XmlElement>();
+		assertTrue(exp.evaluate(doc, new ElementCallback()
+		{
+			@Override
+			public boolean accept(XmlElement e)
+			{
+				elements.add(e);
+				return true;
+			}
+		}));
+		assertEquals(exp.evaluate(doc), elements);
+		final List<String> strings = new ArrayList<String>();
+		assertFalse(exp.evaluateAsStrings(doc, new StringCallback()
+		{
+			@Override
+			public boolean accept(String s)
+			{
+				strings.add(s);
+				return strings.size() < 2;
+			}
+		}));
+		assertEquals(2, strings.size());
+		assertEquals("foo", strings.get(1));
+		final List<Integer> ints = new ArrayList<Integer>();
+		assertTrue(exp.evaluateAsInts(doc, new IntCallback()
+		{
+			@Override
+			public boolean accept(int n)
+			{
+				ints.add(n);
+				return true;
+			}
+		}));
+		assertEquals(3, ints.size());
+		assertEquals(2, ints.get(1).intValue());
+		final long[] sum = new long[1];
+		assertFalse(exp.compile().evaluateAsLongs(doc, new LongCallback()
+		{
+			@Override
+			public boolean accept(long n)
+			{
+				sum[0] += n;
+				return false;
+			}
+		}));
+		assertEquals(3, sum[0]);
+		final double[] total = new double[1];
+		assertTrue(exp.evaluateAsDoubles(doc, new DoubleCallback()
+		{
+			@Override
+			public boolean accept(double n)
+			{
+				total[0] += n;
+				return true;
+			}
+		}));
+		assertEquals(12.5, total[0], 0);
+	}
+
+	@Test
+	public void testPrimitiveNumbers() throws XPathParseException, XmlParseException
+	{
+		XmlElement doc = XmlElement.parse("<a><b>foo</b><b>3</b><b>2.5</b><b>1,000</b></a>");
+		XPathExpression exp = XPathExpression.parse("a/b/text()");
+		assertArrayEquals(new double[] {3, 2.5, 1000}, exp.evaluateAsDoubles(doc), 0);
+		assertArrayEquals(new long[] {3, 2, 1000}, exp.compile().evaluateAsLongs(doc));
+		assertEquals(3, exp.evaluateAnyLong(doc, -1));
+		assertEquals(3, exp.evaluateAnyDouble(doc, -1), 0);
+		assertEquals(-1, XPathExpression.parse("a/c/text()").evaluateAnyLong(doc, -1));
+		assertEquals(0, XPathExpression.parse("a/c/text()").evaluateAsDoubles(doc).length);
+		StringBuilder many = new StringBuilder("<a>");
+		for (int i = 0; i < 100; i++)
+		{
+			many.append("<b>").append(i).append("</b>");
+		}
+		long[] values = exp.evaluateAsLongs(XmlElement.parse(many.append("</a>").toString()));
+		assertEquals(100, values.length);
+		assertEquals(99, values[99]);
+	}
+
+	@Test
+	public void testModifiedSegments() throws XPathParseException, XmlParseException
+	{
+		XmlElement doc = XmlElement.parse("<a><b><c>1</c></b><b><c>2</c></b></a>");
+		List<Segment> segments = new ArrayList<Segment>();
+		segments.add(Segment.parse("a"));
+		segments.add(Segment.parse("b"));
+		XPathExpression exp = new XPathExpression(segments);
+		assertEquals(2, exp.evaluate(doc).size());
+		// Changes to the list and to the predicates are taken into account
+		segments.add(Segment.parse("c"));
+		assertEquals("a/b/c", exp.toString());
+		assertEquals("[<c>1</c>, <c>2</c>]", exp.evaluate(doc).toString());
+		exp.getSegments().add(new TextSegment());
+		assertEquals("[1, 2]", exp.evaluate(doc).toString());
+		Collection<Predicate> predicates = exp.getSegments().get(1).getPredicates();
+		predicates.add(Predicate.parse("c=2"));
+		assertEquals("[2]", exp.evaluate(doc).toString());
+		predicates.clear();
+		assertEquals("[1, 2]", exp.evaluate(doc).toString());
+		exp.getSegments().set(1, Segment.parse("b[c=1]"));
+		assertEquals("[1]", exp.evaluate(doc).toString());
+	}
+
+	@Test
+	public void testModifiedPredicate() throws XPathParseException, XmlParseException
+	{
+		XmlElement doc = XmlElement.parse("<a><b><c>1</c></b><b><c>2</c></b></a>");
+		XPathExpression exp = XPathExpression.parse("a/b[c=1]/c/text()");
+		assertEquals("[1]", exp.evaluate(doc).toString());
+		BinaryPredicate p = (BinaryPredicate) exp.getSegments().get(1).getPredicates().iterator().next();
+		p.setRight("2");
+		assertEquals("a/b[c=2]/c/text()", exp.toString());
+		assertEquals("[2]", exp.evaluate(doc).toString());
+		p.setLeft("d");
+		assertEquals(0, exp.evaluate(doc).size());
+	}
+
+	@Test
+	public void testPlanKept() throws XPathParseException, XmlParseException
+	{
+		XmlElement doc = XmlElement.parse("<a><b><c>1</c></b><b><c>2</c></b></a>");
+		XPathExpression exp = XPathExpression.parse("a/b[c=1]/c/text()");
+		XPathExpression other = XPathExpression.parse("a/b[c=2]/c/text()");
+		assertEquals("[1]", exp.evaluate(doc).toString());
+		assertEquals("[2]", other.evaluate(doc).toString());
+		XPathPlan plan = exp.getPlan();
+		XPathPlan other_plan = other.getPlan();
+		assertSame(plan, exp.getPlan());
+		// Modifying a predicate only affects the expression that has it
+		((BinaryPredicate) other.getSegments().get(1).getPredicates().iterator().next()).setRight("1");
+		assertSame(plan, exp.getPlan());
+		assertNotSame(other_plan, other.getPlan());
+		assertEquals("[1]", other.evaluate(doc).toString());
+	}
+
+	@Test
+	public void testConcurrentEvaluation() throws Exception
+	{
+		StringBuilder xml = new StringBuilder("<catalog>");
+		for (int i = 0; i < 2000; i++)
+		{
+			xml.append("<record><id>").append(i).append("</id><tag>t").append(i % 7).append("</tag><price>").append(i).append(".5</price></record>");
+		}
+		final XmlElement doc = XmlElement.parse(xml.append("</catalog>").toString());
+		String query = "catalog/record[tag=t3]/price/text()";
+		final List<XmlElement> expected = new ArrayList<XmlElement>(XPathExpression.parse(query).evaluate(doc));
+		final Collection<Number> expected_numbers = XPathExpression.parse(query).evaluateAsNumbers(doc);
+		final double[] expected_doubles = XPathExpression.parse(query).evaluateAsDoubles(doc);
+		assertEquals(286, expected.size());
+		// A new expression, so that its plan is also built concurrently
+		final XPathExpression exp = XPathExpression.parse(query);
+		int num_threads = 64;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(num_threads);
+		try
+		{
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < num_threads; t++)
+			{
+				futures.add(executor.submit(new Callable<Integer>()
+				{
+					@Override
+					public Integer call() throws InterruptedException
+					{
+						start.await();
+						int errors = 0;
+						for (int i = 0; i < 10; i++)
+						{
+							if (!expected.equals(exp.evaluate(doc)))
+							{
+								errors++;
+							}
+							if (!expected_numbers.equals(exp.evaluateAsNumbers(doc)))
+							{
+								errors++;
+							}
+							if (!Arrays.equals(expected_doubles, exp.evaluateAsDoubles(doc)))
+							{
+								errors++;
+							}
+							if (exp.evaluateAnyLong(doc, -1) != 3 || exp.evaluateAny(doc) != expected.get(0))
+							{
+								errors++;
+							}
+						}
+						return errors;
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<Integer> f : futures)
+			{
+				assertEquals(0, f.get().intValue());
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
 }
@@ -0,0 +1,157 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.Pipe;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+
+public class XmlBufferSerializerTest
+{
+	protected static final Charset s_utf8 = Charset.forName("UTF-8");
+
+	@Test
+	public void testSmall() throws XmlParseException
+	{
+		XmlElement e = XmlElement.parse("<a><b>h\u00e9llo</b><c></c></a>");
+		XmlBufferSerializer serializer = new XmlBufferSerializer();
+		ByteBuffer[] buffers = serializer.serialize(e);
+		assertEquals(1, buffers.length);
+		assertEquals(e.toString(), toString(buffers));
+		serializer.getPool().release(buffers);
+		assertEquals(1, serializer.getPool().getFreeCount());
+	}
+
+	@Test
+	public void testFragmented() throws XmlParseException
+	{
+		StringBuilder s = new StringBuilder("<r>");
+		for (int i = 0; i < 200; i++)
+		{
+			s.append("<item><name>\u4e2d\ud83d\ude00 ").append(i).append("</name></item>");
+		}
+		s.append("</r>");
+		XmlElement e = XmlElement.parse(s.toString());
+		XmlBufferSerializer serializer = new XmlBufferSerializer(new BufferPool(64, 4, false));
+		for (int i = 0; i < 2; i++)
+		{
+			ByteBuffer[] buffers = serializer.serialize(e);
+			assertTrue(buffers.length > 1);
+			assertEquals(s.toString(), toString(buffers));
+			serializer.getPool().release(buffers);
+			assertEquals(4, serializer.getPool().getFreeCount());
+		}
+		assertEquals("text", toString(serializer.serialize(new TextElement("text"))));
+	}
+
+	@Test
+	public void testChannel() throws XmlParseException, IOException
+	{
+		XmlElement e = XmlElement.parse(XmlParserTest.generateRecords(2000));
+		XmlBufferSerializer serializer = new XmlBufferSerializer();
+		File f = File.createTempFile("xml-lif", ".xml");
+		try
+		{
+			FileOutputStream fos = new FileOutputStream(f);
+			FileChannel channel = fos.getChannel();
+			long written;
+			try
+			{
+				written = serializer.write(e, channel);
+			}
+			finally
+			{
+				fos.close();
+			}
+			assertEquals(f.length(), written);
+			assertTrue(serializer.getPool().getFreeCount() > 1);
+			FileInputStream fis = new FileInputStream(f);
+			try
+			{
+				assertEquals(e, XmlElement.parse(fis, s_utf8));
+			}
+			finally
+			{
+				fis.close();
+			}
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testNonBlockingChannel() throws XmlParseException, IOException
+	{
+		XmlElement e = XmlElement.parse(XmlParserTest.generateRecords(2000));
+		XmlBufferSerializer serializer = new XmlBufferSerializer();
+		Pipe pipe = Pipe.open();
+		try
+		{
+			pipe.sink().configureBlocking(false);
+			serializer.write(e, pipe.sink());
+			fail("A non-blocking channel should be rejected");
+		}
+		catch (IllegalBlockingModeException ex)
+		{
+			// Expected, and nothing was taken from the pool
+			assertEquals(0, serializer.getPool().getFreeCount());
+		}
+		finally
+		{
+			pipe.sink().close();
+			pipe.source().close();
+		}
+	}
+
+	/**
+	 * Decodes the contents of buffers
+	 * @param buffers The buffers
+	 * @return The decoded string
+	 */
+	protected static String toString(ByteBuffer[] buffers)
+	{
+		int size = 0;
+		for (ByteBuffer b : buffers)
+		{
+			size += b.remaining();
+		}
+		byte[] bytes = new byte[size];
+		int position = 0;
+		for (ByteBuffer b : buffers)
+		{
+			int n = b.remaining();
+			b.duplicate().get(bytes, position, n);
+			position += n;
+		}
+		return new String(bytes, s_utf8);
+	}
+}
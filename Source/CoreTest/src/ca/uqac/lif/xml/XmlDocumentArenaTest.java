@@ -0,0 +1,142 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+
+import ca.uqac.lif.xml.XPathExpression.XPathParseException;
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+
+public class XmlDocumentArenaTest
+{
+	@Test
+	public void testStructure() throws XmlParseException
+	{
+		XmlDocumentArena doc = XmlDocumentArena.parse("<a> <b>foo </b>bar <c></c></a>");
+		assertEquals(5, doc.size());
+		assertEquals("a", doc.getName(0));
+		assertEquals(-1, doc.getParent(0));
+		int b = doc.getFirstChild(0);
+		assertEquals("b", doc.getName(b));
+		assertEquals("foo", doc.getText(doc.getFirstChild(b)));
+		int bar = doc.getNextSibling(b);
+		assertTrue(doc.isText(bar));
+		assertEquals("bar ", doc.getText(bar));
+		int c = doc.getNextSibling(bar);
+		assertEquals("c", doc.getName(c));
+		assertEquals(-1, doc.getFirstChild(c));
+		assertEquals(-1, doc.getNextSibling(c));
+		assertEquals(0, doc.getParent(c));
+		assertEquals(3, doc.getNameTable().length);
+	}
+
+	@Test
+	public void testSameAsParser() throws XmlParseException
+	{
+		String s = "<a><b>h\u00e9llo</b> <c>1</c><b><b>x</b></b></a>";
+		XmlElement e = XmlElement.parse(s);
+		XmlDocumentArena doc = XmlDocumentArena.parse(s);
+		assertEquals(e.toString(), doc.toString());
+		assertEquals(e, doc.getRoot());
+		assertEquals(e.toString(), doc.toXmlElement().toString());
+		assertEquals(doc.toString(), XmlDocumentArena.parse(s.getBytes(java.nio.charset.Charset.forName("UTF-8"))).toString());
+	}
+
+	@Test
+	public void testWriteTo() throws XmlParseException, IOException
+	{
+		String s = "<a><b>h\u00e9llo</b><c></c>x<b><b>y</b></b></a>";
+		XmlDocumentArena doc = XmlDocumentArena.parse(s);
+		StringWriter w = new StringWriter();
+		doc.writeTo(w);
+		assertEquals(s, w.toString());
+		List<XmlElement> children = doc.getRoot().getChildren();
+		assertEquals("<b>h\u00e9llo</b>", children.get(0).toString());
+		assertEquals("<c></c>", children.get(1).toString());
+		assertEquals("x", children.get(2).toString());
+		assertEquals("<b><b>y</b></b>", children.get(3).toString());
+	}
+
+	@Test
+	public void testXPath() throws XmlParseException, XPathParseException
+	{
+		String s = "<catalog><record><id>1</id><price>10</price></record><record><id>2</id><price>20</price></record></catalog>";
+		XmlDocumentArena doc = XmlDocumentArena.parse(s);
+		XPathExpression exp = XPathExpression.parse("catalog/record[id=2]/price/text()");
+		Collection<XmlElement> result = exp.evaluate(doc.getRoot());
+		assertEquals(1, result.size());
+		assertEquals("20", result.iterator().next().toString());
+		assertEquals(20, exp.evaluateAnyNumber(doc.getRoot()).intValue());
+	}
+
+	@Test
+	public void testPlainText() throws XmlParseException
+	{
+		XmlDocumentArena doc = XmlDocumentArena.parse(" hello ");
+		assertEquals(1, doc.size());
+		assertTrue(doc.getRoot() instanceof TextElement);
+		assertEquals("hello", doc.toString());
+		assertEquals("", XmlDocumentArena.parse("").toString());
+	}
+
+	@Test(expected = XmlParseException.class)
+	public void testMalformed() throws XmlParseException
+	{
+		XmlDocumentArena.parse("<a><b></a>");
+	}
+
+	@Test(expected = XmlParseException.class)
+	public void testContentAfterRoot() throws XmlParseException
+	{
+		XmlDocumentArena.parse("<a></a><b></b>");
+	}
+
+	@Test
+	public void testViewsKept() throws XmlParseException
+	{
+		XmlDocumentArena doc = XmlDocumentArena.parse("<a><b>foo</b><c></c></a>");
+		XmlElement root = doc.getRoot();
+		assertSame(root, doc.getRoot());
+		List<XmlElement> children = root.getChildren();
+		assertSame(children, root.getChildren());
+		XmlElement b = children.get(0);
+		TextElement text = b.getTextElement();
+		assertSame(text, b.getChildren().get(0));
+		assertEquals("foo", text.getText());
+		assertSame(text.getText(), text.getText());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testViewsImmutable() throws XmlParseException
+	{
+		XmlDocumentArena.parse("<a><b></b></a>").getRoot().getChildren().clear();
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testImmutable() throws XmlParseException
+	{
+		XmlDocumentArena.parse("<a></a>").getRoot().addChild(new XmlElement("b"));
+	}
+}
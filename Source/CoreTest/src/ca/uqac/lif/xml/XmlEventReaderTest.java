@@ -0,0 +1,88 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+import ca.uqac.lif.xml.XmlTokenizer.Token;
+
+public class XmlEventReaderTest
+{
+	@Test
+	public void testEvents() throws XmlParseException, IOException
+	{
+		XmlEventReader reader = new XmlEventReader("<a> <b>foo </b>bar</a>");
+		assertEquals(Token.START, reader.next());
+		assertEquals("a", reader.getName().toString());
+		assertEquals(1, reader.getDepth());
+		assertEquals(Token.START, reader.next());
+		assertTrue(reader.nameEquals("b"));
+		assertEquals(2, reader.getDepth());
+		assertEquals(Token.TEXT, reader.next());
+		assertEquals("foo", reader.getText().toString());
+		assertEquals(Token.END, reader.next());
+		assertTrue(reader.nameEquals("b"));
+		assertEquals(1, reader.getDepth());
+		assertEquals(Token.TEXT, reader.next());
+		assertEquals(3, reader.getText().length());
+		assertEquals('r', reader.getText().charAt(2));
+		assertEquals(Token.END, reader.next());
+		assertEquals(0, reader.getDepth());
+		assertEquals(Token.EOF, reader.next());
+		assertEquals(Token.EOF, reader.getEvent());
+	}
+
+	@Test
+	public void testSkipElement() throws XmlParseException, IOException
+	{
+		XmlEventReader reader = new XmlEventReader(new StringReader("<a><b><c>1</c><b>2</b></b><d>3</d></a>"));
+		reader.next();
+		assertEquals(Token.START, reader.next());
+		reader.skipElement();
+		assertEquals(Token.END, reader.getEvent());
+		assertTrue(reader.nameEquals("b"));
+		assertEquals(Token.START, reader.next());
+		assertTrue(reader.nameEquals("d"));
+	}
+
+	@Test(expected = XmlParseException.class)
+	public void testMismatch() throws XmlParseException, IOException
+	{
+		XmlEventReader reader = new XmlEventReader("<a><b></a>");
+		while (reader.next() != Token.EOF)
+		{
+			// Do nothing
+		}
+	}
+
+	@Test(expected = XmlParseException.class)
+	public void testUnclosed() throws XmlParseException, IOException
+	{
+		XmlEventReader reader = new XmlEventReader("<a><b></b>");
+		while (reader.next() != Token.EOF)
+		{
+			// Do nothing
+		}
+	}
+}
@@ -19,6 +19,11 @@ package ca.uqac.lif.xml;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+
 import org.junit.Test;
 
 import ca.uqac.lif.xml.XmlElement.XmlParseException;
@@ -213,7 +218,7 @@ public class XmlParseTest
 	{
 		try
 		{
-			XmlElement.parse(null);
+			XmlElement.parse((String) null);
 		}
 		catch (XmlParseException ex)
 		{
@@ -317,4 +322,63 @@ public class XmlParseTest
 		assertEquals(to_parse, e.toString());
 	}
 
+
+	@Test
+	public void testWriteTo() throws XmlParseException, IOException
+	{
+		String s = "<a><b>caf\u00e9</b>x<c></c></a>";
+		XmlElement e = XmlElement.parse(s);
+		StringBuilder out = new StringBuilder("> ");
+		e.writeTo(out);
+		assertEquals("> " + s, out.toString());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		e.writeTo(bytes);
+		assertArrayEquals(s.getBytes(Charset.forName("UTF-8")), bytes.toByteArray());
+		StringWriter w = new StringWriter();
+		new XmlParser().setLazyText(true).parse(s).writeTo(w);
+		assertEquals(s, w.toString());
+	}
+
+	@Test
+	public void testCached() throws XmlParseException
+	{
+		XmlElement root = XmlElement.parse("<a><b><c>x</c></b><d></d></a>");
+		XmlElement b = root.getChildren().get(0);
+		XmlElement c = b.getChildren().get(0);
+		assertSame(root, b.getParent());
+		assertFalse(root.isCached());
+		root.setCached(true);
+		b.setCached(true);
+		assertTrue(root.isCached());
+		assertEquals("<a><b><c>x</c></b><d></d></a>", root.toString());
+		assertEquals("<b><c>x</c></b>", b.toString());
+		// Only the elements asked to cache keep a state
+		assertFalse(c.isCached());
+		assertFalse(root.getChildren().get(1).isCached());
+		assertSame(b, c.getParent());
+		assertSame(root, b.getParent());
+		// Adding a child deep in the tree invalidates the ancestors
+		c.addChild(new XmlElement("e"));
+		assertEquals("<b><c>x<e></e></c></b>", b.toString());
+		assertEquals("<a><b><c>x<e></e></c></b><d></d></a>", root.toString());
+		root.getChildren().get(1).addChild(new TextElement("y"));
+		assertEquals("<a><b><c>x<e></e></c></b><d>y</d></a>", root.toString());
+		root.setCached(false);
+		assertFalse(root.isCached());
+		b.setCached(false);
+		assertFalse(b.isCached());
+		assertSame(root, b.getParent());
+		assertEquals("<a><b><c>x<e></e></c></b><d>y</d></a>", root.toString());
+	}
+
+	@Test
+	public void testCachedLazy() throws XmlParseException
+	{
+		XmlElement root = new XmlParser().setLazyElements(true).parse("<a><b><c>x</c></b></a>");
+		root.setCached(true);
+		assertEquals("<a><b><c>x</c></b></a>", root.toString());
+		XmlElement c = root.getChildren().get(0).getChildren().get(0);
+		c.addChild(new XmlElement("d"));
+		assertEquals("<a><b><c>x<d></d></c></b></a>", root.toString());
+	}
 }
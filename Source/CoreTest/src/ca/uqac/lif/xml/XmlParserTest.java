@@ -0,0 +1,663 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import ca.uqac.lif.xml.XPathExpression.XPathParseException;
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+
+public class XmlParserTest
+{
+	@Test
+	public void testRecursiveSchema() throws XmlParseException
+	{
+		XmlElement e = new XmlParser().parse("<a><a>1</a><b><a>2</a></b></a>");
+		assertEquals("a", e.getName());
+		assertEquals(2, e.getChildren().size());
+		XmlElement inner = e.getChildren().get(0);
+		assertEquals("a", inner.getName());
+		assertEquals("1", inner.getTextElement().getText());
+		XmlElement b = e.getChildren().get(1);
+		assertEquals("a", b.getChildren().get(0).getName());
+	}
+
+	@Test
+	public void testTextWhitespace() throws XmlParseException
+	{
+		XmlElement e = new XmlParser().parse(" <a> 1 <b> </b> 2 </a> ");
+		assertEquals(3, e.getChildren().size());
+		assertEquals("1 ", ((TextElement) e.getChildren().get(0)).getText());
+		assertEquals(0, e.getChildren().get(1).getChildren().size());
+		assertEquals("2", ((TextElement) e.getChildren().get(2)).getText());
+	}
+
+	@Test
+	public void testDeep() throws XmlParseException
+	{
+		int depth = 10000;
+		StringBuilder in = new StringBuilder();
+		for (int i = 0; i < depth; i++)
+		{
+			in.append("<a>");
+		}
+		for (int i = 0; i < depth; i++)
+		{
+			in.append("</a>");
+		}
+		XmlElement e = new XmlParser().parse(in.toString());
+		int count = 1;
+		while (!e.getChildren().isEmpty())
+		{
+			e = e.getChildren().get(0);
+			count++;
+		}
+		assertEquals(depth, count);
+	}
+
+	@Test
+	public void testParseInto() throws XmlParseException
+	{
+		XmlElement root = new XmlElement("r");
+		new XmlParser().parseInto(root, "<a>1</a> x <b></b>");
+		assertEquals(3, root.getChildren().size());
+		assertEquals("x ", ((TextElement) root.getChildren().get(1)).getText());
+	}
+
+	@Test(expected = XmlParseException.class)
+	public void testParseIntoUnexpectedClosing() throws XmlParseException
+	{
+		new XmlParser().parseInto(new XmlElement("r"), "<a></a></r>");
+	}
+
+	@Test(expected = XmlParseException.class)
+	public void testContentAfterRoot() throws XmlParseException
+	{
+		new XmlParser().parse("<a></a>foo");
+	}
+
+	@Test
+	public void testReader() throws XmlParseException, IOException
+	{
+		String s = "<a><b>h\u00e9llo</b> <c>1</c></a>";
+		XmlElement e = XmlElement.parse(new StringReader(s));
+		assertEquals(s.replace(" ", ""), e.toString());
+	}
+
+	@Test
+	public void testInputStream() throws XmlParseException, IOException
+	{
+		String s = "<a><b>h\u00e9llo</b><c>1</c></a>";
+		Charset utf8 = Charset.forName("UTF-8");
+		XmlElement e = XmlElement.parse(new ByteArrayInputStream(s.getBytes(utf8)), utf8);
+		assertEquals(s, e.toString());
+	}
+
+	@Test
+	public void testReaderSmallBuffer() throws XmlParseException, IOException
+	{
+		// Tokens larger than the buffer force it to grow
+		StringBuilder s = new StringBuilder("<root>");
+		for (int i = 0; i < 100; i++)
+		{
+			s.append("<element").append(i).append(">some text ").append(i).append("</element").append(i).append(">");
+		}
+		s.append("</root>");
+		XmlElement e = new XmlParser().parse(new XmlTokenizer(new OneCharReader(s.toString()), 4));
+		assertEquals(100, e.getChildren().size());
+		assertEquals(s.toString(), e.toString());
+	}
+
+	@Test(expected = XmlParseException.class)
+	public void testReaderMalformed() throws XmlParseException, IOException
+	{
+		XmlElement.parse(new StringReader("<a><b></a>"));
+	}
+
+	@Test
+	public void testFile() throws XmlParseException, IOException
+	{
+		String s = "<a><b>h\u00e9llo</b><c>1</c></a>";
+		File f = writeTempFile(s);
+		try
+		{
+			assertEquals(s, XmlElement.parse(f).toString());
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testMappedWindows() throws XmlParseException, IOException
+	{
+		// Windows of 16 bytes split multi-byte characters
+		StringBuilder s = new StringBuilder("<root>");
+		for (int i = 0; i < 50; i++)
+		{
+			s.append("<e>\u00e9\u00e8\u20ac").append(i).append("</e>");
+		}
+		s.append("</root>");
+		File f = writeTempFile(s.toString());
+		FileInputStream fis = new FileInputStream(f);
+		try
+		{
+			XmlTokenizer tokenizer = new MappedTokenizer(fis.getChannel(), Charset.forName("UTF-8"), 16);
+			XmlElement e = new XmlParser().parse(tokenizer);
+			assertEquals(s.toString(), e.toString());
+		}
+		finally
+		{
+			fis.close();
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testMappedSurrogates() throws XmlParseException, IOException
+	{
+		// The buffer of the tokenizer eventually has a single free slot left
+		// before a surrogate pair
+		StringBuilder s = new StringBuilder("<a>x");
+		for (int i = 0; i < 10000; i++)
+		{
+			s.append("\ud83d\ude00");
+		}
+		s.append("</a>");
+		File f = writeTempFile(s.toString());
+		FileInputStream fis = new FileInputStream(f);
+		try
+		{
+			assertEquals(s.toString(), XmlElement.parse(f).toString());
+			XmlTokenizer tokenizer = new MappedTokenizer(fis.getChannel(), Charset.forName("UTF-8"), 32768);
+			assertEquals(s.toString(), new XmlParser().parse(tokenizer).toString());
+		}
+		finally
+		{
+			fis.close();
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testMappedEmptyFile() throws XmlParseException, IOException
+	{
+		File f = writeTempFile("");
+		try
+		{
+			XmlElement e = XmlElement.parse(f);
+			assertTrue(e instanceof TextElement);
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testLazyText() throws XmlParseException
+	{
+		String s = "<a><b> foo </b>bar <c></c></a>";
+		XmlElement e = new XmlParser().setLazyText(true).parse(s);
+		XmlElement foo = e.getChildren().get(0).getChildren().get(0);
+		assertTrue(foo instanceof LazyTextElement);
+		LazyTextElement lazy = (LazyTextElement) foo;
+		assertEquals(3, lazy.length());
+		assertTrue(lazy.isAttached());
+		assertEquals("foo", lazy.getText());
+		assertEquals("bar ", ((TextElement) e.getChildren().get(1)).getText());
+		assertEquals(XmlElement.parse(s), e);
+		assertEquals(new TextElement("foo"), lazy);
+		assertFalse(lazy.detach().isAttached());
+		assertEquals("foo", lazy.getText());
+	}
+
+	@Test
+	public void testLazyTextReader() throws XmlParseException, IOException
+	{
+		// Text read from a stream cannot refer to the source
+		XmlElement e = new XmlParser().setLazyText(true).parse(new StringReader("<a>foo</a>"));
+		assertFalse(e.getChildren().get(0) instanceof LazyTextElement);
+	}
+
+	@Test
+	public void testLazyElements() throws XmlParseException, XPathParseException
+	{
+		String s = "<orders><order><id>6</id><total>1</total></order> <order><id>7</id><total>2</total></order></orders>";
+		XmlElement e = new XmlParser().setLazyElements(true).parse(s);
+		assertTrue(e instanceof LazyXmlElement);
+		assertFalse(((LazyXmlElement) e).isParsed());
+		XPathExpression xpath = XPathExpression.parse("orders/order[id=7]/total/text()");
+		assertEquals("2", xpath.evaluateAnyString(e));
+		assertTrue(((LazyXmlElement) e).isParsed());
+		LazyXmlElement first = (LazyXmlElement) e.getChildren().get(0);
+		assertTrue(first.isParsed());
+		assertFalse(((LazyXmlElement) first.getChildren().get(1)).isParsed());
+		assertEquals(XmlElement.parse(s), e);
+		assertEquals(s.replace(" ", ""), e.toString());
+	}
+
+	@Test
+	public void testLazyElementsTokenizer() throws XmlParseException
+	{
+		// Every element is parsed with the same tokenizer and buffer
+		StringBuilder s = new StringBuilder("<orders>");
+		for (int i = 0; i < 2000; i++)
+		{
+			s.append("<order><id>").append(i).append("</id><total>").append(i * 2).append("</total></order>");
+		}
+		s.append("</orders>");
+		XmlTokenizer tokenizer = LazyXmlElement.getTokenizer();
+		char[] buffer = tokenizer.getBuffer();
+		XmlElement e = new XmlParser().setLazyElements(true).parse(s.toString());
+		assertEquals(XmlElement.parse(s.toString()), e);
+		assertSame(tokenizer, LazyXmlElement.getTokenizer());
+		assertSame(buffer, tokenizer.getBuffer());
+		// The tokenizer does not keep the document
+		assertNull(tokenizer.getSource());
+	}
+
+	@Test
+	public void testLazyElementsAddChild() throws XmlParseException
+	{
+		XmlElement e = new XmlParser().setLazyElements(true).parse("<a><b></b></a>");
+		e.addChild(new XmlElement("c"));
+		assertEquals("<a><b></b><c></c></a>", e.toString());
+	}
+
+	@Test(expected = XmlParseException.class)
+	public void testLazyElementsMalformed() throws XmlParseException
+	{
+		// Errors deep in the document are found right away
+		new XmlParser().setLazyElements(true).parse("<a><b><c></b></c></a>");
+	}
+
+	@Test
+	public void testBytes() throws XmlParseException
+	{
+		Charset utf8 = Charset.forName("UTF-8");
+		String s = "<a> <\u00e9t\u00e9>h\u00e9llo \ud83d\ude00 </\u00e9t\u00e9><b>1</b>2 <c></c></a>";
+		XmlElement e = XmlElement.parse(s.getBytes(utf8));
+		assertEquals(XmlElement.parse(s), e);
+		assertEquals(XmlElement.parse(s).toString(), e.toString());
+		assertEquals("h\u00e9llo \ud83d\ude00", e.getChildren().get(0).getChildren().get(0).toString());
+	}
+
+	@Test
+	public void testByteBuffer() throws XmlParseException
+	{
+		Charset utf8 = Charset.forName("UTF-8");
+		ByteBuffer direct = ByteBuffer.allocateDirect(64);
+		direct.put("xx<a><b>h\u00e9llo</b></a>".getBytes(utf8));
+		direct.flip();
+		direct.position(2);
+		assertEquals("<a><b>h\u00e9llo</b></a>", new XmlParser().parse(direct).toString());
+		assertEquals(2, direct.position());
+	}
+
+	@Test
+	public void testBytesPlainText() throws XmlParseException
+	{
+		Charset utf8 = Charset.forName("UTF-8");
+		assertEquals("h\u00e9llo <a>", XmlElement.parse("  h\u00e9llo <a>  ".getBytes(utf8)).toString());
+		assertEquals("", XmlElement.parse(new byte[0]).toString());
+	}
+
+	@Test
+	public void testBytesMalformedUtf8() throws XmlParseException
+	{
+		// Invalid sequences are replaced, as when decoding to a string
+		byte[] bytes = new byte[] {'<', 'a', '>', (byte) 0xC3, 'x', (byte) 0xFF, '<', '/', 'a', '>'};
+		assertEquals("<a>\ufffdx\ufffd</a>", XmlElement.parse(bytes).toString());
+	}
+
+	@Test(expected = XmlParseException.class)
+	public void testBytesMismatch() throws XmlParseException
+	{
+		Charset utf8 = Charset.forName("UTF-8");
+		XmlElement.parse("<\u00e9><b></\u00e8></a>".getBytes(utf8));
+	}
+
+	@Test
+	public void testBytesTokenizerReadsCharacters() throws XmlParseException, IOException
+	{
+		// A byte tokenizer can be given characters like any other tokenizer
+		Charset utf8 = Charset.forName("UTF-8");
+		String s = "<a> <\u00e9t\u00e9>h\u00e9llo \ud83d\ude00 </\u00e9t\u00e9><b>1</b>2 <c></c></a>";
+		String expected = XmlElement.parse(s).toString();
+		XmlParser parser = new XmlParser();
+		XmlTokenizer tokenizer = new Utf8Tokenizer(s.getBytes(utf8));
+		assertEquals(expected, parser.parse(tokenizer).toString());
+		assertEquals(expected, parser.parse(tokenizer.reset(s)).toString());
+		assertEquals(expected, parser.parse(tokenizer.reset(new StringReader(s))).toString());
+		assertEquals("<b>1</b>", parser.parse(tokenizer.reset(s, s.indexOf("<b>"), s.indexOf("2 "))).toString());
+		assertEquals(expected, parser.parse(((Utf8Tokenizer) tokenizer).reset(s.getBytes(utf8))).toString());
+		try
+		{
+			parser.parse(tokenizer.reset("<a><b></a>"));
+			fail("Expected an exception");
+		}
+		catch (XmlParseException e)
+		{
+			// Expected
+		}
+	}
+
+	@Test
+	public void testMappedTokenizerReadsCharacters() throws XmlParseException, IOException
+	{
+		File f = writeTempFile("<a>\u00e9</a>");
+		FileInputStream fis = new FileInputStream(f);
+		try
+		{
+			XmlTokenizer tokenizer = new MappedTokenizer(fis.getChannel());
+			XmlParser parser = new XmlParser();
+			assertEquals("<a>\u00e9</a>", parser.parse(tokenizer).toString());
+			assertEquals("<b>\u00e8</b>", parser.parse(tokenizer.reset("<b>\u00e8</b>")).toString());
+			assertEquals("<c></c>", parser.parse(tokenizer.reset(new StringReader("<c></c>"))).toString());
+		}
+		finally
+		{
+			fis.close();
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testLeafChildren() throws XmlParseException
+	{
+		XmlElement e = XmlElement.parse("<a><b></b><c>foo</c></a>");
+		XmlElement b = e.getChildren().get(0);
+		XmlElement text = e.getChildren().get(1).getChildren().get(0);
+		assertTrue(b.getChildren().isEmpty());
+		// Leaves share the same empty list
+		assertSame(b.getChildren(), text.getChildren());
+		b.addChild(new TextElement("bar"));
+		assertEquals(1, b.getChildren().size());
+		assertTrue(text.getChildren().isEmpty());
+		assertEquals("<a><b>bar</b><c>foo</c></a>", e.toString());
+	}
+
+	@Test
+	public void testParallel() throws XmlParseException
+	{
+		String s = generateRecords(20000);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			XmlElement e = new XmlParser().parseParallel(s, executor);
+			assertEquals(20001, e.getChildren().size());
+			assertEquals(XmlElement.parse(s).toString(), e.toString());
+			XmlElement lazy = new XmlParser().setLazyText(true).parseParallel(s, executor);
+			assertEquals(e, lazy);
+			assertTrue(lazy.getChildren().get(5).getChildren().get(0).getChildren().get(0) instanceof LazyTextElement);
+			// Small documents are parsed sequentially
+			assertEquals("<a>foo</a>", new XmlParser().parseParallel(" <a> foo </a> ", executor).toString());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testSplit()
+	{
+		String s = generateRecords(20000);
+		List<Integer> cuts = XmlParser.split(s, 8);
+		assertNotNull(cuts);
+		assertEquals(10, cuts.size());
+		for (int i = 2; i < cuts.size() - 1; i++)
+		{
+			// Each part starts right after the closing tag of a record
+			assertTrue(s.startsWith("</record>", cuts.get(i) - 9));
+		}
+		assertNull(XmlParser.split("foo", 8));
+		assertNull(XmlParser.split("<a><b></b><b></b></a><c></c>", 8));
+	}
+
+	@Test
+	public void testParallelMalformed()
+	{
+		StringBuilder s = new StringBuilder(generateRecords(20000));
+		s.insert(s.length() / 2, "<b>");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			new XmlParser().parseParallel(s.toString(), executor);
+			fail("The document is not well-formed");
+		}
+		catch (XmlParseException e)
+		{
+			// Same error as in sequential parsing
+			try
+			{
+				XmlElement.parse(s.toString());
+				fail("The document is not well-formed");
+			}
+			catch (XmlParseException e2)
+			{
+				assertEquals(e2.getMessage(), e.getMessage());
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testReuse() throws XmlParseException, IOException
+	{
+		XmlParser parser = new XmlParser();
+		assertEquals("<a><b>x</b></a>", parser.parse("<a><b>x</b></a>").toString());
+		try
+		{
+			parser.parse("<a><b>x</a>");
+			fail("Expected an exception");
+		}
+		catch (XmlParseException e)
+		{
+			// Expected
+		}
+		assertEquals(new XmlParser().parse("<c>y<d></d></c>").toString(), parser.parse("<c>y<d></d></c>").toString());
+		assertEquals("<e>z</e>", parser.parse("<e>z</e>".getBytes(Charset.forName("UTF-8"))).toString());
+		assertEquals("<f>w</f>", parser.parse(new StringReader("<f>w</f>")).toString());
+		assertEquals("<g>v</g>", parser.parse("<g>v</g>").toString());
+	}
+
+	@Test
+	public void testLocalInstance() throws XmlParseException
+	{
+		XmlParser parser = XmlParser.getLocalInstance();
+		parser.setLazyText(true);
+		assertSame(parser, XmlParser.getLocalInstance());
+		// The default settings are restored
+		XmlElement e = parser.parse("<a>b</a>");
+		assertEquals("<a>b</a>", e.toString());
+		assertFalse(e.getChildren().get(0) instanceof LazyTextElement);
+	}
+
+	@Test
+	public void testLocalInstanceReleasesBuffers() throws XmlParseException
+	{
+		// A large text node makes the buffers grow, but they are not kept
+		StringBuilder s = new StringBuilder("<a>");
+		for (int i = 0; i < 200000; i++)
+		{
+			s.append('x');
+		}
+		s.append("</a>");
+		XmlParser parser = XmlParser.getLocalInstance();
+		assertEquals(s.toString(), parser.parse(s.toString()).toString());
+		assertEquals(s.toString(), parser.parse(s.toString().getBytes(Charset.forName("UTF-8"))).toString());
+		assertTrue(parser.getTokenizer().getBuffer().length <= XmlTokenizer.s_maxRetainedBufferSize);
+		assertTrue(parser.getUtf8Tokenizer().getBuffer().length <= XmlTokenizer.s_maxRetainedBufferSize);
+		assertEquals("<a>b</a>", parser.parse("<a>b</a>").toString());
+	}
+
+	@Test
+	public void testTaskInstance() throws XmlParseException
+	{
+		XmlParser parser = XmlParser.getTaskInstance();
+		assertNotSame(parser, XmlParser.getLocalInstance());
+		assertSame(parser, XmlParser.getTaskInstance());
+		// Tasks that run on the calling thread do not disturb its parser
+		ExecutorService executor = new SameThreadExecutor();
+		String s = generateRecords(20000);
+		XmlElement expected = XmlElement.parse(s);
+		XmlParser local = XmlParser.getLocalInstance().setLazyText(true);
+		XmlElement e = local.parseParallel(s, executor);
+		assertTrue(local.parse("<a>b</a>").getChildren().get(0) instanceof LazyTextElement);
+		assertEquals(expected, e);
+	}
+
+	/**
+	 * Generates a wide document
+	 * @param num_records The number of children of the root
+	 * @return The document
+	 */
+	protected static String generateRecords(int num_records)
+	{
+		StringBuilder out = new StringBuilder("<catalog>");
+		for (int i = 0; i < num_records; i++)
+		{
+			out.append("\n<record><id>").append(i).append("</id><name>Item ").append(i).append("</name></record>");
+		}
+		out.append(" tail </catalog>");
+		return out.toString();
+	}
+
+	/**
+	 * Writes a string to a temporary file in UTF-8
+	 * @param s The string
+	 * @return The file
+	 * @throws IOException If writing failed
+	 */
+	protected static File writeTempFile(String s) throws IOException
+	{
+		File f = File.createTempFile("xml-lif", ".xml");
+		FileOutputStream fos = new FileOutputStream(f);
+		try
+		{
+			fos.write(s.getBytes(Charset.forName("UTF-8")));
+		}
+		finally
+		{
+			fos.close();
+		}
+		return f;
+	}
+
+	/**
+	 * Reader that returns a single character at a time
+	 */
+	protected static class OneCharReader extends Reader
+	{
+		protected final String m_string;
+
+		protected int m_position = 0;
+
+		public OneCharReader(String s)
+		{
+			super();
+			m_string = s;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len)
+		{
+			if (m_position >= m_string.length())
+			{
+				return -1;
+			}
+			cbuf[off] = m_string.charAt(m_position++);
+			return 1;
+		}
+
+		@Override
+		public void close()
+		{
+			// Nothing to do
+		}
+	}
+
+	/**
+	 * Executor that runs each task on the thread that submits it
+	 */
+	protected static class SameThreadExecutor extends AbstractExecutorService
+	{
+		protected boolean m_shutdown = false;
+
+		@Override
+		public void execute(Runnable command)
+		{
+			command.run();
+		}
+
+		@Override
+		public void shutdown()
+		{
+			m_shutdown = true;
+		}
+
+		@Override
+		public List<Runnable> shutdownNow()
+		{
+			m_shutdown = true;
+			return new ArrayList<Runnable>();
+		}
+
+		@Override
+		public boolean isShutdown()
+		{
+			return m_shutdown;
+		}
+
+		@Override
+		public boolean isTerminated()
+		{
+			return m_shutdown;
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit)
+		{
+			return true;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+
+public class XmlPushParserTest
+{
+	@Test
+	public void testChunks() throws XmlParseException
+	{
+		String s = " <a> <b>foo </b>bar <c></c>baz\n</a>";
+		// Feed the input one character at a time
+		XmlPushParser parser = new XmlPushParser();
+		char[] chars = s.toCharArray();
+		for (int i = 0; i < chars.length; i++)
+		{
+			assertNull(parser.nextDocument());
+			parser.feed(chars, i, 1);
+		}
+		XmlElement e = parser.nextDocument();
+		assertNotNull(e);
+		assertEquals(XmlElement.parse(s).toString(), e.toString());
+		parser.end();
+	}
+
+	@Test
+	public void testBytes() throws XmlParseException
+	{
+		String s = "<a><\u00e9t\u00e9>h\u00e9llo \ud83d\ude00</\u00e9t\u00e9></a><b>1</b>";
+		byte[] bytes = s.getBytes(Charset.forName("UTF-8"));
+		XmlPushParser parser = new XmlPushParser();
+		// Multi-byte characters are split between chunks
+		for (int i = 0; i < bytes.length; i++)
+		{
+			parser.feed(ByteBuffer.wrap(bytes, i, 1));
+		}
+		parser.end();
+		assertEquals("<a><\u00e9t\u00e9>h\u00e9llo \ud83d\ude00</\u00e9t\u00e9></a>", parser.nextDocument().toString());
+		assertEquals("<b>1</b>", parser.nextDocument().toString());
+		assertNull(parser.nextDocument());
+	}
+
+	@Test
+	public void testListener() throws XmlParseException
+	{
+		final StringBuilder closed = new StringBuilder();
+		XmlPushParser parser = new XmlPushParser().setListener(new XmlPushParser.Listener() {
+			@Override
+			public boolean elementClosed(XmlElement e, int depth)
+			{
+				closed.append(e.getName()).append(depth);
+				// Records are discarded once they have been seen
+				return !e.getName().equals("r");
+			}
+		});
+		String s = "<log><r><id>1</id></r><r><id>2";
+		parser.feed(s.toCharArray(), 0, s.length());
+		assertEquals("id3r2", closed.toString());
+		assertEquals(3, parser.getDepth());
+		s = "</id></r></log>";
+		parser.feed(s.toCharArray(), 0, s.length());
+		parser.end();
+		assertEquals("id3r2id3r2log1", closed.toString());
+		assertEquals("<log></log>", parser.nextDocument().toString());
+	}
+
+	@Test(expected = XmlParseException.class)
+	public void testMismatch() throws XmlParseException
+	{
+		String s = "<a><b></a>";
+		new XmlPushParser().feed(s.toCharArray(), 0, s.length());
+	}
+
+	@Test(expected = XmlParseException.class)
+	public void testTextOutside() throws XmlParseException
+	{
+		String s = "<a></a> foo";
+		new XmlPushParser().feed(s.toCharArray(), 0, s.length());
+	}
+
+	@Test
+	public void testIncomplete() throws XmlParseException
+	{
+		XmlPushParser parser = new XmlPushParser();
+		String s = "<a><b>";
+		parser.feed(s.toCharArray(), 0, s.length());
+		try
+		{
+			parser.end();
+			fail("The document is incomplete");
+		}
+		catch (XmlParseException e)
+		{
+			assertEquals("Closing element b not found", e.getMessage());
+		}
+		parser.reset();
+		s = "<a></a>";
+		parser.feed(s.toCharArray(), 0, s.length());
+		parser.end();
+		assertEquals("<a></a>", parser.nextDocument().toString());
+	}
+}
@@ -0,0 +1,168 @@
+/*
+    xml-lif, manipulate XML elements in Java
+    Copyright (C) 2016-2018 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.xml;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import ca.uqac.lif.xml.XPathExpression.XPathParseException;
+import ca.uqac.lif.xml.XmlElement.XmlParseException;
+import ca.uqac.lif.xml.XmlRecordSplitter.RecordCallback;
+
+public class XmlRecordSplitterTest
+{
+	@Test
+	public void testNextRecord() throws XmlParseException, IOException
+	{
+		XmlRecordSplitter splitter = new XmlRecordSplitter(new StringReader(" <a><b>foo </b>bar <c></c></a>\n<a></a><b><b>x</b></b>  "));
+		assertEquals("<a><b>foo</b>bar <c></c></a>", splitter.nextRecord());
+		assertEquals("<a></a>", splitter.nextRecord());
+		assertEquals("<b><b>x</b></b>", splitter.nextRecord());
+		assertNull(splitter.nextRecord());
+		assertEquals(3, splitter.getCount());
+	}
+
+	@Test(expected = XmlParseException.class)
+	public void testTextBetweenRecords() throws XmlParseException, IOException
+	{
+		XmlRecordSplitter splitter = new XmlRecordSplitter(new StringReader("<a></a> foo <a></a>"));
+		splitter.nextRecord();
+		splitter.nextRecord();
+	}
+
+	@Test(expected = XmlParseException.class)
+	public void testUnclosedRecord() throws XmlParseException, IOException
+	{
+		XmlRecordSplitter splitter = new XmlRecordSplitter(new StringReader("<a></a><a><b></b>"));
+		splitter.nextRecord();
+		splitter.nextRecord();
+	}
+
+	@Test
+	public void testProcess() throws XmlParseException, IOException, XPathParseException
+	{
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+		{
+			s.append("<r><id>").append(i).append("</id><v>").append(i % 3).append("</v></r>\n");
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			XmlRecordSplitter splitter = new XmlRecordSplitter(new StringReader(s.toString()));
+			OrderCallback callback = new OrderCallback(-1);
+			long n = splitter.process(executor, XPathExpression.parse("r[v=1]/id/text()"), 8, callback);
+			assertEquals(1000, n);
+			assertEquals(1000, callback.m_ids.size());
+			for (int i = 0; i < 1000; i++)
+			{
+				assertEquals(i, callback.m_ids.get(i).intValue());
+			}
+			assertEquals(333, callback.m_matches);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testProcessStop() throws XmlParseException, IOException
+	{
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+		{
+			s.append("<r><id>").append(i).append("</id></r>");
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			XmlRecordSplitter splitter = new XmlRecordSplitter(new StringReader(s.toString()));
+			OrderCallback callback = new OrderCallback(10);
+			assertEquals(10, splitter.process(executor, null, 4, callback));
+			assertEquals(10, callback.m_ids.size());
+			// No more than the pending records have been read
+			assertTrue(splitter.getCount() <= 14);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testProcessMalformed() throws IOException
+	{
+		String s = "<r><id>0</id></r><r><id>1</id></r><r><id>2</r><r><id>3</id></r>";
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		OrderCallback callback = new OrderCallback(-1);
+		try
+		{
+			new XmlRecordSplitter(new StringReader(s)).process(executor, null, 4, callback);
+			fail("The third record is not well-formed");
+		}
+		catch (XmlParseException e)
+		{
+			// The records before the error are delivered
+			assertEquals(2, callback.m_ids.size());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Callback keeping the identifiers of the records it receives
+	 */
+	protected static class OrderCallback implements RecordCallback
+	{
+		protected List<Integer> m_ids = new ArrayList<Integer>();
+
+		protected int m_matches = 0;
+
+		protected final int m_limit;
+
+		public OrderCallback(int limit)
+		{
+			super();
+			m_limit = limit;
+		}
+
+		@Override
+		public boolean accept(XmlElement record, Collection<XmlElement> results)
+		{
+			XmlElement id = record.getChildren().get(0);
+			m_ids.add(Integer.parseInt(id.getTextElement().getText()));
+			if (results != null)
+			{
+				m_matches += results.size();
+			}
+			return m_ids.size() != m_limit;
+		}
+	}
+}